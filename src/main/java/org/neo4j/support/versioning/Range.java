@@ -86,6 +86,14 @@ public class Range implements Comparable<Range>
         return !intersect( other ).equals( NIL );
     }
 
+    /**
+     * Whether {@code other} starts right after this range ends, or ends right before it starts.
+     */
+    public boolean isAdjacentTo( Range other )
+    {
+        return ( to != Long.MAX_VALUE && to + 1 == other.from ) || ( other.to != Long.MAX_VALUE && other.to + 1 == from );
+    }
+
     public boolean contains(long point) {
         return point >= from && point <= to;
     }
@@ -125,30 +133,44 @@ public class Range implements Comparable<Range>
     }
 
     public static List<Range> compactRanges( Collection<Range> ranges )
+    {
+        return compactRanges( ranges, false );
+    }
+
+    /**
+     * Same as {@link #compactRanges(Collection)}, also merging adjacent ranges such as [1,2] and [3,4], which cover
+     * every version in between.
+     */
+    public static List<Range> compactAdjacentRanges( Collection<Range> ranges )
+    {
+        return compactRanges( ranges, true );
+    }
+
+    private static List<Range> compactRanges( Collection<Range> ranges, boolean mergeAdjacent )
     {
         List<Range> result = new ArrayList<Range>();
-        takeNextRangeAndMergeOverlappingRanges( new ArrayList<Range>( ranges ), result );
+        takeNextRangeAndMergeOverlappingRanges( new ArrayList<Range>( ranges ), result, mergeAdjacent );
         Collections.sort( result );
         return result;
     }
 
-    private static void takeNextRangeAndMergeOverlappingRanges( List<Range> rangeList, List<Range> result )
+    private static void takeNextRangeAndMergeOverlappingRanges( List<Range> rangeList, List<Range> result, boolean mergeAdjacent )
     {
         if ( rangeList.isEmpty() ) return;
-        result.add( consumeAndMergeOverlappingRanges( rangeList.remove( 0 ), rangeList ) );
-        takeNextRangeAndMergeOverlappingRanges( rangeList, result );
+        result.add( consumeAndMergeOverlappingRanges( rangeList.remove( 0 ), rangeList, mergeAdjacent ) );
+        takeNextRangeAndMergeOverlappingRanges( rangeList, result, mergeAdjacent );
     }
 
-    private static Range consumeAndMergeOverlappingRanges( Range first, List<Range> rangeList )
+    private static Range consumeAndMergeOverlappingRanges( Range first, List<Range> rangeList, boolean mergeAdjacent )
     {
         for ( int i = 0; i < rangeList.size(); i++ )
         {
             Range rangeInList = rangeList.get( i );
-            if ( first.overlaps( rangeInList ) )
+            if ( first.overlaps( rangeInList ) || ( mergeAdjacent && first.isAdjacentTo( rangeInList ) ) )
             {
-                first = first.union( rangeInList ).iterator().next();
+                first = first.realUnion( rangeInList );
                 rangeList.remove( i );
-                return consumeAndMergeOverlappingRanges( first, rangeList );
+                return consumeAndMergeOverlappingRanges( first, rangeList, mergeAdjacent );
             }
         }
         return first;
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How often nodes were read through version contexts, for {@link CacheWarmer} to preload the most read ones after a
+ * restart. At most {@code maxTracked} nodes are counted. When a node that is not counted yet is read while full, every
+ * count is halved and the nodes whose count drops to zero make room, so nodes read lately displace ones no longer read.
+ * Counts of nodes already tracked are updated without locking.
+ */
+public class AccessStatistics {
+	public static final int DEFAULT_MAX_TRACKED = 100000;
+	private static final int FORMAT = 1;
+
+	private final ConcurrentMap<Long, AtomicLong> counts = new ConcurrentHashMap<Long, AtomicLong>();
+	private final AtomicInteger tracked = new AtomicInteger();
+	private final int maxTracked;
+
+	public AccessStatistics() {
+		this(DEFAULT_MAX_TRACKED);
+	}
+
+	public AccessStatistics(int maxTracked) {
+		if (maxTracked < 1) {
+			throw new IllegalArgumentException("Must track at least one node, got [" + maxTracked + "].");
+		}
+		this.maxTracked = maxTracked;
+	}
+
+	/**
+	 * Reads statistics saved by {@link #save(File, int)}, with counts halved so that nodes no longer read fade out over
+	 * restarts. Returns empty statistics if {@code file} does not exist.
+	 */
+	public static AccessStatistics load(File file, int maxTracked) throws IOException {
+		AccessStatistics statistics = new AccessStatistics(maxTracked);
+		if (!file.exists()) {
+			return statistics;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int format = in.readInt();
+			if (format != FORMAT) {
+				throw new IOException("Unknown access statistics format [" + format + "] in " + file + ".");
+			}
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				long nodeId = in.readLong();
+				long count = in.readLong() / 2;
+				if (count > 0) {
+					statistics.add(nodeId, count);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return statistics;
+	}
+
+	/**
+	 * Writes the counts of the {@code limit} most read nodes, replacing {@code file} only once they are all written.
+	 */
+	public void save(File file, int limit) throws IOException {
+		List<long[]> entries = mostRead(limit);
+		File temporary = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			out.writeInt(FORMAT);
+			out.writeInt(entries.size());
+			for (long[] entry : entries) {
+				out.writeLong(entry[0]);
+				out.writeLong(entry[1]);
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+			throw new IOException("Could not replace " + file + ".");
+		}
+	}
+
+	public long getCount(long nodeId) {
+		AtomicLong count = counts.get(nodeId);
+		return count == null ? 0 : count.get();
+	}
+
+	public int size() {
+		return counts.size();
+	}
+
+	/**
+	 * Ids of the {@code limit} most read nodes, most read first.
+	 */
+	public long[] getMostRead(int limit) {
+		List<long[]> entries = mostRead(limit);
+		long[] nodeIds = new long[entries.size()];
+		for (int i = 0; i < nodeIds.length; i++) {
+			nodeIds[i] = entries.get(i)[0];
+		}
+		return nodeIds;
+	}
+
+	void record(long nodeId) {
+		add(nodeId, 1);
+	}
+
+	private void add(long nodeId, long delta) {
+		AtomicLong count = counts.get(nodeId);
+		if (count == null) {
+			if (tracked.get() >= maxTracked) {
+				makeRoom();
+			}
+			AtomicLong existing = counts.putIfAbsent(nodeId, count = new AtomicLong());
+			if (existing != null) {
+				count = existing;
+			} else {
+				tracked.incrementAndGet();
+			}
+		}
+		count.addAndGet(delta);
+	}
+
+	/**
+	 * Halves every count until some drop to zero, and stops tracking those nodes. Reads racing with it may be lost.
+	 */
+	private synchronized void makeRoom() {
+		while (tracked.get() >= maxTracked) {
+			for (Iterator<AtomicLong> counters = counts.values().iterator(); counters.hasNext();) {
+				AtomicLong count = counters.next();
+				long current = count.get();
+				while (!count.compareAndSet(current, current / 2)) {
+					current = count.get();
+				}
+				if (current / 2 == 0) {
+					counters.remove();
+					tracked.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Node id and count pairs of the {@code limit} most read nodes; counts are copied first as reads go on meanwhile.
+	 */
+	private List<long[]> mostRead(int limit) {
+		List<long[]> entries = new ArrayList<long[]>(counts.size());
+		for (Map.Entry<Long, AtomicLong> entry : counts.entrySet()) {
+			entries.add(new long[] { entry.getKey(), entry.getValue().get() });
+		}
+		Collections.sort(entries, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[1] > b[1] ? -1 : a[1] < b[1] ? 1 : 0;
+			}
+		});
+		return entries.size() > limit ? entries.subList(0, limit) : entries;
+	}
+}
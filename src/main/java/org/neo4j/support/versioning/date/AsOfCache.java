@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of as-of reads, shared by the contexts of a {@link VersioningTransactionEventHandler} it is set on.
+ * Nothing can change at a version below the latest one, so those entries are kept until evicted, least recently used
+ * first. Reads at the latest version go to a separate tier whose entries live for {@code headTtlMillis}. Reads made
+ * inside a transaction, which may see its own uncommitted writes, are never cached.
+ * <p>
+ * Maintenance that rewrites history in unversioned transactions, such as a {@link VersionChainChecker} repair, must be
+ * followed by {@link #clear()}.
+ */
+public class AsOfCache {
+	private final Tier historic;
+	private final Tier head;
+	private final long headTtlNanos;
+	private final AtomicLong historicHits = new AtomicLong();
+	private final AtomicLong headHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public AsOfCache(int maxEntries) {
+		this(maxEntries, 1000);
+	}
+
+	public AsOfCache(int maxEntries, long headTtlMillis) {
+		this.historic = new Tier(maxEntries);
+		this.head = new Tier(Math.max(1, maxEntries / 8));
+		this.headTtlNanos = TimeUnit.MILLISECONDS.toNanos(headTtlMillis);
+	}
+
+	Object get(Key key, boolean atHead) {
+		Object value;
+		if (atHead) {
+			Entry entry = (Entry) head.get(key);
+			value = entry != null && System.nanoTime() - entry.expiresAtNanos < 0 ? entry.value : null;
+		} else {
+			value = historic.get(key);
+		}
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			(atHead ? headHits : historicHits).incrementAndGet();
+		}
+		return value;
+	}
+
+	void put(Key key, boolean atHead, Object value) {
+		if (atHead) {
+			head.put(key, new Entry(value, System.nanoTime() + headTtlNanos));
+		} else {
+			historic.put(key, value);
+		}
+	}
+
+	/**
+	 * Forgets what was read of {@code nodeId} at the head, after a write through a caching context.
+	 */
+	void invalidateHead(long nodeId, long version) {
+		head.remove(new Key(Key.PROPERTIES, nodeId, version, null));
+		head.removeAdjacency(nodeId, version);
+	}
+
+	public void clear() {
+		historic.clear();
+		head.clear();
+	}
+
+	public int size() {
+		return historic.size() + head.size();
+	}
+
+	public long getHistoricHits() {
+		return historicHits.get();
+	}
+
+	public long getHeadHits() {
+		return headHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Hits over lookups since creation, 0 before the first lookup.
+	 */
+	public double getHitRate() {
+		long hits = historicHits.get() + headHits.get();
+		long lookups = hits + misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		return "AsOfCache[entries=" + size() + ", historic hits=" + getHistoricHits() + ", head hits=" + getHeadHits() + ", misses=" + getMisses() + "]";
+	}
+
+	/**
+	 * What was read, of which entity, at which version. {@code detail} tells adjacency lists of one node apart.
+	 */
+	static final class Key {
+		static final int PROPERTIES = 0;
+		static final int ADJACENCY = 1;
+
+		private final int kind;
+		private final long id;
+		private final long version;
+		private final String detail;
+
+		Key(int kind, long id, long version, String detail) {
+			this.kind = kind;
+			this.id = id;
+			this.version = version;
+			this.detail = detail;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return kind == other.kind && id == other.id && version == other.version && (detail == null ? other.detail == null : detail.equals(other.detail));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = (int) (id ^ (id >>> 32));
+			hash = 31 * hash + (int) (version ^ (version >>> 32));
+			hash = 31 * hash + kind;
+			return detail == null ? hash : 31 * hash + detail.hashCode();
+		}
+	}
+
+	private static final class Entry {
+		private final Object value;
+		private final long expiresAtNanos;
+
+		Entry(Object value, long expiresAtNanos) {
+			this.value = value;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+	/**
+	 * Access-ordered map evicting its least recently used entry past {@code maxEntries}.
+	 */
+	private static final class Tier {
+		private final LinkedHashMap<Key, Object> entries;
+
+		Tier(final int maxEntries) {
+			this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		synchronized Object get(Key key) {
+			return entries.get(key);
+		}
+
+		synchronized void put(Key key, Object value) {
+			entries.put(key, value);
+		}
+
+		synchronized void remove(Key key) {
+			entries.remove(key);
+		}
+
+		synchronized void removeAdjacency(long id, long version) {
+			Iterator<Key> keys = entries.keySet().iterator();
+			while (keys.hasNext()) {
+				Key key = keys.next();
+				if (key.kind == Key.ADJACENCY && key.id == id && key.version == version) {
+					keys.remove();
+				}
+			}
+		}
+
+		synchronized void clear() {
+			entries.clear();
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotInTransactionException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.helpers.collection.IteratorUtil;
+
+/**
+ * A named line of versions on top of trunk as it was at {@link #getForkVersion()}. Branch versions count up from the
+ * fork version, one per transaction writing to the branch, independently of trunk versions. The branch keeps what it
+ * changed in the graph, copy-on-write: a trunk node it changes gets an overlay node holding the node's properties on
+ * the branch, with older revisions chained behind it, and nodes and relationships created on the branch are plain
+ * graph entities. All of it is tagged with {@link #BRANCH_PROPERTY}, carries no trunk validity and is not versioned,
+ * counted, published or replicated as trunk. Everything the branch did not change is read from trunk at the fork
+ * version, which later trunk commits do not alter.
+ * <p>
+ * Read and write a branch through {@link #versionContext()}, in a transaction: branch writes commit and roll back with
+ * it. Read earlier branch versions through {@link #versionContext(long)}.
+ */
+public class Branch {
+	static final String KEY_PREFIX = "__branch";
+	/**
+	 * Name of the branch owning an entity the branch stores.
+	 */
+	public static final String BRANCH_PROPERTY = "__branch__";
+	/**
+	 * Branch version a node or relationship was created at on its branch.
+	 */
+	static final String CREATED_PROPERTY = "__branch_created__";
+	/**
+	 * Branch version a node or relationship was deleted at on its branch.
+	 */
+	static final String DELETED_PROPERTY = "__branch_deleted__";
+	/**
+	 * First branch version of a revision.
+	 */
+	static final String FROM_PROPERTY = "__branch_from__";
+	/**
+	 * On the overlay of a trunk node, the trunk relationships starting at the node that the branch deleted, as pairs of
+	 * relationship id and branch version.
+	 */
+	static final String DELETED_RELATIONSHIPS_PROPERTY = "__branch_deleted_relationships__";
+	static final String FORK_VERSION_PROPERTY = "__branch_fork_version__";
+	static final String LATEST_VERSION_PROPERTY = "__branch_latest_version__";
+	/**
+	 * Links the version data node to the node of each branch.
+	 */
+	static final RelationshipType BRANCH_REL_TYPE = DynamicRelationshipType.withName("__BRANCH__");
+	/**
+	 * Links a branch's node to the overlays and created nodes of the branch.
+	 */
+	static final RelationshipType MEMBER_REL_TYPE = DynamicRelationshipType.withName("__BRANCH_MEMBER__");
+	/**
+	 * Links a trunk node to its overlay on a branch.
+	 */
+	static final RelationshipType OVERLAY_REL_TYPE = DynamicRelationshipType.withName("__BRANCH_OVERLAY__");
+	/**
+	 * Links a revision to the next older one.
+	 */
+	static final RelationshipType PREV_REVISION_REL_TYPE = DynamicRelationshipType.withName("__BRANCH_PREV__");
+
+	private final String name;
+	private final long branchNodeId;
+	private final long forkVersion;
+	private final GraphDatabaseService graphDb;
+	private final HistoryStore historyStore;
+	private final TransactionManager txManager;
+	private final Map<Transaction, Long> writeVersions = new ConcurrentHashMap<Transaction, Long>();
+
+	Branch(Node branchNode, HistoryStore historyStore, TransactionManager txManager) {
+		this.name = (String) branchNode.getProperty(BRANCH_PROPERTY);
+		this.branchNodeId = branchNode.getId();
+		this.forkVersion = (Long) branchNode.getProperty(FORK_VERSION_PROPERTY);
+		this.graphDb = branchNode.getGraphDatabase();
+		this.historyStore = historyStore;
+		this.txManager = txManager;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getForkVersion() {
+		return forkVersion;
+	}
+
+	/**
+	 * The latest committed branch version; the fork version while nothing has been written to the branch.
+	 */
+	public long getLatestVersion() {
+		return (Long) getBranchNode().getProperty(LATEST_VERSION_PROPERTY);
+	}
+
+	/**
+	 * A context reading the latest state of the branch, including what the current transaction wrote to it, and
+	 * writing to the branch. Writes need a transaction and make it a new branch version.
+	 */
+	public BranchVersionContext versionContext() {
+		return new BranchVersionContext(this, Long.MAX_VALUE, historyStore);
+	}
+
+	/**
+	 * A read-only context at branch version {@code version}, from the fork version up to the latest one.
+	 */
+	public BranchVersionContext versionContext(long version) {
+		if (version < forkVersion || version > getLatestVersion()) {
+			throw new IllegalArgumentException("Version [" + version + "] is not a committed version of " + this + ".");
+		}
+		return new BranchVersionContext(this, version, historyStore);
+	}
+
+	/**
+	 * How many trunk nodes this branch holds state for and how many nodes it created.
+	 */
+	public int getChangeCount() {
+		return IteratorUtil.count(getBranchNode().getRelationships(MEMBER_REL_TYPE, Direction.OUTGOING));
+	}
+
+	GraphDatabaseService getGraphDatabase() {
+		return graphDb;
+	}
+
+	Node getBranchNode() {
+		return graphDb.getNodeById(branchNodeId);
+	}
+
+	/**
+	 * The branch version the current transaction writes, taken on its first write to the branch. Taking it locks the
+	 * branch until the transaction completes, so branch versions follow the order their transactions commit in.
+	 */
+	long writeVersion() {
+		final Transaction tx = currentTransaction();
+		Long version = writeVersions.get(tx);
+		if (version != null) {
+			return version;
+		}
+		Node branchNode = getBranchNode();
+		branchNode.setProperty(VersioningTransactionEventHandler.LOCK_PROP_KEY, 0);
+		long nextVersion = (Long) branchNode.getProperty(LATEST_VERSION_PROPERTY) + 1;
+		branchNode.setProperty(LATEST_VERSION_PROPERTY, nextVersion);
+		try {
+			tx.registerSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					writeVersions.remove(tx);
+				}
+			});
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not follow the transaction writing to " + this + ".", e);
+		}
+		writeVersions.put(tx, nextVersion);
+		return nextVersion;
+	}
+
+	private Transaction currentTransaction() {
+		if (txManager == null) {
+			throw new UnsupportedOperationException("Writing to " + this + " needs the database's transaction manager.");
+		}
+		Transaction tx;
+		try {
+			tx = txManager.getTransaction();
+		} catch (SystemException e) {
+			throw new IllegalStateException("Could not look up the current transaction.", e);
+		}
+		try {
+			if (tx == null || tx.getStatus() != Status.STATUS_ACTIVE) {
+				throw new NotInTransactionException("Writing to " + this + " needs a transaction.");
+			}
+		} catch (SystemException e) {
+			throw new IllegalStateException("Could not look up the current transaction.", e);
+		}
+		return tx;
+	}
+
+	/**
+	 * Whether {@code entity} is stored by this branch, as a node or relationship created on it or as internal state.
+	 */
+	boolean owns(PropertyContainer entity) {
+		return name.equals(entity.getProperty(BRANCH_PROPERTY, null));
+	}
+
+	/**
+	 * The overlay of trunk node {@code node} on this branch, {@code null} if the branch never touched the node.
+	 */
+	Node getOverlay(Node node) {
+		for (Relationship relationship : node.getRelationships(OVERLAY_REL_TYPE, Direction.OUTGOING)) {
+			if (owns(relationship)) {
+				return relationship.getEndNode();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The overlay of trunk node {@code node}, created without a revision if the branch has none yet.
+	 */
+	Node getOrCreateOverlay(Node node) {
+		Node overlay = getOverlay(node);
+		if (overlay == null) {
+			overlay = createMember();
+			tag(node.createRelationshipTo(overlay, OVERLAY_REL_TYPE));
+		}
+		return overlay;
+	}
+
+	/**
+	 * A node stored by this branch and linked from the branch's node, so dropping the branch finds it.
+	 */
+	Node createMember() {
+		Node member = createNode();
+		tag(getBranchNode().createRelationshipTo(member, MEMBER_REL_TYPE));
+		return member;
+	}
+
+	private Node createNode() {
+		return tag(graphDb.createNode());
+	}
+
+	<T extends PropertyContainer> T tag(T entity) {
+		entity.setProperty(BRANCH_PROPERTY, name);
+		return entity;
+	}
+
+	/**
+	 * Removes everything this branch stored from the graph. Runs in the caller's transaction.
+	 */
+	void delete() {
+		Node branchNode = getBranchNode();
+		for (Relationship memberRel : branchNode.getRelationships(MEMBER_REL_TYPE, Direction.OUTGOING)) {
+			Node member = memberRel.getEndNode();
+			memberRel.delete();
+			Relationship overlayRel = member.getSingleRelationship(OVERLAY_REL_TYPE, Direction.INCOMING);
+			if (overlayRel != null) {
+				deleteCreatedRelationships(overlayRel.getStartNode());
+				overlayRel.delete();
+			} else {
+				deleteCreatedRelationships(member);
+			}
+			deleteRevisions(member);
+			for (Relationship relationship : member.getRelationships()) {
+				relationship.delete();
+			}
+			member.delete();
+		}
+		for (Relationship relationship : branchNode.getRelationships()) {
+			relationship.delete();
+		}
+		branchNode.delete();
+	}
+
+	/**
+	 * Deletes the relationships this branch created on {@code node}.
+	 */
+	private void deleteCreatedRelationships(Node node) {
+		for (Relationship relationship : node.getRelationships()) {
+			if (relationship.hasProperty(CREATED_PROPERTY) && owns(relationship)) {
+				relationship.delete();
+			}
+		}
+	}
+
+	private static void deleteRevisions(Node head) {
+		Node revision = head;
+		Relationship prevRevisionRel = head.getSingleRelationship(PREV_REVISION_REL_TYPE, Direction.OUTGOING);
+		while (prevRevisionRel != null) {
+			Node older = prevRevisionRel.getEndNode();
+			prevRevisionRel.delete();
+			if (revision != head) {
+				revision.delete();
+			}
+			revision = older;
+			prevRevisionRel = revision.getSingleRelationship(PREV_REVISION_REL_TYPE, Direction.OUTGOING);
+		}
+		if (revision != head) {
+			revision.delete();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Branch[" + name + " @ " + forkVersion + "]";
+	}
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.Branch.CREATED_PROPERTY;
+import static org.neo4j.support.versioning.date.Branch.DELETED_PROPERTY;
+import static org.neo4j.support.versioning.date.Branch.DELETED_RELATIONSHIPS_PROPERTY;
+import static org.neo4j.support.versioning.date.Branch.FROM_PROPERTY;
+import static org.neo4j.support.versioning.date.Branch.PREV_REVISION_REL_TYPE;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Reads a {@link Branch} at one branch version and, for the latest one, writes it: the branch's own revisions first,
+ * trunk at the fork version for the rest. Store scans, relationship cursors and batch reads see the branch as well.
+ * Relationship properties are not versioned, on trunk or on a branch, so only relationships created on the branch can
+ * have their properties changed.
+ */
+public class BranchVersionContext extends VersionContext {
+	private final Branch branch;
+	private final long branchVersion;
+
+	BranchVersionContext(Branch branch, long branchVersion, HistoryStore historyStore) {
+		super(branch.getForkVersion(), historyStore);
+		this.branch = branch;
+		this.branchVersion = branchVersion;
+	}
+
+	public Branch getBranch() {
+		return branch;
+	}
+
+	/**
+	 * The branch version this context reads, {@link Long#MAX_VALUE} for the latest one including the current
+	 * transaction's writes. {@link #version()} is the trunk version read, the fork version.
+	 */
+	public long getBranchVersion() {
+		return branchVersion;
+	}
+
+	public VersionedNode createNode() {
+		long version = writeVersion();
+		Node node = branch.createMember();
+		node.setProperty(CREATED_PROPERTY, version);
+		node.setProperty(FROM_PROPERTY, version);
+		return new VersionedNode(node, this);
+	}
+
+	/**
+	 * Looks up a trunk or branch node by id.
+	 */
+	public VersionedNode getNodeById(long id) {
+		return node(branch.getGraphDatabase().getNodeById(id));
+	}
+
+	@Override
+	boolean existedAt(Node node) {
+		Object owner = node.getProperty(Branch.BRANCH_PROPERTY, null);
+		if (owner != null) {
+			return branch.getName().equals(owner) && isLive(node);
+		}
+		return super.existedAt(node) && !isDeletedOnBranch(node);
+	}
+
+	@Override
+	public boolean hasValidVersion(PropertyContainer propertyContainer) {
+		if (propertyContainer instanceof Node) {
+			return existedAt((Node) propertyContainer);
+		}
+		Relationship relationship = (Relationship) propertyContainer;
+		Object owner = relationship.getProperty(Branch.BRANCH_PROPERTY, null);
+		if (owner != null) {
+			return branch.getName().equals(owner) && isLive(relationship) && existedAt(relationship.getStartNode()) && existedAt(relationship.getEndNode());
+		}
+		// Endpoints of a trunk relationship valid at the fork version are trunk nodes valid at it too.
+		return super.hasValidVersion(relationship) && !isDeletedOnBranch(relationship.getStartNode()) && !isDeletedOnBranch(relationship.getEndNode())
+				&& !isDeletedOnBranch(relationship);
+	}
+
+	@Override
+	public ValidRelationshipCursor relationshipCursor() {
+		return new ValidRelationshipCursor(version(), false) {
+			@Override
+			boolean accept(Relationship candidate) {
+				return hasValidVersion(candidate);
+			}
+		};
+	}
+
+	@Override
+	PropertyContainer getPropHolderNode(Node node) {
+		Node head;
+		if (node.hasProperty(Branch.BRANCH_PROPERTY)) {
+			if (!branch.owns(node) || !isLive(node)) {
+				throw new NotFoundException("Node [" + node.getId() + "] does not exist at version [" + branchVersion + "] of " + branch + ".");
+			}
+			head = node;
+		} else {
+			head = branch.getOverlay(node);
+			if (head != null && isDeleted(head)) {
+				throw new NotFoundException("Node [" + node.getId() + "] was deleted on " + branch + ".");
+			}
+		}
+		for (Node revision = head; revision != null; revision = olderRevision(revision)) {
+			Object from = revision.getProperty(FROM_PROPERTY, null);
+			if (from != null && (Long) from <= branchVersion) {
+				return revision;
+			}
+		}
+		// The branch has not changed the node's properties as of this version.
+		return super.getPropHolderNode(node);
+	}
+
+	@Override
+	public Object getProperty(Node node, String key) {
+		// Keys set on the branch are unknown to the trunk's key filters.
+		return getPropHolderNode(node).getProperty(key);
+	}
+
+	@Override
+	public Object getProperty(Node node, String key, Object defaultValue) {
+		try {
+			return getPropHolderNode(node).getProperty(key, defaultValue);
+		} catch (NotFoundException e) {
+			return defaultValue;
+		}
+	}
+
+	@Override
+	public Relationship createRelationship(Node from, Node to, RelationshipType type) {
+		long version = writeVersion();
+		Node start = existing(from);
+		Node end = existing(to);
+		// Every node a branch touches is a member, so dropping the branch finds all of its state.
+		head(start);
+		head(end);
+		Relationship relationship = branch.tag(start.createRelationshipTo(end, type));
+		relationship.setProperty(CREATED_PROPERTY, version);
+		return new VersionedRelationship(relationship, this);
+	}
+
+	@Override
+	public void setProperty(Node node, String key, Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null value for property [" + key + "].");
+		}
+		if (isInternalKey(key) || key.equals(DELETED_PROP_KEY)) {
+			throw new IllegalArgumentException("Property [" + key + "] is kept by versioning.");
+		}
+		writableRevision(node).setProperty(key, value);
+	}
+
+	@Override
+	public Object removeProperty(Node node, String key) {
+		Object previous = getProperty(node, key, null);
+		if (previous != null && !isInternalKey(key)) {
+			writableRevision(node).removeProperty(key);
+		}
+		return previous;
+	}
+
+	@Override
+	public void setRelationshipProperty(Relationship relationship, String key, Object value) {
+		writableRelationship(relationship).setProperty(key, value);
+	}
+
+	@Override
+	public Object removeRelationshipProperty(Relationship relationship, String key) {
+		return writableRelationship(relationship).removeProperty(key);
+	}
+
+	private Relationship writableRelationship(Relationship relationship) {
+		writeVersion();
+		if (!branch.owns(relationship) || !hasValidVersion(relationship)) {
+			throw new UnsupportedOperationException("Relationship properties are not versioned, so trunk relationship [" + relationship.getId()
+					+ "] cannot be changed on " + branch + ".");
+		}
+		return relationship;
+	}
+
+	@Override
+	public void deleteRelationship(Relationship relationship) {
+		long version = writeVersion();
+		Relationship raw = branch.getGraphDatabase().getRelationshipById(relationship.getId());
+		if (!hasValidVersion(raw)) {
+			throw new NotFoundException("Relationship [" + raw.getId() + "] does not exist on " + branch + ".");
+		}
+		if (branch.owns(raw)) {
+			raw.setProperty(DELETED_PROPERTY, version);
+			return;
+		}
+		Node overlay = branch.getOrCreateOverlay(raw.getStartNode());
+		long[] deleted = (long[]) overlay.getProperty(DELETED_RELATIONSHIPS_PROPERTY, new long[0]);
+		long[] updated = new long[deleted.length + 2];
+		System.arraycopy(deleted, 0, updated, 0, deleted.length);
+		updated[deleted.length] = raw.getId();
+		updated[deleted.length + 1] = version;
+		overlay.setProperty(DELETED_RELATIONSHIPS_PROPERTY, updated);
+	}
+
+	/**
+	 * Marks {@code node} deleted on the branch. Its relationships go with it: they are invalid on the branch while an
+	 * endpoint is deleted.
+	 */
+	@Override
+	public void deleteNode(Node node) {
+		long version = writeVersion();
+		head(existing(node)).setProperty(DELETED_PROPERTY, version);
+	}
+
+	private long writeVersion() {
+		if (branchVersion != Long.MAX_VALUE) {
+			throw new UnsupportedOperationException("Version [" + branchVersion + "] of " + branch + " is read-only; write through versionContext().");
+		}
+		return branch.writeVersion();
+	}
+
+	/**
+	 * The unwrapped {@code node}, which must exist on the branch.
+	 */
+	private Node existing(Node node) {
+		Node raw = branch.getGraphDatabase().getNodeById(node.getId());
+		if (!existedAt(raw)) {
+			throw new NotFoundException("Node [" + raw.getId() + "] does not exist on " + branch + ".");
+		}
+		return raw;
+	}
+
+	/**
+	 * The node holding the latest state of {@code node} on the branch, an overlay created on first use for trunk nodes.
+	 */
+	private Node head(Node node) {
+		return branch.owns(node) ? node : branch.getOrCreateOverlay(node);
+	}
+
+	/**
+	 * The revision of {@code node} the current transaction writes to, keeping the revision it replaces.
+	 */
+	private Node writableRevision(Node node) {
+		long version = writeVersion();
+		Node raw = branch.getGraphDatabase().getNodeById(node.getId());
+		PropertyContainer current = getPropHolderNode(raw);
+		Node head = head(raw);
+		Object from = head.getProperty(FROM_PROPERTY, null);
+		if (from != null && (Long) from == version) {
+			return head;
+		}
+		if (from != null) {
+			Node previous = branch.tag(branch.getGraphDatabase().createNode());
+			copyUserProperties(head, previous);
+			previous.setProperty(FROM_PROPERTY, from);
+			Relationship olderRel = head.getSingleRelationship(PREV_REVISION_REL_TYPE, Direction.OUTGOING);
+			if (olderRel != null) {
+				branch.tag(previous.createRelationshipTo(olderRel.getEndNode(), PREV_REVISION_REL_TYPE));
+				olderRel.delete();
+			}
+			branch.tag(head.createRelationshipTo(previous, PREV_REVISION_REL_TYPE));
+		} else {
+			// First change on the branch: start from trunk at the fork version.
+			copyUserProperties(current, head);
+		}
+		head.setProperty(FROM_PROPERTY, version);
+		return head;
+	}
+
+	private static void copyUserProperties(PropertyContainer from, PropertyContainer to) {
+		for (String key : from.getPropertyKeys()) {
+			if (!isInternalKey(key) && !key.equals(DELETED_PROP_KEY)) {
+				to.setProperty(key, from.getProperty(key));
+			}
+		}
+	}
+
+	private static Node olderRevision(Node revision) {
+		Relationship olderRel = revision.getSingleRelationship(PREV_REVISION_REL_TYPE, Direction.OUTGOING);
+		return olderRel != null ? olderRel.getEndNode() : null;
+	}
+
+	/**
+	 * Whether {@code entity}, created on the branch, exists at this branch version.
+	 */
+	private boolean isLive(PropertyContainer entity) {
+		Object created = entity.getProperty(CREATED_PROPERTY, null);
+		return created != null && (Long) created <= branchVersion && !isDeleted(entity);
+	}
+
+	private boolean isDeleted(PropertyContainer entity) {
+		Object deleted = entity.getProperty(DELETED_PROPERTY, null);
+		return deleted != null && (Long) deleted <= branchVersion;
+	}
+
+	private boolean isDeletedOnBranch(Node trunkNode) {
+		Node overlay = branch.getOverlay(trunkNode);
+		return overlay != null && isDeleted(overlay);
+	}
+
+	private boolean isDeletedOnBranch(Relationship trunkRelationship) {
+		Node overlay = branch.getOverlay(trunkRelationship.getStartNode());
+		if (overlay == null) {
+			return false;
+		}
+		long[] deleted = (long[]) overlay.getProperty(DELETED_RELATIONSHIPS_PROPERTY, null);
+		if (deleted == null) {
+			return false;
+		}
+		for (int i = 0; i < deleted.length; i += 2) {
+			if (deleted[i] == trunkRelationship.getId()) {
+				return deleted[i + 1] <= branchVersion;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "BranchVersionContext[" + branch + " @ " + (branchVersion == Long.MAX_VALUE ? "latest" : branchVersion) + "]";
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Preloads the nodes most read in the previous run, so as-of reads are fast again soon after a restart. On
+ * {@link #start()} it loads {@link AccessStatistics} from {@code statisticsFile}, gives fresh statistics carrying
+ * the old counts to the handler, and reads the validity and properties of the most read heads plus their most recent
+ * history segments, on several threads in the background. Registered as a kernel event handler, it saves the
+ * statistics again when the database shuts down.
+ *
+ * <pre>
+ * CacheWarmer warmer = new CacheWarmer(graphDb, eventHandler, new File(storeDir, &quot;access.stats&quot;));
+ * graphDb.registerKernelEventHandler(warmer);
+ * warmer.start();
+ * </pre>
+ */
+public class CacheWarmer implements KernelEventHandler {
+	public static final int DEFAULT_NODE_LIMIT = 10000;
+	public static final int DEFAULT_SEGMENTS = 4;
+
+	private final GraphDatabaseService graphDb;
+	private final VersioningTransactionEventHandler handler;
+	private final File statisticsFile;
+	private int nodeLimit = DEFAULT_NODE_LIMIT;
+	private int segments = DEFAULT_SEGMENTS;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private final AtomicLong warmedNodes = new AtomicLong();
+	private volatile CountDownLatch running;
+	private volatile Exception failure;
+
+	public CacheWarmer(GraphDatabaseService graphDb, VersioningTransactionEventHandler handler, File statisticsFile) {
+		this.graphDb = graphDb;
+		this.handler = handler;
+		this.statisticsFile = statisticsFile;
+	}
+
+	/**
+	 * Most nodes preloaded at start, and kept in the statistics saved at shutdown.
+	 */
+	public void setNodeLimit(int nodeLimit) {
+		this.nodeLimit = nodeLimit;
+	}
+
+	/**
+	 * History segments preloaded per node, newest first.
+	 */
+	public void setSegments(int segments) {
+		this.segments = segments;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Starts warming up and returns at once; see {@link #awaitWarmUp(long, TimeUnit)}.
+	 */
+	public synchronized void start() throws IOException {
+		if (running != null) {
+			throw new IllegalStateException("Warm-up already started.");
+		}
+		AccessStatistics statistics = AccessStatistics.load(statisticsFile, Math.max(nodeLimit, AccessStatistics.DEFAULT_MAX_TRACKED));
+		handler.setAccessStatistics(statistics);
+		final long[] nodeIds = statistics.getMostRead(nodeLimit);
+		final int threadCount = Math.max(1, Math.min(threads, nodeIds.length));
+		running = new CountDownLatch(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			final int first = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// Interleaved so that every thread starts with some of the most read nodes.
+						for (int j = first; j < nodeIds.length; j += threadCount) {
+							warm(nodeIds[j]);
+						}
+					} catch (RuntimeException e) {
+						failure = e;
+					} finally {
+						running.countDown();
+					}
+				}
+			}, "versioning-warm-up-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * @return {@code true} if the warm-up finished within {@code timeout}.
+	 */
+	public boolean awaitWarmUp(long timeout, TimeUnit unit) throws InterruptedException {
+		CountDownLatch latch = running;
+		if (latch == null) {
+			throw new IllegalStateException("Warm-up not started.");
+		}
+		return latch.await(timeout, unit);
+	}
+
+	public long getWarmedNodeCount() {
+		return warmedNodes.get();
+	}
+
+	/**
+	 * What stopped a warm-up thread or the last save, if anything.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	private void warm(long nodeId) {
+		Node node;
+		try {
+			node = graphDb.getNodeById(nodeId);
+		} catch (NotFoundException e) {
+			return;
+		}
+		Range range = VersionContext.getVersion(node);
+		if (range == null) {
+			return;
+		}
+		touch(node);
+		HistoryStore historyStore = handler.getHistoryStore();
+		long version = range.from() - 1;
+		for (int segment = 0; segment < segments && version >= 0; segment++) {
+			PropertyContainer holder = historyStore.getPropertyHolder(node, version);
+			if (holder == null) {
+				break;
+			}
+			touch(holder);
+			Range holderRange = VersionContext.getVersion(holder);
+			if (holderRange == null) {
+				break;
+			}
+			version = holderRange.from() - 1;
+		}
+		warmedNodes.incrementAndGet();
+	}
+
+	private static void touch(PropertyContainer entity) {
+		for (String key : entity.getPropertyKeys()) {
+			entity.getProperty(key);
+		}
+	}
+
+	@Override
+	public void beforeShutdown() {
+		AccessStatistics statistics = handler.getAccessStatistics();
+		if (statistics == null) {
+			return;
+		}
+		try {
+			statistics.save(statisticsFile, nodeLimit);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	@Override
+	public void kernelPanic(ErrorState error) {
+	}
+
+	@Override
+	public Object getResource() {
+		return null;
+	}
+
+	@Override
+	public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+		return ExecutionOrder.DOESNT_MATTER;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * {@link VersionContext} answering property and adjacency reads from an {@link AsOfCache}. Each node's properties at
+ * this version are read once as a whole, and each adjacency list is kept as relationship ids.
+ */
+class CachingVersionContext extends VersionContext {
+	private final AsOfCache cache;
+	private final TransactionManager txManager;
+	private final boolean atHead;
+
+	CachingVersionContext(long version, HistoryStore historyStore, AsOfCache cache, TransactionManager txManager, long latestVersion) {
+		super(version, historyStore);
+		this.cache = cache;
+		this.txManager = txManager;
+		this.atHead = version >= latestVersion;
+	}
+
+	@Override
+	public VersionedNode node(Node node) {
+		if (lookup(propertiesKey(node)) != null) {
+			// Cached, so the node existed at this version.
+			recordAccess(node);
+			return new VersionedNode(node, this);
+		}
+		return super.node(node);
+	}
+
+	@Override
+	public Object getProperty(Node node, String key) {
+		Object value = properties(node).get(key);
+		if (value == null) {
+			throw new NotFoundException("Property [" + key + "] not found at version [" + version() + "].");
+		}
+		return copyOf(value);
+	}
+
+	@Override
+	public Object getProperty(Node node, String key, Object defaultValue) {
+		if (!KeyFilter.mightHave(node, key)) {
+			return defaultValue;
+		}
+		Object value = properties(node).get(key);
+		return value == null ? defaultValue : copyOf(value);
+	}
+
+	@Override
+	public Iterable<String> getPropertyKeys(Node node) {
+		return new ArrayList<String>(properties(node).keySet());
+	}
+
+	@Override
+	public Iterable<Object> getPropertyValues(Node node) {
+		List<Object> values = new ArrayList<Object>();
+		for (Object value : properties(node).values()) {
+			values.add(copyOf(value));
+		}
+		return values;
+	}
+
+	@Override
+	public Iterable<Relationship> getRelationships(Node node, Direction direction, RelationshipType... types) {
+		AsOfCache.Key key = new AsOfCache.Key(AsOfCache.Key.ADJACENCY, node.getId(), version(), adjacencyDetail(direction, types));
+		long[] ids = (long[]) lookup(key);
+		if (ids == null) {
+			LongList valid = new LongList();
+			for (Relationship relationship : super.getRelationships(node, direction, types)) {
+				valid.add(relationship.getId());
+			}
+			ids = valid.toArray();
+			fill(key, ids);
+		}
+		GraphDatabaseService graphDb = node.getGraphDatabase();
+		List<Relationship> relationships = new ArrayList<Relationship>(ids.length);
+		for (long id : ids) {
+			relationships.add(new VersionedRelationship(graphDb.getRelationshipById(id), this));
+		}
+		return relationships;
+	}
+
+	@Override
+	public Relationship createRelationship(Node from, Node to, RelationshipType type) {
+		cache.invalidateHead(from.getId(), version());
+		cache.invalidateHead(to.getId(), version());
+		return super.createRelationship(from, to, type);
+	}
+
+	@Override
+	public void setProperty(Node node, String key, Object value) {
+		cache.invalidateHead(node.getId(), version());
+		super.setProperty(node, key, value);
+	}
+
+	@Override
+	public Object removeProperty(Node node, String key) {
+		cache.invalidateHead(node.getId(), version());
+		return super.removeProperty(node, key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> properties(Node node) {
+		AsOfCache.Key key = propertiesKey(node);
+		Map<String, Object> properties = (Map<String, Object>) lookup(key);
+		if (properties == null) {
+			properties = new HashMap<String, Object>();
+			// Keys and values come from the same revision in the same order, found with one holder lookup each.
+			Iterator<Object> values = super.getPropertyValues(node).iterator();
+			for (String propertyKey : super.getPropertyKeys(node)) {
+				properties.put(propertyKey, values.next());
+			}
+			properties = Collections.unmodifiableMap(properties);
+			fill(key, properties);
+		}
+		return properties;
+	}
+
+	/**
+	 * A transaction sees its own uncommitted writes, at the head and at any older version its changed nodes still
+	 * cover, so nothing it reads is cached. Historic entries are still served to it, being committed state.
+	 */
+	private Object lookup(AsOfCache.Key key) {
+		if (atHead && inTransaction()) {
+			return null;
+		}
+		return cache.get(key, atHead);
+	}
+
+	private void fill(AsOfCache.Key key, Object value) {
+		if (!inTransaction()) {
+			cache.put(key, atHead, value);
+		}
+	}
+
+	private boolean inTransaction() {
+		if (txManager == null) {
+			return true;
+		}
+		try {
+			return txManager.getTransaction() != null;
+		} catch (SystemException e) {
+			return true;
+		}
+	}
+
+	private AsOfCache.Key propertiesKey(Node node) {
+		return new AsOfCache.Key(AsOfCache.Key.PROPERTIES, node.getId(), version(), null);
+	}
+
+	private static String adjacencyDetail(Direction direction, RelationshipType... types) {
+		String[] names = new String[types.length];
+		for (int i = 0; i < types.length; i++) {
+			names[i] = types[i].name();
+		}
+		Arrays.sort(names);
+		return direction.name() + Arrays.toString(names);
+	}
+
+	/**
+	 * Arrays are handed out as copies, as Neo4j does, so callers cannot change cached values.
+	 */
+	static Object copyOf(Object value) {
+		if (!value.getClass().isArray()) {
+			return value;
+		}
+		int length = Array.getLength(value);
+		Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+		System.arraycopy(value, 0, copy, 0, length);
+		return copy;
+	}
+}
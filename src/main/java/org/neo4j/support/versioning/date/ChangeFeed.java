@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process publish/subscribe of {@link ChangeSet}s, fed by {@link VersioningTransactionEventHandler#afterCommit}.
+ * Each subscriber runs on its own thread and is handed batches of consecutive versions, one change set per version.
+ * Versions the feed learns nothing about, such as those committed before it was attached or skipped by a
+ * {@link VersionChainChecker} repair, come as change sets flagged {@link ChangeSet#isMissing() missing}. The feed holds up to {@code capacity} versions; when the slowest subscriber falls that far behind, committing
+ * threads wait in {@code afterCommit}, after their transaction has committed, for up to the publish wait. A subscriber
+ * still that far behind is then dropped and reports {@link Subscription#isOutOfSync()}.
+ *
+ * <pre>
+ * ChangeFeed feed = new ChangeFeed(eventHandler.getLatestVersion() + 1);
+ * eventHandler.setChangeFeed(feed);
+ * feed.subscribe("search-indexer", indexer);
+ * </pre>
+ */
+public class ChangeFeed {
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+	private final VersionRingBuffer<ChangeSet> buffer;
+
+	/**
+	 * @param firstVersion the first version that will be published, normally the handler's latest version plus one.
+	 */
+	public ChangeFeed(long firstVersion) {
+		this(firstVersion, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public ChangeFeed(long firstVersion, int capacity, int maxBatchSize) {
+		this.buffer = new VersionRingBuffer<ChangeSet>(firstVersion, capacity, maxBatchSize, new VersionRingBuffer.MissingElements<ChangeSet>() {
+			@Override
+			public ChangeSet missing(long version) {
+				return ChangeSet.missing(version);
+			}
+		});
+	}
+
+	/**
+	 * Longest a committing thread waits for a subscriber a full feed behind before dropping it; one second by default.
+	 */
+	public void setMaxPublishWait(long timeout, TimeUnit unit) {
+		buffer.setMaxPublishWait(timeout, unit);
+	}
+
+	/**
+	 * Starts delivering every version published from now on to {@code subscriber}.
+	 */
+	public Subscription subscribe(String name, final ChangeSubscriber subscriber) {
+		return new Subscription(buffer.subscribe(name, new VersionRingBuffer.BatchHandler<ChangeSet>() {
+			@Override
+			public void handle(List<ChangeSet> batch) throws Exception {
+				subscriber.onChanges(batch);
+			}
+		}));
+	}
+
+	void publish(ChangeSet changeSet) {
+		buffer.publish(changeSet.getVersion(), changeSet);
+	}
+
+	/**
+	 * Publishes missing change sets for versions {@code from} to {@code to} that were not published.
+	 */
+	void publishMissing(long from, long to) {
+		buffer.publishMissing(from, to);
+	}
+
+	long getFirstVersion() {
+		return buffer.getFirstVersion();
+	}
+
+	/**
+	 * Stops all subscriber threads.
+	 */
+	public void close() {
+		buffer.close();
+	}
+
+	public static class Subscription {
+		private final VersionRingBuffer<ChangeSet>.Consumer consumer;
+
+		Subscription(VersionRingBuffer<ChangeSet>.Consumer consumer) {
+			this.consumer = consumer;
+		}
+
+		/**
+		 * The next version this subscriber will receive.
+		 */
+		public long getNextVersion() {
+			return consumer.getNextVersion();
+		}
+
+		/**
+		 * Number of batches the subscriber threw on. Failed batches are not redelivered.
+		 */
+		public long getFailureCount() {
+			return consumer.getFailureCount();
+		}
+
+		/**
+		 * Whether the subscriber was dropped for holding commits back; it receives nothing more.
+		 */
+		public boolean isOutOfSync() {
+			return consumer.isOutOfSync();
+		}
+
+		public void cancel() {
+			consumer.close();
+		}
+	}
+}
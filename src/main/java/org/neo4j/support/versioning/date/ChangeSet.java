@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+
+/**
+ * What one committed version changed, by id. Deleted means deleted through {@link VersionContext} or physically.
+ */
+public class ChangeSet {
+	private final long version;
+	private final long[] createdNodeIds;
+	private final long[] deletedNodeIds;
+	private final long[] createdRelationshipIds;
+	private final long[] deletedRelationshipIds;
+	private final long[] modifiedNodeIds;
+	private final String[][] modifiedKeys;
+	private final boolean missing;
+
+	public ChangeSet(long version, long[] createdNodeIds, long[] deletedNodeIds, long[] createdRelationshipIds, long[] deletedRelationshipIds,
+			long[] modifiedNodeIds, String[][] modifiedKeys) {
+		this.version = version;
+		this.createdNodeIds = createdNodeIds;
+		this.deletedNodeIds = deletedNodeIds;
+		this.createdRelationshipIds = createdRelationshipIds;
+		this.deletedRelationshipIds = deletedRelationshipIds;
+		this.modifiedNodeIds = modifiedNodeIds;
+		this.modifiedKeys = modifiedKeys;
+		this.missing = false;
+	}
+
+	private ChangeSet(long version) {
+		this.version = version;
+		this.createdNodeIds = new long[0];
+		this.deletedNodeIds = new long[0];
+		this.createdRelationshipIds = new long[0];
+		this.deletedRelationshipIds = new long[0];
+		this.modifiedNodeIds = new long[0];
+		this.modifiedKeys = new String[0][];
+		this.missing = true;
+	}
+
+	/**
+	 * Placeholder for a version whose changes are not known.
+	 */
+	static ChangeSet missing(long version) {
+		return new ChangeSet(version);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Whether the changes of this version are unknown, because it committed before the feed was set or was skipped by
+	 * a {@link VersionChainChecker} repair. It then lists nothing, though the version may have changed anything; state
+	 * derived from earlier change sets must be rebuilt.
+	 */
+	public boolean isMissing() {
+		return missing;
+	}
+
+	public long[] getCreatedNodeIds() {
+		return createdNodeIds;
+	}
+
+	public long[] getDeletedNodeIds() {
+		return deletedNodeIds;
+	}
+
+	public long[] getCreatedRelationshipIds() {
+		return createdRelationshipIds;
+	}
+
+	public long[] getDeletedRelationshipIds() {
+		return deletedRelationshipIds;
+	}
+
+	/**
+	 * Nodes whose properties changed; the keys changed on {@code getModifiedNodeIds()[i]} are {@code getModifiedKeys()[i]}.
+	 */
+	public long[] getModifiedNodeIds() {
+		return modifiedNodeIds;
+	}
+
+	public String[][] getModifiedKeys() {
+		return modifiedKeys;
+	}
+
+	@Override
+	public String toString() {
+		if (missing) {
+			return "ChangeSet[version=" + version + ", missing]";
+		}
+		return "ChangeSet[version=" + version + ", created nodes=" + Arrays.toString(createdNodeIds) + ", deleted nodes=" + Arrays.toString(deletedNodeIds)
+				+ ", created relationships=" + Arrays.toString(createdRelationshipIds) + ", deleted relationships=" + Arrays.toString(deletedRelationshipIds)
+				+ ", modified nodes=" + Arrays.toString(modifiedNodeIds) + "]";
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What {@link VersioningTransactionEventHandler#beforeCommit} learned about a transaction, kept until it is known to
+ * have committed.
+ */
+class CommitState {
+	final long version;
+	int createdNodes;
+	int deletedNodes;
+	final List<String> createdRelationshipTypes = new ArrayList<String>();
+	final Map<String, int[]> deletedRelationships = new HashMap<String, int[]>();
+	final LongList endedRelationshipIds = new LongList();
+	/**
+	 * Relationships created in this transaction on nodes it deleted, by id to type. They were deleted outright.
+	 */
+	final Map<Long, String> discardedRelationships = new HashMap<Long, String>();
+	final LongList deletedNodeIds = new LongList();
+	final List<TemporalAggregates.Change> aggregateChanges = new ArrayList<TemporalAggregates.Change>();
+	ChangeFeed changeFeed;
+	ChangeSet changeSet;
+	ReplicationShipper shipper;
+	VersionRecord record;
+
+	CommitState(long version) {
+		this.version = version;
+	}
+
+	void relationshipsDeleted(String type, int count) {
+		int[] deleted = deletedRelationships.get(type);
+		if (deleted == null) {
+			deletedRelationships.put(type, new int[] { count });
+		} else {
+			deleted[0] += count;
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Read-only, block-compressed segment files for cold history, written by {@link HistoryTieringJob}. A segment is a run
+ * of Deflater-compressed blocks of encoded revisions followed by an index sorted by node id and start version:
+ *
+ * <pre>
+ * block* | int blockCount | (long offset, int compressedLength, int length)*
+ *        | int entryCount | (long nodeId, long from, long to, int block, int offsetInBlock)* | long indexOffset | int magic
+ * </pre>
+ *
+ * A segment is written to a temporary file and only renamed into place, and made visible to readers, once complete
+ * and forced to disk. Indexes are held in memory as sorted arrays; recently inflated blocks are cached.
+ */
+public class CompressedSegmentStore {
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	private static final int MAGIC = 0x5A534547;
+	private static final String SEGMENT_PREFIX = "cold-";
+	private static final String SEGMENT_SUFFIX = ".zseg";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int TRAILER_SIZE = 8 + 4;
+	private static final int CACHED_BLOCKS = 32;
+
+	private final File directory;
+	private final int blockSize;
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private final Map<Long, byte[]> blockCache = new LinkedHashMap<Long, byte[]>(CACHED_BLOCKS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
+	private int nextSegmentNumber;
+
+	public CompressedSegmentStore(File directory) throws IOException {
+		this(directory, DEFAULT_BLOCK_SIZE);
+	}
+
+	public CompressedSegmentStore(File directory, int blockSize) throws IOException {
+		this.directory = directory;
+		this.blockSize = blockSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cold history directory [" + directory + "].");
+		}
+		openExistingSegments();
+	}
+
+	private void openExistingSegments() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(SEGMENT_SUFFIX + TEMP_SUFFIX));
+			}
+		});
+		Arrays.sort(names);
+		for (String name : names) {
+			File file = new File(directory, name);
+			if (name.endsWith(TEMP_SUFFIX)) {
+				// Left behind by a tiering run that did not finish; its revisions are still in the graph.
+				file.delete();
+				continue;
+			}
+			int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			segments.add(new Segment(number, file));
+			nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+		}
+	}
+
+	/**
+	 * The newest revision of {@code node} valid at {@code version}, or {@code null}.
+	 */
+	public PropertyContainer getPropertyHolder(Node node, long version) {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			int entry = segment.find(node.getId(), version);
+			if (entry >= 0) {
+				return new HistoricProperties(node.getGraphDatabase(), read(segment, entry));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The start version of the oldest revision of {@code node}, or -1 if none is stored here.
+	 */
+	public long getFirstVersion(Node node) {
+		long first = Long.MAX_VALUE;
+		for (Segment segment : segments) {
+			int entry = segment.firstEntry(node.getId());
+			if (entry >= 0) {
+				first = Math.min(first, segment.froms[entry]);
+			}
+		}
+		return first == Long.MAX_VALUE ? -1 : first;
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	private Map<String, Object> read(Segment segment, int entry) {
+		byte[] block = inflatedBlock(segment, segment.entryBlocks[entry]);
+		int offset = segment.entryOffsets[entry];
+		try {
+			return PropertyCodec.readProperties(new DataInputStream(new ByteArrayInputStream(block, offset, block.length - offset)));
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt revision in " + segment.path + ".", e);
+		}
+	}
+
+	private byte[] inflatedBlock(Segment segment, int block) {
+		Long key = ((long) segment.number << 32) | block;
+		synchronized (blockCache) {
+			byte[] cached = blockCache.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		byte[] inflated = segment.inflate(block);
+		synchronized (blockCache) {
+			blockCache.put(key, inflated);
+		}
+		return inflated;
+	}
+
+	/**
+	 * Starts a new segment. Nothing written to it is visible until {@link Writer#finish()}.
+	 */
+	synchronized Writer newSegment() throws IOException {
+		return new Writer(nextSegmentNumber++);
+	}
+
+	public synchronized void close() throws IOException {
+		for (Segment segment : segments) {
+			segment.file.close();
+		}
+		segments.clear();
+		synchronized (blockCache) {
+			blockCache.clear();
+		}
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	class Writer {
+		private final int number;
+		private final File tempFile;
+		private final FileOutputStream fileOut;
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		private final DataOutputStream blockOut = new DataOutputStream(block);
+		private final LongList blockOffsets = new LongList();
+		private final LongList blockCompressedLengths = new LongList();
+		private final LongList blockLengths = new LongList();
+		private final List<long[]> entries = new ArrayList<long[]>();
+		private long position;
+		private boolean closed;
+
+		Writer(int number) throws IOException {
+			this.number = number;
+			this.tempFile = new File(segmentFile(number).getPath() + TEMP_SUFFIX);
+			this.fileOut = new FileOutputStream(tempFile);
+			this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		}
+
+		void add(long nodeId, Range range, Map<String, Object> properties) throws IOException {
+			if (block.size() >= blockSize) {
+				writeBlock();
+			}
+			entries.add(new long[] { nodeId, range.from(), range.to(), blockOffsets.size(), block.size() });
+			PropertyCodec.writeProperties(blockOut, properties);
+		}
+
+		int size() {
+			return entries.size();
+		}
+
+		private void writeBlock() throws IOException {
+			byte[] data = block.toByteArray();
+			Deflater deflater = new Deflater();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				byte[] buffer = new byte[8192];
+				while (!deflater.finished()) {
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} finally {
+				deflater.end();
+			}
+			blockOffsets.add(position);
+			blockCompressedLengths.add(compressed.size());
+			blockLengths.add(data.length);
+			compressed.writeTo(out);
+			position += compressed.size();
+			block.reset();
+		}
+
+		/**
+		 * Writes the index, forces the segment to disk and makes it visible to readers.
+		 */
+		void finish() throws IOException {
+			if (block.size() > 0) {
+				writeBlock();
+			}
+			long indexOffset = position;
+			out.writeInt(blockOffsets.size());
+			for (int i = 0; i < blockOffsets.size(); i++) {
+				out.writeLong(blockOffsets.get(i));
+				out.writeInt((int) blockCompressedLengths.get(i));
+				out.writeInt((int) blockLengths.get(i));
+			}
+			Collections.sort(entries, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] a, long[] b) {
+					if (a[0] != b[0]) {
+						return a[0] < b[0] ? -1 : 1;
+					}
+					return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+				}
+			});
+			out.writeInt(entries.size());
+			for (long[] entry : entries) {
+				out.writeLong(entry[0]);
+				out.writeLong(entry[1]);
+				out.writeLong(entry[2]);
+				out.writeInt((int) entry[3]);
+				out.writeInt((int) entry[4]);
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getChannel().force(true);
+			out.close();
+			closed = true;
+			File file = segmentFile(number);
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename [" + tempFile + "] to [" + file + "].");
+			}
+			segments.add(new Segment(number, file));
+		}
+
+		/**
+		 * Discards an unfinished segment.
+		 */
+		void abort() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the file is deleted below either way
+			}
+			tempFile.delete();
+		}
+	}
+
+	private static class Segment {
+		private final int number;
+		private final File path;
+		private final RandomAccessFile file;
+		private final long[] blockOffsets;
+		private final int[] blockCompressedLengths;
+		private final int[] blockLengths;
+		private final long[] nodeIds;
+		private final long[] froms;
+		private final long[] tos;
+		private final int[] entryBlocks;
+		private final int[] entryOffsets;
+
+		Segment(int number, File path) throws IOException {
+			this.number = number;
+			this.path = path;
+			this.file = new RandomAccessFile(path, "r");
+			long length = file.length();
+			ByteBuffer trailer = length < TRAILER_SIZE ? null : readFully(length - TRAILER_SIZE, TRAILER_SIZE);
+			if (trailer == null || trailer.getInt(8) != MAGIC) {
+				file.close();
+				throw new IOException("[" + path + "] is not a complete history segment.");
+			}
+			long indexOffset = trailer.getLong(0);
+			ByteBuffer index = readFully(indexOffset, (int) (length - TRAILER_SIZE - indexOffset));
+			int blockCount = index.getInt();
+			blockOffsets = new long[blockCount];
+			blockCompressedLengths = new int[blockCount];
+			blockLengths = new int[blockCount];
+			for (int i = 0; i < blockCount; i++) {
+				blockOffsets[i] = index.getLong();
+				blockCompressedLengths[i] = index.getInt();
+				blockLengths[i] = index.getInt();
+			}
+			int entryCount = index.getInt();
+			nodeIds = new long[entryCount];
+			froms = new long[entryCount];
+			tos = new long[entryCount];
+			entryBlocks = new int[entryCount];
+			entryOffsets = new int[entryCount];
+			for (int i = 0; i < entryCount; i++) {
+				nodeIds[i] = index.getLong();
+				froms[i] = index.getLong();
+				tos[i] = index.getLong();
+				entryBlocks[i] = index.getInt();
+				entryOffsets[i] = index.getInt();
+			}
+		}
+
+		private ByteBuffer readFully(long position, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of [" + path + "].");
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		int firstEntry(long nodeId) {
+			int low = 0;
+			int high = nodeIds.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (nodeIds[middle] < nodeId) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low < nodeIds.length && nodeIds[low] == nodeId ? low : -1;
+		}
+
+		int find(long nodeId, long version) {
+			int first = firstEntry(nodeId);
+			if (first < 0) {
+				return -1;
+			}
+			int found = -1;
+			for (int i = first; i < nodeIds.length && nodeIds[i] == nodeId && froms[i] <= version; i++) {
+				if (version <= tos[i]) {
+					found = i;
+				}
+			}
+			return found;
+		}
+
+		byte[] inflate(int block) {
+			Inflater inflater = new Inflater();
+			try {
+				ByteBuffer compressed = readFully(blockOffsets[block], blockCompressedLengths[block]);
+				inflater.setInput(compressed.array());
+				byte[] inflated = new byte[blockLengths[block]];
+				int length = 0;
+				while (length < inflated.length && !inflater.finished()) {
+					int inflatedNow = inflater.inflate(inflated, length, inflated.length - length);
+					if (inflatedNow == 0 && inflater.needsInput()) {
+						throw new DataFormatException("Block ends early.");
+					}
+					length += inflatedNow;
+				}
+				return inflated;
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not read block " + block + " of [" + path + "].", e);
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Corrupt block " + block + " in [" + path + "].", e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+}
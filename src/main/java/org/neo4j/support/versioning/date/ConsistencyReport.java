@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a {@link VersionChainChecker} run found, and the statistics it rebuilt on the way.
+ */
+public class ConsistencyReport {
+	public enum Kind {
+		/** Validity that cannot be read: a missing bound, or a start after the end. */
+		INVALID_RANGE,
+		/** A revision in a history chain ends before the next newer one starts. */
+		RANGE_GAP,
+		/** A revision in a history chain ends after the next newer one starts. */
+		RANGE_OVERLAP,
+		/** A {@code __deleted__} marker without an end version, or an end version without a marker. */
+		DELETED_MARKER_MISMATCH,
+		/** An entity carries a version above {@code __LATEST_VERSION__}. */
+		LATEST_VERSION_BEHIND,
+		/** A node's {@code __key_filter__} is missing or rules out a key found in its history. */
+		KEY_FILTER_INCOMPLETE
+	}
+
+	public static class Anomaly {
+		private final Kind kind;
+		private final String entity;
+		private final String description;
+		private final boolean repaired;
+
+		Anomaly(Kind kind, String entity, String description, boolean repaired) {
+			this.kind = kind;
+			this.entity = entity;
+			this.description = description;
+			this.repaired = repaired;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * The entity at fault, such as {@code Node[12]}.
+		 */
+		public String getEntity() {
+			return entity;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public boolean isRepaired() {
+			return repaired;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + entity + ": " + description + (repaired ? " (repaired)" : "");
+		}
+	}
+
+	private final List<Anomaly> anomalies = new ArrayList<Anomaly>();
+	private long nodesChecked;
+	private long relationshipsChecked;
+	private long elapsedMillis;
+	private VersionStatistics statistics;
+
+	synchronized void add(List<Anomaly> found) {
+		anomalies.addAll(found);
+	}
+
+	synchronized void addChecked(long nodes, long relationships) {
+		nodesChecked += nodes;
+		relationshipsChecked += relationships;
+	}
+
+	void finish(VersionStatistics statistics, long elapsedMillis) {
+		this.statistics = statistics;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public synchronized boolean isConsistent() {
+		for (Anomaly anomaly : anomalies) {
+			if (!anomaly.isRepaired()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized List<Anomaly> getAnomalies() {
+		return new ArrayList<Anomaly>(anomalies);
+	}
+
+	/**
+	 * Versioned nodes checked, not counting the history holders checked along with them.
+	 */
+	public synchronized long getNodesChecked() {
+		return nodesChecked;
+	}
+
+	public synchronized long getRelationshipsChecked() {
+		return relationshipsChecked;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Statistics rebuilt from the validity ranges scanned, ready for
+	 * {@link VersioningTransactionEventHandler#setStatistics(VersionStatistics)}. From an online run they miss writes
+	 * committed during the scan.
+	 */
+	public VersionStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ConsistencyReport[nodes=" + nodesChecked + ", relationships=" + relationshipsChecked + ", anomalies=" + anomalies.size() + ", "
+				+ elapsedMillis + "ms]";
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+
+/**
+ * Growable binary indexed tree over positions 1..n, giving point updates and prefix sums in O(log n). Not thread safe.
+ */
+class FenwickTree {
+	// tree[i] holds the sum of positions (i - lowestOneBit(i), i]; the capacity is kept a power of two.
+	private long[] tree;
+
+	FenwickTree() {
+		this(1024);
+	}
+
+	FenwickTree(int initialCapacity) {
+		tree = new long[Integer.highestOneBit(Math.max(1, initialCapacity - 1)) * 2 + 1];
+	}
+
+	void add(long position, long delta) {
+		if (position < 1) {
+			throw new IllegalArgumentException("Position [" + position + "] is below 1.");
+		}
+		ensureCapacity(position);
+		for (int i = (int) position; i < tree.length; i += Integer.lowestOneBit(i)) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * Sum of positions 1..position.
+	 */
+	long prefixSum(long position) {
+		long sum = 0;
+		for (int i = (int) Math.min(position, capacity()); i > 0; i -= Integer.lowestOneBit(i)) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Adds every point of {@code other} to this tree.
+	 */
+	void addAll(FenwickTree other) {
+		long previous = 0;
+		for (int position = 1; position <= other.capacity(); position++) {
+			long sum = other.prefixSum(position);
+			if (sum != previous) {
+				add(position, sum - previous);
+			}
+			previous = sum;
+		}
+	}
+
+	private int capacity() {
+		return tree.length - 1;
+	}
+
+	private void ensureCapacity(long position) {
+		while (position > capacity()) {
+			if (capacity() >= 1 << 30) {
+				throw new IllegalStateException("Position [" + position + "] exceeds the tree's capacity.");
+			}
+			// With power of two capacities, the only new cell covering old positions is the new last one, which covers
+			// everything.
+			int oldCapacity = capacity();
+			tree = Arrays.copyOf(tree, oldCapacity * 2 + 1);
+			tree[oldCapacity * 2] = tree[oldCapacity];
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReplicationTransport} through an append-only log file, for a standby in another process that can read the
+ * file. Each record is written as its length followed by its {@link VersionRecord#write} form and synced before
+ * {@link #send} returns. The sending and receiving sides each open their own instance; a receiver starts from the
+ * beginning of the log and relies on the replica skipping versions it already applied.
+ */
+public class FileReplicationTransport implements ReplicationTransport {
+	private static final long POLL_MILLIS = 10;
+
+	private final File log;
+	private FileOutputStream out;
+	private RandomAccessFile in;
+	private long readPosition;
+
+	public FileReplicationTransport(File log) {
+		this.log = log;
+	}
+
+	@Override
+	public synchronized void send(List<VersionRecord> records) throws IOException {
+		if (out == null) {
+			out = new FileOutputStream(log, true);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		for (VersionRecord record : records) {
+			ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+			record.write(new DataOutputStream(recordBytes));
+			data.writeInt(recordBytes.size());
+			recordBytes.writeTo(data);
+		}
+		data.flush();
+		out.write(bytes.toByteArray());
+		out.getFD().sync();
+	}
+
+	@Override
+	public synchronized List<VersionRecord> receive(int maxRecords, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		List<VersionRecord> records = new ArrayList<VersionRecord>();
+		while (true) {
+			if (in == null && log.exists()) {
+				in = new RandomAccessFile(log, "r");
+			}
+			while (in != null && records.size() < maxRecords) {
+				VersionRecord record = readRecord();
+				if (record == null) {
+					break;
+				}
+				records.add(record);
+			}
+			if (!records.isEmpty() || System.nanoTime() - deadline >= 0) {
+				return records;
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+	}
+
+	/**
+	 * The next complete record, or {@code null} if the sender has not finished writing it yet.
+	 */
+	private VersionRecord readRecord() throws IOException {
+		long available = in.length() - readPosition;
+		if (available < 4) {
+			return null;
+		}
+		in.seek(readPosition);
+		int length = in.readInt();
+		if (available < 4 + length) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		readPosition += 4 + length;
+		return VersionRecord.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		if (in != null) {
+			in.close();
+			in = null;
+		}
+	}
+}
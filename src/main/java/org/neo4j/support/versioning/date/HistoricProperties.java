@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Read-only property container for a revision that lives outside the graph.
+ */
+public class HistoricProperties implements PropertyContainer {
+	private final GraphDatabaseService graphDb;
+	private final Map<String, Object> properties;
+
+	public HistoricProperties(GraphDatabaseService graphDb, Map<String, Object> properties) {
+		this.graphDb = graphDb;
+		this.properties = properties;
+	}
+
+	public GraphDatabaseService getGraphDatabase() {
+		return graphDb;
+	}
+
+	public boolean hasProperty(String key) {
+		return properties.containsKey(key);
+	}
+
+	public Object getProperty(String key) {
+		Object value = properties.get(key);
+		if (value == null) {
+			throw new NotFoundException("Property [" + key + "] not found.");
+		}
+		return value;
+	}
+
+	public Object getProperty(String key, Object defaultValue) {
+		Object value = properties.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	public void setProperty(String key, Object value) {
+		throw new UnsupportedOperationException("Historic revisions are read-only.");
+	}
+
+	public Object removeProperty(String key) {
+		throw new UnsupportedOperationException("Historic revisions are read-only.");
+	}
+
+	public Iterable<String> getPropertyKeys() {
+		return Collections.unmodifiableSet(properties.keySet());
+	}
+
+	public Iterable<Object> getPropertyValues() {
+		return Collections.unmodifiableCollection(properties.values());
+	}
+
+	@Override
+	public String toString() {
+		return "HistoricProperties" + properties;
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Keeps the property revisions a versioned node has left behind. The node itself always holds the latest revision.
+ */
+public interface HistoryStore {
+
+	/**
+	 * Records that {@code node} had {@code properties} during {@code range}. Called from within the committing
+	 * transaction; if that transaction rolls back, a later append for an overlapping range must take precedence.
+	 */
+	void append(Node node, Map<String, Object> properties, Range range);
+
+	/**
+	 * Returns the properties {@code node} had at {@code version}, or {@code null} if no recorded revision covers it.
+	 */
+	PropertyContainer getPropertyHolder(Node node, long version);
+
+	/**
+	 * Returns the start version of the oldest revision recorded for {@code node}, or {@code -1} if there is none.
+	 */
+	long getFirstVersion(Node node);
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Moves revisions that ended more than {@code retainedVersions} versions ago from the in-graph
+ * {@link VersionContext#PREV_VERSION_REL_TYPE} chains into the cold store of the handler's {@link TieredHistoryStore}.
+ * Revisions visible at a version pinned in the handler's {@link SnapshotPins}, or at a branch's fork version, stay.
+ * Every batch of {@code batchSize} versioned nodes is written as one segment, made durable, and only then cut from the
+ * chains. Safe to run next to live writers: the nodes of a batch are write locked before their chains are read, so
+ * commits writing to them wait for the batch. An interrupted run leaves at worst a segment duplicating revisions still
+ * in the graph, which reads the same.
+ */
+public class HistoryTieringJob implements Runnable {
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	private final GraphDatabaseService graphDb;
+	private final VersioningTransactionEventHandler eventHandler;
+	private final CompressedSegmentStore coldStore;
+	private final long retainedVersions;
+	private final int batchSize;
+	private final AtomicLong moved = new AtomicLong();
+	private volatile boolean stopRequested;
+	private volatile Thread thread;
+
+	public HistoryTieringJob(GraphDatabaseService graphDb, VersioningTransactionEventHandler eventHandler, long retainedVersions) {
+		this(graphDb, eventHandler, retainedVersions, DEFAULT_BATCH_SIZE);
+	}
+
+	public HistoryTieringJob(GraphDatabaseService graphDb, VersioningTransactionEventHandler eventHandler, long retainedVersions, int batchSize) {
+		HistoryStore historyStore = eventHandler.getHistoryStore();
+		if (historyStore instanceof InterningHistoryStore) {
+			// Revisions are moved with their references, which the interning store resolves wherever they are read from.
+			historyStore = ((InterningHistoryStore) historyStore).getDelegate();
+		}
+		if (!(historyStore instanceof TieredHistoryStore) || !(((TieredHistoryStore) historyStore).getHotStore() instanceof InGraphHistoryStore)) {
+			throw new IllegalArgumentException("Tiering needs the handler to use a TieredHistoryStore over in-graph history.");
+		}
+		this.graphDb = graphDb;
+		this.eventHandler = eventHandler;
+		this.coldStore = ((TieredHistoryStore) historyStore).getColdStore();
+		this.retainedVersions = retainedVersions;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Runs the job on a background daemon thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Tiering already started.");
+		}
+		thread = new Thread(this, "history-tiering");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks a running job to stop after its current batch and waits for it.
+	 */
+	public void stop() throws InterruptedException {
+		stopRequested = true;
+		awaitCompletion();
+	}
+
+	public void awaitCompletion() throws InterruptedException {
+		Thread running = thread;
+		if (running != null) {
+			running.join();
+		}
+	}
+
+	/**
+	 * Number of revisions moved out of the graph so far.
+	 */
+	public long getMovedCount() {
+		return moved.get();
+	}
+
+	@Override
+	public void run() {
+		long desiredCutoff = eventHandler.getLatestVersion() - retainedVersions;
+		for (Branch branch : eventHandler.getBranches()) {
+			// Branches read trunk as of their fork version.
+			desiredCutoff = Math.min(desiredCutoff, branch.getForkVersion());
+		}
+		if (desiredCutoff < 1) {
+			return;
+		}
+		Iterator<Node> nodes = GlobalGraphOperations.at(graphDb).getAllNodes().iterator();
+		while (nodes.hasNext() && !stopRequested) {
+			// Pins are taken again per batch so that expired leases free history without restarting the run.
+			long cutoff = eventHandler.getSnapshotPins().beginReclaim(desiredCutoff);
+			try {
+				moveBatch(nodes, cutoff);
+			} finally {
+				eventHandler.getSnapshotPins().endReclaim();
+			}
+		}
+	}
+
+	private void moveBatch(Iterator<Node> nodes, long cutoff) {
+		CompressedSegmentStore.Writer writer;
+		try {
+			writer = coldStore.newSegment();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not create cold history segment.", e);
+		}
+		List<Node> coldHolders = new ArrayList<Node>();
+		boolean written = false;
+		eventHandler.suspendVersioning();
+		Transaction tx = graphDb.beginTx();
+		try {
+			int inBatch = 0;
+			while (inBatch < batchSize && nodes.hasNext()) {
+				Node node = nodes.next();
+				if (isVersionedHead(node)) {
+					// Commits rotating the node's history lock it too, so its chain stays as read until the batch commits.
+					tx.acquireWriteLock(node);
+					collectColdHolders(node, cutoff, writer, coldHolders);
+					inBatch++;
+				}
+			}
+			if (coldHolders.isEmpty()) {
+				tx.success();
+				return;
+			}
+			writer.finish();
+			written = true;
+			for (Node holder : coldHolders) {
+				// Each holder has exactly one incoming link, from the newer revision or the head.
+				holder.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.INCOMING).delete();
+				holder.delete();
+			}
+			tx.success();
+			moved.addAndGet(coldHolders.size());
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write cold history segment.", e);
+		} finally {
+			if (!written) {
+				writer.abort();
+			}
+			tx.finish();
+			eventHandler.resumeVersioning();
+		}
+	}
+
+	private static boolean isVersionedHead(Node node) {
+		return VersionContext.getVersion(node) != null && !node.hasRelationship(PREV_VERSION_REL_TYPE, Direction.INCOMING);
+	}
+
+	private static void collectColdHolders(Node head, long cutoff, CompressedSegmentStore.Writer writer, List<Node> coldHolders) throws IOException {
+		Node current = head;
+		Relationship prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		while (prevVersionRel != null) {
+			current = prevVersionRel.getOtherNode(current);
+			if (VersionContext.getEndVersion(current) < cutoff) {
+				writer.add(head.getId(), VersionContext.getVersion(current), userProperties(current));
+				coldHolders.add(current);
+			}
+			prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+	}
+
+	private static Map<String, Object> userProperties(Node holder) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		for (String key : holder.getPropertyKeys()) {
+			if (!VersionContext.isInternalKey(key)) {
+				properties.put(key, holder.getProperty(key));
+			}
+		}
+		return properties;
+	}
+}
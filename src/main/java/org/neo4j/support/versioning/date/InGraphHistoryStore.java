@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Stores history as a chain of property holder nodes hanging off the versioned node through
+ * {@link VersionContext#PREV_VERSION_REL_TYPE} relationships, newest first.
+ */
+public class InGraphHistoryStore implements HistoryStore {
+	public static final InGraphHistoryStore INSTANCE = new InGraphHistoryStore();
+
+	@Override
+	public void append(Node node, Map<String, Object> properties, Range range) {
+		Node newHistoricNode = node.getGraphDatabase().createNode();
+		for (Map.Entry<String, Object> propEntry : properties.entrySet()) {
+			newHistoricNode.setProperty(propEntry.getKey(), propEntry.getValue());
+		}
+		if (node.hasProperty(VersionContext.VALIDITY_PROPERTY)) {
+			VersionContext.setPackedVersion(newHistoricNode, range);
+		} else {
+			VersionContext.setVersion(newHistoricNode, range);
+		}
+		insertFirstInChain(node, newHistoricNode);
+	}
+
+	private static void insertFirstInChain(Node mainNode, Node newHistoricNode) {
+		Relationship prevVersionRel = mainNode.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		if (prevVersionRel != null) {
+			newHistoricNode.createRelationshipTo(prevVersionRel.getOtherNode(mainNode), PREV_VERSION_REL_TYPE);
+			prevVersionRel.delete();
+		}
+		mainNode.createRelationshipTo(newHistoricNode, PREV_VERSION_REL_TYPE);
+	}
+
+	@Override
+	public PropertyContainer getPropertyHolder(Node node, long version) {
+		Node current = node;
+		while (true) {
+			Relationship prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+			if (prevVersionRel == null) {
+				return null;
+			}
+			current = prevVersionRel.getOtherNode(current);
+			Range range = VersionContext.getVersion(current);
+			if (range != null && range.contains(version)) {
+				return current;
+			}
+		}
+	}
+
+	@Override
+	public long getFirstVersion(Node node) {
+		Node current = node;
+		Relationship prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		if (prevVersionRel == null) {
+			return -1;
+		}
+		while (prevVersionRel != null) {
+			current = prevVersionRel.getOtherNode(current);
+			prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+		return VersionContext.getStartVersion(current);
+	}
+}
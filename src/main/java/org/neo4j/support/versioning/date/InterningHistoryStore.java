@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Stores large string and array values of revisions once in a {@link ValueDictionary} and keeps only references in
+ * the revisions of the wrapped {@link HistoryStore}. The keys holding references are listed in each revision's
+ * {@link #INTERNED_KEYS_PROPERTY}; revisions read back resolve them transparently.
+ */
+public class InterningHistoryStore implements HistoryStore {
+	public static final String INTERNED_KEYS_PROPERTY = "__interned__";
+	public static final int DEFAULT_MINIMUM_SIZE = 64;
+
+	private final HistoryStore delegate;
+	private final ValueDictionary dictionary;
+	private final int minimumSize;
+
+	public InterningHistoryStore(HistoryStore delegate, ValueDictionary dictionary) {
+		this(delegate, dictionary, DEFAULT_MINIMUM_SIZE);
+	}
+
+	/**
+	 * @param minimumSize values smaller than this many characters or array elements are stored inline.
+	 */
+	public InterningHistoryStore(HistoryStore delegate, ValueDictionary dictionary, int minimumSize) {
+		this.delegate = delegate;
+		this.dictionary = dictionary;
+		this.minimumSize = minimumSize;
+	}
+
+	public HistoryStore getDelegate() {
+		return delegate;
+	}
+
+	public ValueDictionary getDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public void append(Node node, Map<String, Object> properties, Range range) {
+		Map<String, Object> stored = new HashMap<String, Object>(properties);
+		List<String> internedKeys = new ArrayList<String>();
+		for (Map.Entry<String, Object> entry : properties.entrySet()) {
+			if (isLarge(entry.getValue())) {
+				stored.put(entry.getKey(), dictionary.intern(entry.getValue()));
+				internedKeys.add(entry.getKey());
+			}
+		}
+		if (!internedKeys.isEmpty()) {
+			stored.put(INTERNED_KEYS_PROPERTY, internedKeys.toArray(new String[internedKeys.size()]));
+		}
+		delegate.append(node, stored, range);
+	}
+
+	private boolean isLarge(Object value) {
+		if (value instanceof String) {
+			return ((String) value).length() >= minimumSize;
+		}
+		return value.getClass().isArray() && Array.getLength(value) >= minimumSize;
+	}
+
+	@Override
+	public PropertyContainer getPropertyHolder(Node node, long version) {
+		PropertyContainer propertyHolder = delegate.getPropertyHolder(node, version);
+		if (propertyHolder == null || !propertyHolder.hasProperty(INTERNED_KEYS_PROPERTY)) {
+			return propertyHolder;
+		}
+		return new InternedProperties(propertyHolder, (String[]) propertyHolder.getProperty(INTERNED_KEYS_PROPERTY));
+	}
+
+	@Override
+	public long getFirstVersion(Node node) {
+		return delegate.getFirstVersion(node);
+	}
+
+	/**
+	 * Read-only view of a revision resolving its interned values.
+	 */
+	private class InternedProperties implements PropertyContainer {
+		private final PropertyContainer revision;
+		private final List<String> internedKeys;
+
+		InternedProperties(PropertyContainer revision, String[] internedKeys) {
+			this.revision = revision;
+			this.internedKeys = Arrays.asList(internedKeys);
+		}
+
+		public GraphDatabaseService getGraphDatabase() {
+			return revision.getGraphDatabase();
+		}
+
+		public boolean hasProperty(String key) {
+			return !key.equals(INTERNED_KEYS_PROPERTY) && revision.hasProperty(key);
+		}
+
+		public Object getProperty(String key) {
+			if (key.equals(INTERNED_KEYS_PROPERTY)) {
+				throw new NotFoundException("Property [" + key + "] not found.");
+			}
+			Object value = revision.getProperty(key);
+			return internedKeys.contains(key) ? dictionary.resolve((Long) value) : value;
+		}
+
+		public Object getProperty(String key, Object defaultValue) {
+			Object value = key.equals(INTERNED_KEYS_PROPERTY) ? null : revision.getProperty(key, null);
+			if (value == null) {
+				return defaultValue;
+			}
+			return internedKeys.contains(key) ? dictionary.resolve((Long) value) : value;
+		}
+
+		public void setProperty(String key, Object value) {
+			throw new UnsupportedOperationException("Historic revisions are read-only.");
+		}
+
+		public Object removeProperty(String key) {
+			throw new UnsupportedOperationException("Historic revisions are read-only.");
+		}
+
+		public Iterable<String> getPropertyKeys() {
+			List<String> keys = new ArrayList<String>();
+			for (String key : revision.getPropertyKeys()) {
+				if (!key.equals(INTERNED_KEYS_PROPERTY)) {
+					keys.add(key);
+				}
+			}
+			return keys;
+		}
+
+		public Iterable<Object> getPropertyValues() {
+			List<Object> values = new ArrayList<Object>();
+			for (String key : getPropertyKeys()) {
+				values.add(getProperty(key));
+			}
+			return values;
+		}
+	}
+}
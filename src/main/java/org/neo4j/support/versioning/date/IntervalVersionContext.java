@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Reads what was valid at any version of an interval, where {@link VersionContext} reads a single version. Entities
+ * come back with the part of the interval they were valid in, so "neighbors during Q3" is one pass over an adjacency
+ * list rather than a query per version.
+ */
+public class IntervalVersionContext {
+	private final Range interval;
+	private final HistoryStore historyStore;
+
+	public IntervalVersionContext(Range interval) {
+		this(interval, InGraphHistoryStore.INSTANCE);
+	}
+
+	public IntervalVersionContext(Range interval, HistoryStore historyStore) {
+		this.interval = interval;
+		this.historyStore = historyStore;
+	}
+
+	public Range interval() {
+		return interval;
+	}
+
+	/**
+	 * The part of the interval {@code entity} was valid in, or {@code null} if it was valid at none of it. Node
+	 * validity includes the node's history.
+	 */
+	public Range getValidity(PropertyContainer entity) {
+		Range range = VersionContext.getVersion(entity);
+		if (range == null) {
+			return null;
+		}
+		if (entity instanceof Node) {
+			long firstVersion = VersionContext.getCreatedVersion((Node) entity, historyStore);
+			if (firstVersion >= 0 && firstVersion < range.from()) {
+				range = new Range(firstVersion, range.to());
+			}
+		}
+		return intersection(range);
+	}
+
+	/**
+	 * Relationships of {@code node} valid at some version of the interval, of any type when {@code types} is empty,
+	 * each with the part of the interval it was valid in.
+	 */
+	public Map<Relationship, Range> getRelationships(Node node, Direction direction, RelationshipType... types) {
+		Map<Relationship, Range> relationships = new LinkedHashMap<Relationship, Range>();
+		for (Relationship relationship : types.length == 0 ? node.getRelationships(direction) : node.getRelationships(direction, types)) {
+			if (relationship.isType(VersionContext.PREV_VERSION_REL_TYPE)) {
+				continue;
+			}
+			Range validity = getValidity(relationship);
+			if (validity != null) {
+				relationships.put(relationship, validity);
+			}
+		}
+		return relationships;
+	}
+
+	/**
+	 * Nodes linked to {@code node} at some version of the interval, with the versions they were linked at. Ranges
+	 * of several relationships to the same neighbor are merged.
+	 */
+	public Map<Node, List<Range>> getNeighbors(Node node, Direction direction, RelationshipType... types) {
+		Map<Node, List<Range>> neighbors = new LinkedHashMap<Node, List<Range>>();
+		for (Map.Entry<Relationship, Range> entry : getRelationships(node, direction, types).entrySet()) {
+			Node neighbor = entry.getKey().getOtherNode(node);
+			List<Range> ranges = neighbors.get(neighbor);
+			if (ranges == null) {
+				ranges = new ArrayList<Range>(1);
+				neighbors.put(neighbor, ranges);
+			}
+			ranges.add(entry.getValue());
+		}
+		for (Map.Entry<Node, List<Range>> entry : neighbors.entrySet()) {
+			if (entry.getValue().size() > 1) {
+				entry.setValue(Range.compactAdjacentRanges(entry.getValue()));
+			}
+		}
+		return neighbors;
+	}
+
+	private Range intersection(Range range) {
+		return range.overlaps(interval) ? range.intersect(interval) : null;
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.VersionContext.KEY_FILTER_PROPERTY;
+
+import java.util.Collection;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Bloom filter over every property key a node has had in any revision, kept on its head in
+ * {@link VersionContext#KEY_FILTER_PROPERTY}. Reads of keys the filter rules out need not walk the history. Nodes
+ * without a filter, such as ones versioned before filters existed, are read the long way.
+ */
+final class KeyFilter {
+	private static final int WORDS = 4;
+	private static final int BITS = WORDS * 64;
+	private static final int HASHES = 3;
+
+	private KeyFilter() {
+	}
+
+	static long[] empty() {
+		return new long[WORDS];
+	}
+
+	static long[] build(Collection<String> keys) {
+		long[] filter = empty();
+		for (String key : keys) {
+			for (int i = 0; i < HASHES; i++) {
+				int bit = bit(key, i);
+				filter[bit >>> 6] |= 1L << bit;
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Returns the filter holding the keys of both, or {@code b} if {@code a} is {@code null}.
+	 */
+	static long[] union(long[] a, long[] b) {
+		if (a == null) {
+			return b;
+		}
+		long[] union = a.clone();
+		for (int i = 0; i < WORDS; i++) {
+			union[i] |= b[i];
+		}
+		return union;
+	}
+
+	/**
+	 * Adds {@code keys} to the filter of {@code node}, writing it back only if it changed. Nodes without a filter keep
+	 * having none, since one started now would miss their older keys.
+	 */
+	static void addAll(Node node, Collection<String> keys) {
+		long[] filter = (long[]) node.getProperty(KEY_FILTER_PROPERTY, null);
+		if (filter == null) {
+			return;
+		}
+		long[] updated = null;
+		for (String key : keys) {
+			for (int i = 0; i < HASHES; i++) {
+				int bit = bit(key, i);
+				if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+					if (updated == null) {
+						updated = filter.clone();
+					}
+					updated[bit >>> 6] |= 1L << bit;
+				}
+			}
+		}
+		if (updated != null) {
+			node.setProperty(KEY_FILTER_PROPERTY, updated);
+		}
+	}
+
+	/**
+	 * False only if {@code node} has never had {@code key}.
+	 */
+	static boolean mightHave(Node node, String key) {
+		Object filter = node.getProperty(KEY_FILTER_PROPERTY, null);
+		return !(filter instanceof long[]) || mightContain((long[]) filter, key);
+	}
+
+	static boolean mightContain(long[] filter, String key) {
+		for (int i = 0; i < HASHES; i++) {
+			int bit = bit(key, i);
+			if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean containsAll(long[] filter, Collection<String> keys) {
+		for (String key : keys) {
+			if (!mightContain(filter, key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Double hashing: the i-th probe is {@code h1 + i * h2}, with {@code h2} a remix of the string hash.
+	 */
+	private static int bit(String key, int i) {
+		int h1 = key.hashCode();
+		int h2 = h1 * 0x9E3779B9;
+		h2 ^= h2 >>> 16;
+		return (h1 + i * (h2 | 1)) & (BITS - 1);
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs.
+ */
+class LongList {
+	private long[] values;
+	private int size;
+
+	LongList() {
+		this(16);
+	}
+
+	LongList(int initialCapacity) {
+		values = new long[Math.max(1, initialCapacity)];
+	}
+
+	void add(long value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	long get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index [" + index + "] of [" + size + "].");
+		}
+		return values[index];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	long[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long to long, for id bookkeeping without boxing. {@link Long#MIN_VALUE} cannot be used
+ * as a key. Not thread safe.
+ */
+class LongLongMap {
+	private static final long EMPTY = Long.MIN_VALUE;
+	private static final double MAX_LOAD = 0.6;
+
+	private long[] keys;
+	private long[] values;
+	private int size;
+
+	LongLongMap() {
+		this(16);
+	}
+
+	LongLongMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new long[capacity];
+	}
+
+	/**
+	 * Maps {@code key} to {@code value}, returning the previous value or {@code missing}.
+	 */
+	long put(long key, long value, long missing) {
+		int slot = slot(key);
+		if (keys[slot] == key) {
+			long previous = values[slot];
+			values[slot] = value;
+			return previous;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > keys.length * MAX_LOAD) {
+			grow();
+		}
+		return missing;
+	}
+
+	void put(long key, long value) {
+		put(key, value, 0);
+	}
+
+	long get(long key, long missing) {
+		int slot = slot(key);
+		return keys[slot] == key ? values[slot] : missing;
+	}
+
+	boolean containsKey(long key) {
+		return keys[slot(key)] == key;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/**
+	 * Bytes held by the backing arrays.
+	 */
+	long memoryBytes() {
+		return 16L * keys.length;
+	}
+
+	/**
+	 * Number of slots, for iterating with {@link #isUsed(int)}, {@link #keyAt(int)} and {@link #valueAt(int)}.
+	 */
+	int capacity() {
+		return keys.length;
+	}
+
+	boolean isUsed(int slot) {
+		return keys[slot] != EMPTY;
+	}
+
+	long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	long valueAt(int slot) {
+		return values[slot];
+	}
+
+	private int slot(long key) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Key [" + key + "] is reserved.");
+		}
+		int mask = keys.length - 1;
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i], 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Keeps history off-graph in append-only, memory-mapped segment files. Each record holds one revision of one node:
+ *
+ * <pre>
+ * int payloadLength | long nodeId | long from | long to | payload
+ * </pre>
+ *
+ * The length is written last, so a record torn by a crash reads as the end of the segment. An in-memory index from
+ * node id to record positions is rebuilt by a sequential scan when the store is opened. When records overlap, which
+ * happens when a transaction that appended one rolled back, the most recently appended record wins.
+ */
+public class MappedFileHistoryStore implements HistoryStore {
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final String SEGMENT_PREFIX = "history-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 8;
+	// Index entries are packed as from, to, segment << 32 | offset.
+	private static final int INDEX_ENTRY_SIZE = 3;
+
+	private final File directory;
+	private final int segmentSize;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final Map<Long, long[]> index = new ConcurrentHashMap<Long, long[]>();
+
+	public MappedFileHistoryStore(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public MappedFileHistoryStore(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create history directory [" + directory + "].");
+		}
+		openExistingSegments();
+	}
+
+	private void openExistingSegments() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		for (String name : names) {
+			File file = new File(directory, name);
+			Segment segment = new Segment(file, (int) file.length());
+			segments.add(segment);
+			scan(segments.size() - 1, segment);
+		}
+	}
+
+	private void scan(int segmentNumber, Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+				break;
+			}
+			long nodeId = buffer.getLong(position + 4);
+			long from = buffer.getLong(position + 12);
+			long to = buffer.getLong(position + 20);
+			addToIndex(nodeId, from, to, segmentNumber, position);
+			position += RECORD_HEADER_SIZE + length;
+		}
+		segment.writePosition = position;
+	}
+
+	@Override
+	public synchronized void append(Node node, Map<String, Object> properties, Range range) {
+		byte[] payload = PropertyCodec.encode(properties);
+		int recordSize = RECORD_HEADER_SIZE + payload.length;
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.writePosition + recordSize + 4 > segment.buffer.capacity()) {
+			segment = newSegment(Math.max(segmentSize, recordSize + 4));
+		}
+		MappedByteBuffer buffer = segment.buffer;
+		int position = segment.writePosition;
+		buffer.putLong(position + 4, node.getId());
+		buffer.putLong(position + 12, range.from());
+		buffer.putLong(position + 20, range.to());
+		ByteBuffer payloadBuffer = buffer.duplicate();
+		payloadBuffer.position(position + RECORD_HEADER_SIZE);
+		payloadBuffer.put(payload);
+		buffer.putInt(position, payload.length);
+		segment.writePosition = position + recordSize;
+		addToIndex(node.getId(), range.from(), range.to(), segments.size() - 1, position);
+	}
+
+	private Segment newSegment(int size) {
+		File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, segments.size(), SEGMENT_SUFFIX));
+		try {
+			Segment segment = new Segment(file, size);
+			segments.add(segment);
+			return segment;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not create history segment [" + file + "].", e);
+		}
+	}
+
+	private void addToIndex(long nodeId, long from, long to, int segmentNumber, int offset) {
+		long[] entries = index.get(nodeId);
+		int length = entries == null ? 0 : entries.length;
+		long[] newEntries = entries == null ? new long[INDEX_ENTRY_SIZE] : Arrays.copyOf(entries, length + INDEX_ENTRY_SIZE);
+		newEntries[length] = from;
+		newEntries[length + 1] = to;
+		newEntries[length + 2] = ((long) segmentNumber << 32) | offset;
+		index.put(nodeId, newEntries);
+	}
+
+	@Override
+	public PropertyContainer getPropertyHolder(Node node, long version) {
+		long[] entries = index.get(node.getId());
+		if (entries == null) {
+			return null;
+		}
+		for (int i = entries.length - INDEX_ENTRY_SIZE; i >= 0; i -= INDEX_ENTRY_SIZE) {
+			if (entries[i] <= version && version <= entries[i + 1]) {
+				return new HistoricProperties(node.getGraphDatabase(), read(entries[i + 2]));
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public long getFirstVersion(Node node) {
+		long[] entries = index.get(node.getId());
+		if (entries == null) {
+			return -1;
+		}
+		long first = Long.MAX_VALUE;
+		for (int i = 0; i < entries.length; i += INDEX_ENTRY_SIZE) {
+			first = Math.min(first, entries[i]);
+		}
+		return first;
+	}
+
+	private Map<String, Object> read(long pointer) {
+		Segment segment;
+		synchronized (this) {
+			segment = segments.get((int) (pointer >>> 32));
+		}
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int position = (int) pointer;
+		byte[] payload = new byte[buffer.getInt(position)];
+		buffer.position(position + RECORD_HEADER_SIZE);
+		buffer.get(payload);
+		return PropertyCodec.decode(payload);
+	}
+
+	/**
+	 * Forces all appended records to disk.
+	 */
+	public synchronized void flush() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		for (Segment segment : segments) {
+			segment.file.close();
+		}
+		segments.clear();
+		index.clear();
+	}
+
+	private static class Segment {
+		private final RandomAccessFile file;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+
+		Segment(File path, int size) throws IOException {
+			this.file = new RandomAccessFile(path, "rw");
+			this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+}
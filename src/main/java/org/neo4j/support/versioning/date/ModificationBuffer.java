@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the previous values of modified node properties, grouped by node id, within a memory bound. Entries are
+ * held in memory until their estimated size passes {@code maxBufferedBytes}; then they are written to temporary spill
+ * files partitioned by node id, so that every node's entries end up in one partition and each partition can be
+ * grouped in memory on its own. A partition that does not fit in the bound when read back is partitioned again by the
+ * next digit of the node ids, so only the entries of a single node must fit in memory at once. Not thread safe.
+ */
+class ModificationBuffer {
+	interface NodeHandler {
+		/**
+		 * Called once per modified node; a {@code null} previous value means the key did not exist.
+		 */
+		void modified(long nodeId, Map<String, Object> previousValues) throws IOException;
+	}
+
+	static final int SPILL_PARTITIONS = 64;
+	/**
+	 * Levels after which partitioning by another base-64 digit cannot split 64-bit node ids any further.
+	 */
+	private static final int MAX_SPILL_LEVELS = 11;
+
+	private final long maxBufferedBytes;
+	private final File spillDirectory;
+	private final LongLongMap indexByNode = new LongLongMap();
+	private final LongList nodeIds = new LongList();
+	private final List<Map<String, Object>> previousValues = new ArrayList<Map<String, Object>>();
+	private final List<SpillFiles> openSpills = new ArrayList<SpillFiles>();
+	private long bufferedBytes;
+	private long peakBufferedBytes;
+	private long spilledBytes;
+	private long entryCount;
+	private SpillFiles spill;
+
+	/**
+	 * @param maxBufferedBytes {@link Long#MAX_VALUE} to never spill.
+	 */
+	ModificationBuffer(long maxBufferedBytes, File spillDirectory) {
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.spillDirectory = spillDirectory;
+	}
+
+	void add(long nodeId, String key, Object previousValue) throws IOException {
+		entryCount++;
+		buffer(nodeId, key, previousValue);
+		if (bufferedBytes > maxBufferedBytes) {
+			if (spill == null) {
+				spill = new SpillFiles(0);
+			}
+			spill.write();
+		}
+	}
+
+	private void buffer(long nodeId, String key, Object previousValue) {
+		long index = indexByNode.get(nodeId, -1);
+		if (index < 0) {
+			index = nodeIds.size();
+			indexByNode.put(nodeId, index);
+			nodeIds.add(nodeId);
+			previousValues.add(new HashMap<String, Object>(4));
+			bufferedBytes += 64;
+		}
+		previousValues.get((int) index).put(key, previousValue);
+		bufferedBytes += estimateSize(key, previousValue);
+		peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes + indexByNode.memoryBytes());
+	}
+
+	boolean isEmpty() {
+		return entryCount == 0;
+	}
+
+	/**
+	 * Hands every modified node to {@code handler}, partition by partition if anything was spilled.
+	 */
+	void forEachNode(NodeHandler handler) throws IOException {
+		if (spill == null) {
+			handleBuffered(handler);
+			return;
+		}
+		spill.write();
+		drain(spill, handler);
+	}
+
+	/**
+	 * Reads back each partition of {@code spilled} and hands its nodes to {@code handler}, partitioning it again while
+	 * it does not fit.
+	 */
+	private void drain(SpillFiles spilled, NodeHandler handler) throws IOException {
+		spilled.finishWriting();
+		for (int partition = 0; partition < SPILL_PARTITIONS; partition++) {
+			SpillFiles again = null;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spilled.files[partition])));
+			try {
+				for (long record = 0; record < spilled.records[partition]; record++) {
+					long nodeId = in.readLong();
+					String key = in.readUTF();
+					buffer(nodeId, key, in.readBoolean() ? PropertyCodec.readValue(in) : null);
+					if (bufferedBytes > maxBufferedBytes && nodeIds.size() > 1 && spilled.level + 1 < MAX_SPILL_LEVELS) {
+						if (again == null) {
+							again = new SpillFiles(spilled.level + 1);
+						}
+						again.write();
+					}
+				}
+			} finally {
+				in.close();
+			}
+			spilled.delete(partition);
+			if (again == null) {
+				handleBuffered(handler);
+			} else {
+				again.write();
+				drain(again, handler);
+			}
+		}
+		openSpills.remove(spilled);
+	}
+
+	private void handleBuffered(NodeHandler handler) throws IOException {
+		for (int i = 0; i < nodeIds.size(); i++) {
+			handler.modified(nodeIds.get(i), previousValues.get(i));
+		}
+		clearBuffered();
+	}
+
+	private void clearBuffered() {
+		indexByNode.clear();
+		nodeIds.clear();
+		previousValues.clear();
+		bufferedBytes = 0;
+	}
+
+	/**
+	 * Deletes any spill files.
+	 */
+	void close() {
+		for (SpillFiles spilled : openSpills) {
+			for (int partition = 0; partition < SPILL_PARTITIONS; partition++) {
+				spilled.delete(partition);
+			}
+		}
+		openSpills.clear();
+		spill = null;
+	}
+
+	/**
+	 * Highest estimated memory held at once, in bytes.
+	 */
+	long getPeakBufferedBytes() {
+		return peakBufferedBytes;
+	}
+
+	long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	long getEntryCount() {
+		return entryCount;
+	}
+
+	private static long estimateSize(String key, Object value) {
+		long size = 48 + 2L * key.length();
+		if (value instanceof String) {
+			size += 40 + 2L * ((String) value).length();
+		} else if (value instanceof String[]) {
+			for (String element : (String[]) value) {
+				size += 48 + 2L * element.length();
+			}
+		} else if (value != null && value.getClass().isArray()) {
+			size += 16 + 8L * Array.getLength(value);
+		} else {
+			size += 16;
+		}
+		return size;
+	}
+
+	/**
+	 * One set of spill partitions. Level {@code n} partitions by the {@code n}-th base-64 digit of the node id, so
+	 * the nodes of one partition are spread over all partitions of the next level.
+	 */
+	private class SpillFiles {
+		private final int level;
+		private final File[] files = new File[SPILL_PARTITIONS];
+		private final DataOutputStream[] streams = new DataOutputStream[SPILL_PARTITIONS];
+		private final long[] records = new long[SPILL_PARTITIONS];
+
+		SpillFiles(int level) throws IOException {
+			this.level = level;
+			openSpills.add(this);
+			for (int partition = 0; partition < SPILL_PARTITIONS; partition++) {
+				files[partition] = File.createTempFile("versioning-spill-", "." + level + "." + partition, spillDirectory);
+				streams[partition] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[partition])));
+			}
+		}
+
+		/**
+		 * Moves everything buffered to these partitions.
+		 */
+		void write() throws IOException {
+			for (int i = 0; i < nodeIds.size(); i++) {
+				long nodeId = nodeIds.get(i);
+				int partition = (int) (((nodeId & Long.MAX_VALUE) >>> (6 * level)) % SPILL_PARTITIONS);
+				DataOutputStream out = streams[partition];
+				for (Map.Entry<String, Object> entry : previousValues.get(i).entrySet()) {
+					int before = out.size();
+					out.writeLong(nodeId);
+					out.writeUTF(entry.getKey());
+					out.writeBoolean(entry.getValue() != null);
+					if (entry.getValue() != null) {
+						PropertyCodec.writeValue(out, entry.getValue());
+					}
+					spilledBytes += out.size() - before;
+					records[partition]++;
+				}
+			}
+			clearBuffered();
+		}
+
+		void finishWriting() throws IOException {
+			for (DataOutputStream stream : streams) {
+				stream.close();
+			}
+		}
+
+		void delete(int partition) {
+			try {
+				streams[partition].close();
+			} catch (IOException e) {
+				// deleted below either way
+			}
+			files[partition].delete();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+/**
+ * Properties of many nodes read at one version, see
+ * {@link VersionContext#getProperties(org.neo4j.graphdb.GraphDatabaseService, long[], String[])}. Rows are ordered by
+ * ascending node id, values are stored column-wise per key.
+ */
+public class PropertyBatch {
+	private final long[] nodeIds;
+	private final String[] keys;
+	private final boolean[] present;
+	private final Object[][] values;
+
+	PropertyBatch(long[] sortedNodeIds, String[] keys) {
+		this.nodeIds = sortedNodeIds;
+		this.keys = keys;
+		this.present = new boolean[sortedNodeIds.length];
+		this.values = new Object[keys.length][sortedNodeIds.length];
+	}
+
+	public int size() {
+		return nodeIds.length;
+	}
+
+	public long nodeId(int row) {
+		return nodeIds[row];
+	}
+
+	/**
+	 * Whether the node at {@code row} existed at the version read.
+	 */
+	public boolean isPresent(int row) {
+		return present[row];
+	}
+
+	public int keyIndex(String key) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i].equals(key)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Key [" + key + "] was not read.");
+	}
+
+	public Object get(int row, int key) {
+		return values[key][row];
+	}
+
+	public long getLong(int row, int key, long defaultValue) {
+		Object value = values[key][row];
+		return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+	}
+
+	public double getDouble(int row, int key, double defaultValue) {
+		Object value = values[key][row];
+		return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+	}
+
+	/**
+	 * All values read for one key, indexed by row.
+	 */
+	public Object[] column(int key) {
+		return values[key];
+	}
+
+	String[] keys() {
+		return keys;
+	}
+
+	void set(int row, int key, Object value) {
+		values[key][row] = value;
+	}
+
+	void setPresent(int row) {
+		present[row] = true;
+	}
+
+	void clearRow(int row) {
+		present[row] = false;
+		for (Object[] column : values) {
+			column[row] = null;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary form of property maps for history kept outside the graph. Handles every value type Neo4j can store.
+ */
+public class PropertyCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte BOOLEAN = 1;
+	private static final byte BYTE = 2;
+	private static final byte SHORT = 3;
+	private static final byte CHAR = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte STRING = 9;
+	private static final byte ARRAY = 16;
+
+	private PropertyCodec() {
+	}
+
+	public static byte[] encode(Map<String, Object> properties) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeProperties(out, properties);
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not encode " + properties, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static Map<String, Object> decode(byte[] data) {
+		try {
+			return readProperties(new DataInputStream(new ByteArrayInputStream(data)));
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt property data.", e);
+		}
+	}
+
+	public static void writeProperties(DataOutput out, Map<String, Object> properties) throws IOException {
+		out.writeInt(properties.size());
+		for (Map.Entry<String, Object> entry : properties.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	public static Map<String, Object> readProperties(DataInput in) throws IOException {
+		int count = in.readInt();
+		Map<String, Object> properties = new HashMap<String, Object>(count * 2);
+		for (int i = 0; i < count; i++) {
+			String key = readString(in);
+			properties.put(key, readValue(in));
+		}
+		return properties;
+	}
+
+	public static void writeValue(DataOutput out, Object value) throws IOException {
+		if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof boolean[]) {
+			boolean[] array = (boolean[]) value;
+			writeArrayHeader(out, BOOLEAN, array.length);
+			for (boolean item : array) {
+				out.writeBoolean(item);
+			}
+		} else if (value instanceof byte[]) {
+			byte[] array = (byte[]) value;
+			writeArrayHeader(out, BYTE, array.length);
+			out.write(array);
+		} else if (value instanceof short[]) {
+			short[] array = (short[]) value;
+			writeArrayHeader(out, SHORT, array.length);
+			for (short item : array) {
+				out.writeShort(item);
+			}
+		} else if (value instanceof char[]) {
+			char[] array = (char[]) value;
+			writeArrayHeader(out, CHAR, array.length);
+			for (char item : array) {
+				out.writeChar(item);
+			}
+		} else if (value instanceof int[]) {
+			int[] array = (int[]) value;
+			writeArrayHeader(out, INT, array.length);
+			for (int item : array) {
+				out.writeInt(item);
+			}
+		} else if (value instanceof long[]) {
+			long[] array = (long[]) value;
+			writeArrayHeader(out, LONG, array.length);
+			for (long item : array) {
+				out.writeLong(item);
+			}
+		} else if (value instanceof float[]) {
+			float[] array = (float[]) value;
+			writeArrayHeader(out, FLOAT, array.length);
+			for (float item : array) {
+				out.writeFloat(item);
+			}
+		} else if (value instanceof double[]) {
+			double[] array = (double[]) value;
+			writeArrayHeader(out, DOUBLE, array.length);
+			for (double item : array) {
+				out.writeDouble(item);
+			}
+		} else if (value instanceof String[]) {
+			String[] array = (String[]) value;
+			writeArrayHeader(out, STRING, array.length);
+			for (String item : array) {
+				writeString(out, item);
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported property value [" + value + "].");
+		}
+	}
+
+	private static void writeArrayHeader(DataOutput out, byte type, int length) throws IOException {
+		out.writeByte(ARRAY | type);
+		out.writeInt(length);
+	}
+
+	public static Object readValue(DataInput in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case BOOLEAN:
+			return in.readBoolean();
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		default:
+			return readArray(in, (byte) (type & ~ARRAY));
+		}
+	}
+
+	private static Object readArray(DataInput in, byte type) throws IOException {
+		int length = in.readInt();
+		switch (type) {
+		case BOOLEAN: {
+			boolean[] array = new boolean[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readBoolean();
+			}
+			return array;
+		}
+		case BYTE: {
+			byte[] array = new byte[length];
+			in.readFully(array);
+			return array;
+		}
+		case SHORT: {
+			short[] array = new short[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readShort();
+			}
+			return array;
+		}
+		case CHAR: {
+			char[] array = new char[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readChar();
+			}
+			return array;
+		}
+		case INT: {
+			int[] array = new int[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readInt();
+			}
+			return array;
+		}
+		case LONG: {
+			long[] array = new long[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readLong();
+			}
+			return array;
+		}
+		case FLOAT: {
+			float[] array = new float[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readFloat();
+			}
+			return array;
+		}
+		case DOUBLE: {
+			double[] array = new double[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.readDouble();
+			}
+			return array;
+		}
+		case STRING: {
+			String[] array = new String[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = readString(in);
+			}
+			return array;
+		}
+		default:
+			throw new IOException("Unknown value type [" + type + "].");
+		}
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
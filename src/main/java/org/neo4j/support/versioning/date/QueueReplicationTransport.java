@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReplicationTransport} between a primary and a standby in the same process. Holds up to {@code capacity}
+ * records; senders wait while it is full.
+ */
+public class QueueReplicationTransport implements ReplicationTransport {
+	private final BlockingQueue<VersionRecord> queue;
+
+	public QueueReplicationTransport(int capacity) {
+		this.queue = new LinkedBlockingQueue<VersionRecord>(capacity);
+	}
+
+	@Override
+	public void send(List<VersionRecord> records) {
+		try {
+			for (VersionRecord record : records) {
+				queue.put(record);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sending.", e);
+		}
+	}
+
+	@Override
+	public List<VersionRecord> receive(int maxRecords, long timeout, TimeUnit unit) throws InterruptedException {
+		List<VersionRecord> records = new ArrayList<VersionRecord>();
+		VersionRecord first = queue.poll(timeout, unit);
+		if (first != null) {
+			records.add(first);
+			queue.drainTo(records, maxRecords - 1);
+		}
+		return records;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ships the {@link VersionRecord} of every version committed through the handler it is set on to a
+ * {@link ReplicationTransport}, in version order and in batches, from a background thread. A failed send is retried
+ * until it succeeds or the shipper is closed. Versions are shipped strictly in order: the shipper waits for each one
+ * however late its commit hands it over. Versions whose changes were not captured, because they were committed before
+ * the shipper was set or were skipped by a {@link VersionChainChecker} repair, are shipped as
+ * {@linkplain VersionRecord#isMissing() missing} and stop the replica, which must then be seeded again; set the
+ * shipper before the primary takes writes to avoid that.
+ * <p>
+ * Committing threads wait for the shipper only while it is a whole buffer behind, and at most for the publish wait.
+ * A shipper still that far behind, for instance through a long transport outage, is then dropped: it ships nothing more
+ * and reports {@link #isOutOfSync()}.
+ *
+ * <pre>
+ * ReplicationShipper shipper = new ReplicationShipper(transport, eventHandler.getLatestVersion() + 1);
+ * eventHandler.setReplicationShipper(shipper);
+ * </pre>
+ */
+public class ReplicationShipper {
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	private static final long RETRY_MILLIS = 100;
+
+	private final VersionRingBuffer<VersionRecord> buffer;
+	private final VersionRingBuffer<VersionRecord>.Consumer consumer;
+	private final AtomicLong shippedVersion;
+	private final AtomicLong failedSends = new AtomicLong();
+	private volatile boolean closed;
+
+	public ReplicationShipper(ReplicationTransport transport, long firstVersion) {
+		this(transport, firstVersion, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public ReplicationShipper(final ReplicationTransport transport, long firstVersion, int capacity, int maxBatchSize) {
+		this.buffer = new VersionRingBuffer<VersionRecord>(firstVersion, capacity, maxBatchSize, new VersionRingBuffer.MissingElements<VersionRecord>() {
+			@Override
+			public VersionRecord missing(long version) {
+				return VersionRecord.missing(version);
+			}
+		});
+		this.shippedVersion = new AtomicLong(firstVersion - 1);
+		this.consumer = buffer.subscribe("replication-shipper", new VersionRingBuffer.BatchHandler<VersionRecord>() {
+			@Override
+			public void handle(List<VersionRecord> batch) throws Exception {
+				long primaryVersion = buffer.getHighestPublished();
+				List<VersionRecord> records = new ArrayList<VersionRecord>(batch.size());
+				for (VersionRecord record : batch) {
+					records.add(record.withPrimaryVersion(primaryVersion));
+				}
+				send(transport, records);
+			}
+		});
+	}
+
+	private void send(ReplicationTransport transport, List<VersionRecord> batch) throws IOException, InterruptedException {
+		while (true) {
+			try {
+				transport.send(batch);
+				shippedVersion.set(batch.get(batch.size() - 1).getVersion());
+				return;
+			} catch (IOException e) {
+				failedSends.incrementAndGet();
+				if (closed || consumer.isClosed()) {
+					throw e;
+				}
+				Thread.sleep(RETRY_MILLIS);
+			}
+		}
+	}
+
+	void publish(VersionRecord record) {
+		buffer.publish(record.getVersion(), record);
+	}
+
+	/**
+	 * Publishes missing records for versions {@code from} to {@code to} that were not published.
+	 */
+	void publishMissing(long from, long to) {
+		buffer.publishMissing(from, to);
+	}
+
+	long getFirstVersion() {
+		return buffer.getFirstVersion();
+	}
+
+	/**
+	 * The highest version handed to the transport.
+	 */
+	public long getShippedVersion() {
+		return shippedVersion.get();
+	}
+
+	/**
+	 * Number of sends that failed and were retried.
+	 */
+	public long getFailedSendCount() {
+		return failedSends.get();
+	}
+
+	/**
+	 * Whether the shipper was dropped for holding commits back; versions from then on are not shipped.
+	 */
+	public boolean isOutOfSync() {
+		return consumer.isOutOfSync();
+	}
+
+	/**
+	 * Longest a committing thread waits for the shipper when it is a whole buffer behind before dropping it; one second
+	 * by default.
+	 */
+	public void setMaxPublishWait(long timeout, TimeUnit unit) {
+		buffer.setMaxPublishWait(timeout, unit);
+	}
+
+	/**
+	 * Stops shipping; versions not yet sent are dropped.
+	 */
+	public void close() {
+		closed = true;
+		consumer.close();
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries {@link VersionRecord}s from a {@link ReplicationShipper} to a {@link StandbyReplica}, in version order. Records
+ * may be delivered more than once, for instance after a replica restarts; replicas skip versions they already applied.
+ */
+public interface ReplicationTransport {
+	/**
+	 * Sends {@code records}, consecutive and in version order.
+	 */
+	void send(List<VersionRecord> records) throws IOException;
+
+	/**
+	 * Returns up to {@code maxRecords} records in version order, waiting up to {@code timeout} for the first. Empty if
+	 * none arrived in time.
+	 */
+	List<VersionRecord> receive(int maxRecords, long timeout, TimeUnit unit) throws IOException, InterruptedException;
+
+	void close() throws IOException;
+}
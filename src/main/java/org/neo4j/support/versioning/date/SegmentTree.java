@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+
+/**
+ * Growable segment tree over positions 0..n-1, giving point updates and range count, min, max and sum in O(log n).
+ * Positions holding {@link Double#NaN} are empty. Not thread safe.
+ */
+class SegmentTree {
+	static final int COUNT = 0;
+	static final int MIN = 1;
+	static final int MAX = 2;
+	static final int SUM = 3;
+
+	// Cell i covers cells 2i and 2i + 1, leaves start at capacity; the capacity is kept a power of two.
+	private long[] count;
+	private double[] min;
+	private double[] max;
+	private double[] sum;
+
+	SegmentTree() {
+		this(16);
+	}
+
+	SegmentTree(int initialCapacity) {
+		allocate(Integer.highestOneBit(Math.max(1, initialCapacity - 1)) * 2);
+	}
+
+	void set(int position, double value) {
+		if (position < 0) {
+			throw new IllegalArgumentException("Position [" + position + "] is below 0.");
+		}
+		ensureCapacity(position);
+		int i = capacity() + position;
+		if (Double.isNaN(value)) {
+			clear(i);
+		} else {
+			count[i] = 1;
+			min[i] = value;
+			max[i] = value;
+			sum[i] = value;
+		}
+		for (i >>= 1; i > 0; i >>= 1) {
+			combine(i);
+		}
+	}
+
+	/**
+	 * Count, min, max and sum of positions from..to inclusive, indexed by {@link #COUNT}, {@link #MIN}, {@link #MAX} and
+	 * {@link #SUM}.
+	 */
+	double[] query(int from, int to) {
+		double[] result = { 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0 };
+		int left = capacity() + Math.max(0, from);
+		int right = capacity() + Math.min(to, capacity() - 1) + 1;
+		for (; left < right; left >>= 1, right >>= 1) {
+			if ((left & 1) == 1) {
+				add(result, left++);
+			}
+			if ((right & 1) == 1) {
+				add(result, --right);
+			}
+		}
+		return result;
+	}
+
+	private void add(double[] result, int i) {
+		result[COUNT] += count[i];
+		result[MIN] = Math.min(result[MIN], min[i]);
+		result[MAX] = Math.max(result[MAX], max[i]);
+		result[SUM] += sum[i];
+	}
+
+	private void combine(int i) {
+		count[i] = count[2 * i] + count[2 * i + 1];
+		min[i] = Math.min(min[2 * i], min[2 * i + 1]);
+		max[i] = Math.max(max[2 * i], max[2 * i + 1]);
+		sum[i] = sum[2 * i] + sum[2 * i + 1];
+	}
+
+	private void clear(int i) {
+		count[i] = 0;
+		min[i] = Double.POSITIVE_INFINITY;
+		max[i] = Double.NEGATIVE_INFINITY;
+		sum[i] = 0;
+	}
+
+	private int capacity() {
+		return count.length / 2;
+	}
+
+	private void allocate(int capacity) {
+		count = new long[capacity * 2];
+		min = new double[capacity * 2];
+		max = new double[capacity * 2];
+		sum = new double[capacity * 2];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	private void ensureCapacity(int position) {
+		if (position < capacity()) {
+			return;
+		}
+		int oldCapacity = capacity();
+		long[] oldCount = count;
+		double[] oldMin = min;
+		double[] oldMax = max;
+		double[] oldSum = sum;
+		int newCapacity = oldCapacity;
+		while (position >= newCapacity) {
+			if (newCapacity >= 1 << 29) {
+				throw new IllegalStateException("Position [" + position + "] exceeds the tree's capacity.");
+			}
+			newCapacity *= 2;
+		}
+		allocate(newCapacity);
+		System.arraycopy(oldCount, oldCapacity, count, newCapacity, oldCapacity);
+		System.arraycopy(oldMin, oldCapacity, min, newCapacity, oldCapacity);
+		System.arraycopy(oldMax, oldCapacity, max, newCapacity, oldCapacity);
+		System.arraycopy(oldSum, oldCapacity, sum, newCapacity, oldCapacity);
+		for (int i = newCapacity - 1; i > 0; i--) {
+			combine(i);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease-based registry of versions readers are working at. While a pin is live, reclaimers such as
+ * {@link HistoryTieringJob} leave in place every revision that version can see. Pins expire unless renewed within
+ * their lease, so a reader that dies never holds reclamation back for long.
+ */
+public class SnapshotPins {
+	public static final long DEFAULT_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private final TreeSet<Pin> pins = new TreeSet<Pin>();
+	private long nextSequence;
+	private long reclaimCutoff = Long.MIN_VALUE;
+	private boolean reclaiming;
+
+	public Pin pin(long version) {
+		return pin(version, DEFAULT_LEASE_MILLIS);
+	}
+
+	/**
+	 * Pins {@code version} for {@code leaseMillis}, waiting if a reclaimer is currently moving history it needs.
+	 */
+	public synchronized Pin pin(long version, long leaseMillis) {
+		if (leaseMillis <= 0) {
+			throw new IllegalArgumentException("Lease must be positive, was [" + leaseMillis + "].");
+		}
+		while (version < reclaimCutoff) {
+			awaitReclaim();
+		}
+		Pin pin = new Pin(version, nextSequence++, leaseMillis);
+		pins.add(pin);
+		return pin;
+	}
+
+	/**
+	 * The lowest version with a live pin, or {@link Long#MAX_VALUE} without any.
+	 */
+	public synchronized long getLowestPinnedVersion() {
+		Iterator<Pin> iterator = pins.iterator();
+		while (iterator.hasNext()) {
+			Pin pin = iterator.next();
+			if (!pin.isExpired()) {
+				return pin.version;
+			}
+			iterator.remove();
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public synchronized int getPinCount() {
+		getLowestPinnedVersion();
+		int live = 0;
+		for (Pin pin : pins) {
+			if (!pin.isExpired()) {
+				live++;
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Starts reclaiming revisions that ended before the returned version: {@code desiredCutoff} lowered to the lowest
+	 * pin. Until {@link #endReclaim()}, pins below it wait. One reclaimer at a time; others wait here.
+	 */
+	synchronized long beginReclaim(long desiredCutoff) {
+		while (reclaiming) {
+			awaitReclaim();
+		}
+		reclaiming = true;
+		reclaimCutoff = Math.min(desiredCutoff, getLowestPinnedVersion());
+		return reclaimCutoff;
+	}
+
+	synchronized void endReclaim() {
+		reclaiming = false;
+		reclaimCutoff = Long.MIN_VALUE;
+		notifyAll();
+	}
+
+	private void awaitReclaim() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for history reclamation to finish.", e);
+		}
+	}
+
+	public class Pin implements Comparable<Pin> {
+		private final long version;
+		private final long sequence;
+		private volatile long expiresAtNanos;
+		private volatile boolean released;
+
+		Pin(long version, long sequence, long leaseMillis) {
+			this.version = version;
+			this.sequence = sequence;
+			this.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public boolean isExpired() {
+			return released || System.nanoTime() - expiresAtNanos > 0;
+		}
+
+		/**
+		 * Extends the lease by {@code leaseMillis} from now. Returns false if the pin already expired, in which case
+		 * history for its version may be gone and the reader should pin again.
+		 */
+		public boolean renew(long leaseMillis) {
+			synchronized (SnapshotPins.this) {
+				if (isExpired()) {
+					pins.remove(this);
+					return false;
+				}
+				expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+				return true;
+			}
+		}
+
+		public void release() {
+			synchronized (SnapshotPins.this) {
+				released = true;
+				pins.remove(this);
+			}
+		}
+
+		@Override
+		public int compareTo(Pin other) {
+			if (version != other.version) {
+				return version < other.version ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+
+		@Override
+		public String toString() {
+			return "Pin[version=" + version + (isExpired() ? ", expired" : "") + "]";
+		}
+	}
+}
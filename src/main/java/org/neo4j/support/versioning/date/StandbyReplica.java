@@ -0,0 +1,398 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.Range.range;
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.support.versioning.date.VersionRecord.Change;
+
+/**
+ * Read-only standby of a versioned primary, kept in its own embedded database from the {@link VersionRecord}s a
+ * {@link ReplicationShipper} sends. Records are applied many versions to a transaction, writing heads, history
+ * holders and validity directly so that versions match the primary's; the replica database must not have a
+ * {@link VersioningTransactionEventHandler} of its own. The applied version is stored on {@code stateNode} in the same
+ * transactions, so records delivered again are skipped. Entities are found by their primary ids through legacy
+ * indexes.
+ * <p>
+ * A batch that cannot be applied, for instance because versions are missing or were shipped as
+ * {@linkplain VersionRecord#isMissing() missing}, stops the replica; see {@link #getFailure()}.
+ */
+public class StandbyReplica implements Runnable {
+	public static final String APPLIED_VERSION_PROPERTY = "__applied_version__";
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final String NODE_INDEX = "__replica_nodes__";
+	private static final String RELATIONSHIP_INDEX = "__replica_relationships__";
+	private static final String PRIMARY_ID_KEY = "primary_id";
+	private static final long POLL_MILLIS = 100;
+	private static final long NONE = -1;
+
+	private final GraphDatabaseService graphDb;
+	private final Node stateNode;
+	private final ReplicationTransport transport;
+	private final LongLongMap nodeIds = new LongLongMap();
+	private final LongLongMap relationshipIds = new LongLongMap();
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile long appliedVersion;
+	private volatile long receivedVersion;
+	private volatile long primaryVersion;
+	private volatile Exception failure;
+	private volatile boolean stopRequested;
+	private volatile Thread thread;
+
+	public StandbyReplica(GraphDatabaseService graphDb, Node stateNode, ReplicationTransport transport) {
+		this.graphDb = graphDb;
+		this.stateNode = stateNode;
+		this.transport = transport;
+		this.appliedVersion = (Long) stateNode.getProperty(APPLIED_VERSION_PROPERTY, 0L);
+		this.receivedVersion = appliedVersion;
+		this.primaryVersion = appliedVersion;
+	}
+
+	/**
+	 * Most records applied in one transaction.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Applies records as they arrive, on a background daemon thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Replica already started.");
+		}
+		thread = new Thread(this, "standby-replica");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks the replica to stop after its current batch and waits for it.
+	 */
+	public void stop() throws InterruptedException {
+		stopRequested = true;
+		Thread running = thread;
+		if (running != null) {
+			running.join();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!stopRequested) {
+			List<VersionRecord> records;
+			try {
+				records = transport.receive(batchSize, POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (IOException e) {
+				// The transport may recover, try again.
+				failure = e;
+				sleep();
+				continue;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (records.isEmpty()) {
+				continue;
+			}
+			try {
+				apply(records);
+				failure = null;
+			} catch (RuntimeException e) {
+				failure = e;
+				return;
+			}
+		}
+	}
+
+	private void sleep() {
+		try {
+			Thread.sleep(POLL_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stopRequested = true;
+		}
+	}
+
+	/**
+	 * Applies {@code records} in one transaction, skipping versions already applied.
+	 *
+	 * @throws IllegalStateException if versions between the applied one and the records are missing, or a version to
+	 *             apply was not captured on the primary.
+	 */
+	public synchronized void apply(List<VersionRecord> records) {
+		long applied = appliedVersion;
+		boolean committed = false;
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (VersionRecord record : records) {
+				receivedVersion = Math.max(receivedVersion, record.getVersion());
+				primaryVersion = Math.max(primaryVersion, record.getPrimaryVersion());
+				if (record.getVersion() <= applied) {
+					continue;
+				}
+				if (record.getVersion() != applied + 1) {
+					throw new IllegalStateException("Versions " + (applied + 1) + " to " + (record.getVersion() - 1) + " are missing.");
+				}
+				if (record.isMissing()) {
+					throw new IllegalStateException("Version " + record.getVersion() + " was not captured on the primary; the replica must be seeded again.");
+				}
+				for (Change change : record.getChanges()) {
+					apply(record.getVersion(), change);
+				}
+				applied = record.getVersion();
+			}
+			stateNode.setProperty(APPLIED_VERSION_PROPERTY, applied);
+			tx.success();
+			committed = true;
+		} finally {
+			try {
+				tx.finish();
+			} finally {
+				if (committed) {
+					appliedVersion = applied;
+				} else {
+					// Ids of entities created in the rolled back transaction.
+					nodeIds.clear();
+					relationshipIds.clear();
+				}
+			}
+		}
+	}
+
+	private void apply(long version, Change change) {
+		switch (change.getOperation()) {
+		case CREATE_NODE: {
+			Node node = graphDb.createNode();
+			setProperties(node, change.getProperties());
+			VersionContext.setVersion(node, range(version));
+			node.setProperty(VersionContext.CREATED_VERSION_PROPERTY, version);
+			node.setProperty(VersionContext.KEY_FILTER_PROPERTY, KeyFilter.build(change.getProperties().keySet()));
+			nodeIndex().add(node, PRIMARY_ID_KEY, change.getId());
+			nodeIds.put(change.getId(), node.getId());
+			break;
+		}
+		case CREATE_RELATIONSHIP: {
+			Relationship relationship = node(change.getStartNodeId()).createRelationshipTo(node(change.getEndNodeId()),
+					DynamicRelationshipType.withName(change.getType()));
+			setProperties(relationship, change.getProperties());
+			VersionContext.setVersion(relationship, range(version));
+			relationshipIndex().add(relationship, PRIMARY_ID_KEY, change.getId());
+			relationshipIds.put(change.getId(), relationship.getId());
+			break;
+		}
+		case SET_NODE_PROPERTIES: {
+			Node head = node(change.getId());
+			long startVersion = VersionContext.getStartVersion(head);
+			if (startVersion < version) {
+				InGraphHistoryStore.INSTANCE.append(head, VersioningTransactionEventHandler.historicProps(head, Collections.<String, Object> emptyMap()),
+						range(startVersion, version - 1));
+				VersionContext.setStartVersion(head, version);
+			}
+			setProperties(head, change.getProperties());
+			KeyFilter.addAll(head, change.getProperties().keySet());
+			break;
+		}
+		case SET_RELATIONSHIP_PROPERTIES:
+			setProperties(relationship(change.getId()), change.getProperties());
+			break;
+		case END_NODE: {
+			Node node = node(change.getId());
+			end(node, version, change.getDeletedMarker());
+			// The primary ends the node's relationships along with it, without records of their own.
+			VersioningTransactionEventHandler.endRelationships(node, version, change.getDeletedMarker(), null, null);
+			break;
+		}
+		case END_RELATIONSHIP:
+			end(relationship(change.getId()), version, change.getDeletedMarker());
+			break;
+		case DELETE_RELATIONSHIP: {
+			Relationship relationship = findRelationship(change.getId());
+			if (relationship != null) {
+				relationshipIndex().remove(relationship);
+				relationship.delete();
+				relationshipIds.put(change.getId(), NONE);
+			}
+			break;
+		}
+		case DELETE_NODE: {
+			Node node = findNode(change.getId());
+			if (node != null) {
+				deleteWithHistory(node);
+				nodeIds.put(change.getId(), NONE);
+			}
+			break;
+		}
+		}
+	}
+
+	private static void end(PropertyContainer entity, long version, long deletedMarker) {
+		entity.setProperty(VersionContext.DELETED_PROP_KEY, deletedMarker);
+		VersionContext.setEndVersion(entity, version - 1);
+	}
+
+	private static void setProperties(PropertyContainer entity, Map<String, Object> properties) {
+		for (Map.Entry<String, Object> entry : properties.entrySet()) {
+			if (entry.getValue() == null) {
+				entity.removeProperty(entry.getKey());
+			} else {
+				entity.setProperty(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void deleteWithHistory(Node head) {
+		nodeIndex().remove(head);
+		Node current = head;
+		while (current != null) {
+			Relationship prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+			Node older = null;
+			if (prevVersionRel != null) {
+				older = prevVersionRel.getEndNode();
+				prevVersionRel.delete();
+			}
+			current.delete();
+			current = older;
+		}
+	}
+
+	/**
+	 * The replica's head for the primary node {@code primaryId}, to read through {@link #versionContext(long)}.
+	 */
+	public Node getNode(long primaryId) {
+		return found(single(nodeIndex().get(PRIMARY_ID_KEY, primaryId)), "Node", primaryId);
+	}
+
+	public Relationship getRelationship(long primaryId) {
+		return found(single(relationshipIndex().get(PRIMARY_ID_KEY, primaryId)), "Relationship", primaryId);
+	}
+
+	private static <T> T found(T entity, String kind, long primaryId) {
+		if (entity == null) {
+			throw new NotFoundException(kind + " [" + primaryId + "] of the primary is not on this replica.");
+		}
+		return entity;
+	}
+
+	/**
+	 * Lookups while applying go through id maps, which only the applying thread touches.
+	 */
+	private Node node(long primaryId) {
+		return found(findNode(primaryId), "Node", primaryId);
+	}
+
+	private Relationship relationship(long primaryId) {
+		return found(findRelationship(primaryId), "Relationship", primaryId);
+	}
+
+	private Node findNode(long primaryId) {
+		long id = nodeIds.get(primaryId, NONE);
+		if (id != NONE) {
+			return graphDb.getNodeById(id);
+		}
+		Node node = single(nodeIndex().get(PRIMARY_ID_KEY, primaryId));
+		if (node != null) {
+			nodeIds.put(primaryId, node.getId());
+		}
+		return node;
+	}
+
+	private Relationship findRelationship(long primaryId) {
+		long id = relationshipIds.get(primaryId, NONE);
+		if (id != NONE) {
+			return graphDb.getRelationshipById(id);
+		}
+		Relationship relationship = single(relationshipIndex().get(PRIMARY_ID_KEY, primaryId));
+		if (relationship != null) {
+			relationshipIds.put(primaryId, relationship.getId());
+		}
+		return relationship;
+	}
+
+	private static <T> T single(IndexHits<T> hits) {
+		try {
+			return hits.getSingle();
+		} finally {
+			hits.close();
+		}
+	}
+
+	private Index<Node> nodeIndex() {
+		return graphDb.index().forNodes(NODE_INDEX);
+	}
+
+	private Index<Relationship> relationshipIndex() {
+		return graphDb.index().forRelationships(RELATIONSHIP_INDEX);
+	}
+
+	/**
+	 * Reads the replica as of {@code version}, which should not be above {@link #getAppliedVersion()}.
+	 */
+	public VersionContext versionContext(long version) {
+		return new VersionContext(version, InGraphHistoryStore.INSTANCE);
+	}
+
+	public long getAppliedVersion() {
+		return appliedVersion;
+	}
+
+	public long getReceivedVersion() {
+		return receivedVersion;
+	}
+
+	/**
+	 * The primary's latest committed version, as of the last record received.
+	 */
+	public long getPrimaryVersion() {
+		return primaryVersion;
+	}
+
+	/**
+	 * Versions the primary had committed, as of the last record received, that are not yet applied here.
+	 */
+	public long getLag() {
+		return Math.max(primaryVersion, receivedVersion) - appliedVersion;
+	}
+
+	/**
+	 * Why the replica last failed, {@code null} while it is healthy.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+}
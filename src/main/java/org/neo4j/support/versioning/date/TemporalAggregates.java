@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.support.versioning.Range;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Count, min, max, sum and average of the values numeric node properties held over a range of versions, answered in
+ * O(log n) without reading history. For each node and tracked key, the versions its value changed at are kept with a
+ * {@link SegmentTree} over the values. Values that are absent or not numbers are left out of aggregates.
+ */
+public class TemporalAggregates {
+	private final Map<String, Map<Long, Series>> seriesByKey = new HashMap<String, Map<Long, Series>>();
+
+	public TemporalAggregates(String... keys) {
+		for (String key : keys) {
+			seriesByKey.put(key, new HashMap<Long, Series>());
+		}
+	}
+
+	/**
+	 * Builds aggregates of {@code keys} from the history already in the store. Writes committed while this runs may be
+	 * missed, so run it before registering the aggregates with a handler that sees traffic.
+	 */
+	public static TemporalAggregates rebuild(GraphDatabaseService graphDb, HistoryStore historyStore, String... keys) {
+		TemporalAggregates aggregates = new TemporalAggregates(keys);
+		for (Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+			Range range = VersionContext.getVersion(node);
+			if (range == null || node.hasRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.INCOMING)) {
+				continue;
+			}
+			long version = historyStore.getFirstVersion(node);
+			while (version >= 0 && version < range.from()) {
+				PropertyContainer holder = historyStore.getPropertyHolder(node, version);
+				if (holder == null) {
+					version++;
+					continue;
+				}
+				aggregates.recordAll(node.getId(), holder, version);
+				// Holders without validity of their own are read one version at a time.
+				Range holderRange = VersionContext.getVersion(holder);
+				version = holderRange != null ? holderRange.to() + 1 : version + 1;
+			}
+			aggregates.recordAll(node.getId(), node, range.from());
+			if (range.to() != Long.MAX_VALUE) {
+				aggregates.end(node.getId(), range.to());
+			}
+		}
+		return aggregates;
+	}
+
+	public Set<String> getKeys() {
+		return Collections.unmodifiableSet(seriesByKey.keySet());
+	}
+
+	public boolean tracks(String key) {
+		return seriesByKey.containsKey(key);
+	}
+
+	public Aggregate aggregate(Node node, String key, long fromVersion, long toVersion) {
+		return aggregate(node.getId(), key, fromVersion, toVersion);
+	}
+
+	/**
+	 * Aggregates the values {@code key} held on node {@code nodeId} at any version from {@code fromVersion} to
+	 * {@code toVersion} inclusive. A value held over several of those versions counts once.
+	 */
+	public synchronized Aggregate aggregate(long nodeId, String key, long fromVersion, long toVersion) {
+		Map<Long, Series> series = seriesByKey.get(key);
+		if (series == null) {
+			throw new IllegalArgumentException("Property [" + key + "] is not aggregated.");
+		}
+		Series nodeSeries = series.get(nodeId);
+		return nodeSeries == null ? Aggregate.EMPTY : nodeSeries.aggregate(fromVersion, toVersion);
+	}
+
+	/**
+	 * Applies what a committed version changed: the new values of tracked keys, and the nodes it deleted.
+	 */
+	synchronized void apply(long version, List<Change> changes, LongList endedNodeIds) {
+		for (Change change : changes) {
+			record(change.nodeId, change.key, version, change.value);
+		}
+		for (int i = 0; i < endedNodeIds.size(); i++) {
+			end(endedNodeIds.get(i), version - 1);
+		}
+	}
+
+	private void recordAll(long nodeId, PropertyContainer holder, long version) {
+		for (String key : seriesByKey.keySet()) {
+			record(nodeId, key, version, holder.getProperty(key, null));
+		}
+	}
+
+	private void record(long nodeId, String key, long version, Object value) {
+		Map<Long, Series> series = seriesByKey.get(key);
+		Series nodeSeries = series.get(nodeId);
+		double number = toDouble(value);
+		if (nodeSeries == null) {
+			if (Double.isNaN(number)) {
+				return;
+			}
+			nodeSeries = new Series();
+			series.put(nodeId, nodeSeries);
+		}
+		nodeSeries.record(version, number);
+	}
+
+	private void end(long nodeId, long endVersion) {
+		for (Map<Long, Series> series : seriesByKey.values()) {
+			Series nodeSeries = series.get(nodeId);
+			if (nodeSeries != null) {
+				nodeSeries.endVersion = endVersion;
+			}
+		}
+	}
+
+	private static double toDouble(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+	}
+
+	/**
+	 * The new value of a tracked key, or {@code null} when it was removed.
+	 */
+	static final class Change {
+		final long nodeId;
+		final String key;
+		final Object value;
+
+		Change(long nodeId, String key, Object value) {
+			this.nodeId = nodeId;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	public static final class Aggregate {
+		static final Aggregate EMPTY = new Aggregate(0, Double.NaN, Double.NaN, 0);
+
+		private final long count;
+		private final double min;
+		private final double max;
+		private final double sum;
+
+		Aggregate(long count, double min, double max, double sum) {
+			this.count = count;
+			this.min = min;
+			this.max = max;
+			this.sum = sum;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * {@link Double#NaN} when there are no values, as for {@link #getMax()} and {@link #getAverage()}.
+		 */
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public double getAverage() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+
+		@Override
+		public String toString() {
+			return "Aggregate[count=" + count + ", min=" + min + ", max=" + max + ", sum=" + sum + "]";
+		}
+	}
+
+	/**
+	 * Values of one key on one node, each held from its start version until the next one starts.
+	 */
+	private static final class Series {
+		private long[] starts = new long[4];
+		private double[] values = new double[4];
+		private int size;
+		private final SegmentTree tree = new SegmentTree(4);
+		long endVersion = Long.MAX_VALUE;
+
+		void record(long version, double value) {
+			int index = floor(version);
+			if (index >= 0 && starts[index] == version) {
+				set(index, value);
+				return;
+			}
+			if (index == size - 1) {
+				if (size > 0 && sameValue(values[size - 1], value)) {
+					return;
+				}
+			} else {
+				// Versions committed concurrently can be applied out of order.
+				index++;
+				grow();
+				System.arraycopy(starts, index, starts, index + 1, size - index);
+				System.arraycopy(values, index, values, index + 1, size - index);
+				starts[index] = version;
+				values[index] = value;
+				size++;
+				for (int i = index; i < size; i++) {
+					tree.set(i, values[i]);
+				}
+				return;
+			}
+			grow();
+			starts[size] = version;
+			size++;
+			set(size - 1, value);
+		}
+
+		Aggregate aggregate(long fromVersion, long toVersion) {
+			long to = Math.min(toVersion, endVersion);
+			int last = floor(to);
+			if (fromVersion > to || last < 0) {
+				return Aggregate.EMPTY;
+			}
+			double[] result = tree.query(Math.max(0, floor(fromVersion)), last);
+			if (result[SegmentTree.COUNT] == 0) {
+				return Aggregate.EMPTY;
+			}
+			return new Aggregate((long) result[SegmentTree.COUNT], result[SegmentTree.MIN], result[SegmentTree.MAX], result[SegmentTree.SUM]);
+		}
+
+		private void set(int index, double value) {
+			values[index] = value;
+			tree.set(index, value);
+		}
+
+		/**
+		 * Index of the last value starting at or before {@code version}, -1 if there is none.
+		 */
+		private int floor(long version) {
+			int index = Arrays.binarySearch(starts, 0, size, version);
+			return index >= 0 ? index : -index - 2;
+		}
+
+		private void grow() {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+		}
+
+		private static boolean sameValue(double a, double b) {
+			return a == b || Double.isNaN(a) && Double.isNaN(b);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.support.versioning.Range;
+
+/**
+ * Keeps recent history in a hot {@link HistoryStore} and older history, moved there by {@link HistoryTieringJob}, in a
+ * {@link CompressedSegmentStore}. Reads that run off the end of the hot history fall through to the cold segments.
+ */
+public class TieredHistoryStore implements HistoryStore {
+	private final HistoryStore hotStore;
+	private final CompressedSegmentStore coldStore;
+
+	public TieredHistoryStore(HistoryStore hotStore, CompressedSegmentStore coldStore) {
+		this.hotStore = hotStore;
+		this.coldStore = coldStore;
+	}
+
+	public HistoryStore getHotStore() {
+		return hotStore;
+	}
+
+	public CompressedSegmentStore getColdStore() {
+		return coldStore;
+	}
+
+	@Override
+	public void append(Node node, Map<String, Object> properties, Range range) {
+		hotStore.append(node, properties, range);
+	}
+
+	@Override
+	public PropertyContainer getPropertyHolder(Node node, long version) {
+		PropertyContainer propertyHolder = hotStore.getPropertyHolder(node, version);
+		return propertyHolder != null ? propertyHolder : coldStore.getPropertyHolder(node, version);
+	}
+
+	@Override
+	public long getFirstVersion(Node node) {
+		long first = coldStore.getFirstVersion(node);
+		return first != -1 ? first : hotStore.getFirstVersion(node);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.helpers.Predicate;
+import org.neo4j.helpers.collection.FilteringIterable;
+
+/**
+ * The part of a transaction's changes that belongs to trunk, leaving out what it wrote to {@link Branch}es. Branch
+ * entities are only ever deleted by {@link VersioningTransactionEventHandler#dropBranch(String)}, which is not
+ * versioned, so deletions pass through unfiltered.
+ */
+class TrunkTransactionData implements TransactionData {
+	private final TransactionData data;
+
+	TrunkTransactionData(TransactionData data) {
+		this.data = data;
+	}
+
+	@Override
+	public Iterable<Node> createdNodes() {
+		return trunkEntities(data.createdNodes());
+	}
+
+	@Override
+	public Iterable<Node> deletedNodes() {
+		return data.deletedNodes();
+	}
+
+	@Override
+	public boolean isDeleted(Node node) {
+		return data.isDeleted(node);
+	}
+
+	@Override
+	public Iterable<PropertyEntry<Node>> assignedNodeProperties() {
+		return trunkNodeEntries(data.assignedNodeProperties());
+	}
+
+	@Override
+	public Iterable<PropertyEntry<Node>> removedNodeProperties() {
+		return trunkNodeEntries(data.removedNodeProperties());
+	}
+
+	@Override
+	public Iterable<Relationship> createdRelationships() {
+		return trunkEntities(data.createdRelationships());
+	}
+
+	@Override
+	public Iterable<Relationship> deletedRelationships() {
+		return data.deletedRelationships();
+	}
+
+	@Override
+	public boolean isDeleted(Relationship relationship) {
+		return data.isDeleted(relationship);
+	}
+
+	@Override
+	public Iterable<PropertyEntry<Relationship>> assignedRelationshipProperties() {
+		return trunkRelationshipEntries(data.assignedRelationshipProperties());
+	}
+
+	@Override
+	public Iterable<PropertyEntry<Relationship>> removedRelationshipProperties() {
+		return trunkRelationshipEntries(data.removedRelationshipProperties());
+	}
+
+	private static <T extends PropertyContainer> Iterable<T> trunkEntities(Iterable<T> entities) {
+		return new FilteringIterable<T>(entities, new Predicate<T>() {
+			@Override
+			public boolean accept(T entity) {
+				return !entity.hasProperty(Branch.BRANCH_PROPERTY);
+			}
+		});
+	}
+
+	private Iterable<PropertyEntry<Node>> trunkNodeEntries(Iterable<PropertyEntry<Node>> entries) {
+		return new FilteringIterable<PropertyEntry<Node>>(entries, new Predicate<PropertyEntry<Node>>() {
+			@Override
+			public boolean accept(PropertyEntry<Node> entry) {
+				return data.isDeleted(entry.entity()) || !entry.entity().hasProperty(Branch.BRANCH_PROPERTY);
+			}
+		});
+	}
+
+	private Iterable<PropertyEntry<Relationship>> trunkRelationshipEntries(Iterable<PropertyEntry<Relationship>> entries) {
+		return new FilteringIterable<PropertyEntry<Relationship>>(entries, new Predicate<PropertyEntry<Relationship>>() {
+			@Override
+			public boolean accept(PropertyEntry<Relationship> entry) {
+				return data.isDeleted(entry.entity()) || !entry.entity().hasProperty(Branch.BRANCH_PROPERTY);
+			}
+		});
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Iterator;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Walks the relationships of a node that are valid at a given version without wrapping them. A cursor is meant to be
+ * reused: call {@link #init(Node, Direction, RelationshipType...)} for every node to expand, then {@link #next()} until
+ * it returns {@code false}. Not thread safe.
+ *
+ * <pre>
+ * ValidRelationshipCursor cursor = vc(version).relationshipCursor();
+ * cursor.init(node, Direction.OUTGOING);
+ * while (cursor.next()) {
+ *     visit(cursor.relationshipId(), cursor.otherNodeId());
+ * }
+ * </pre>
+ */
+public class ValidRelationshipCursor {
+	private final long version;
+	private final boolean packedValidity;
+	private Node node;
+	private Iterator<Relationship> relationships;
+	private Relationship current;
+
+	ValidRelationshipCursor(long version, boolean packedValidity) {
+		this.version = version;
+		this.packedValidity = packedValidity;
+	}
+
+	public ValidRelationshipCursor init(Node node, Direction direction, RelationshipType... types) {
+		this.node = node;
+		Iterable<Relationship> candidates = types == null || types.length == 0 ? node.getRelationships(direction) : node.getRelationships(direction, types);
+		this.relationships = candidates.iterator();
+		this.current = null;
+		return this;
+	}
+
+	public boolean next() {
+		while (relationships != null && relationships.hasNext()) {
+			Relationship candidate = relationships.next();
+			if (accept(candidate)) {
+				current = candidate;
+				return true;
+			}
+		}
+		current = null;
+		relationships = null;
+		return false;
+	}
+
+	/**
+	 * Whether the cursor stops at {@code candidate}.
+	 */
+	boolean accept(Relationship candidate) {
+		return VersionContext.isValidAt(candidate, version, packedValidity);
+	}
+
+	public long relationshipId() {
+		return current().getId();
+	}
+
+	public RelationshipType type() {
+		return current().getType();
+	}
+
+	public long otherNodeId() {
+		return current().getOtherNode(node).getId();
+	}
+
+	public boolean isOutgoing() {
+		return current().getStartNode().getId() == node.getId();
+	}
+
+	/**
+	 * The current relationship, unwrapped. Its properties are not versioned.
+	 */
+	public Relationship relationship() {
+		return current();
+	}
+
+	private Relationship current() {
+		if (current == null) {
+			throw new IllegalStateException("Cursor is not positioned on a relationship.");
+		}
+		return current;
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.VersionContext.VALIDITY_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.VALID_FROM_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.VALID_TO_PROPERTY;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Rewrites the validity of existing nodes and relationships from the split {@link VersionContext#VALID_FROM_PROPERTY}
+ * and {@link VersionContext#VALID_TO_PROPERTY} properties into the packed {@link VersionContext#VALIDITY_PROPERTY},
+ * committing every {@code batchSize} entities. Safe to run next to live writers, and to restart after an interruption.
+ */
+public class ValidityMigration implements Runnable {
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	private final GraphDatabaseService graphDb;
+	private final VersioningTransactionEventHandler eventHandler;
+	private final int batchSize;
+	private final AtomicLong migrated = new AtomicLong();
+	private volatile boolean stopRequested;
+	private volatile Thread thread;
+
+	public ValidityMigration(GraphDatabaseService graphDb, VersioningTransactionEventHandler eventHandler) {
+		this(graphDb, eventHandler, DEFAULT_BATCH_SIZE);
+	}
+
+	public ValidityMigration(GraphDatabaseService graphDb, VersioningTransactionEventHandler eventHandler, int batchSize) {
+		this.graphDb = graphDb;
+		this.eventHandler = eventHandler;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Runs the migration on a background daemon thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Migration already started.");
+		}
+		thread = new Thread(this, "validity-migration");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks a running migration to stop after its current batch and waits for it.
+	 */
+	public void stop() throws InterruptedException {
+		stopRequested = true;
+		awaitCompletion();
+	}
+
+	public void awaitCompletion() throws InterruptedException {
+		Thread running = thread;
+		if (running != null) {
+			running.join();
+		}
+	}
+
+	public long getMigratedCount() {
+		return migrated.get();
+	}
+
+	@Override
+	public void run() {
+		GlobalGraphOperations operations = GlobalGraphOperations.at(graphDb);
+		migrate(operations.getAllNodes().iterator());
+		migrate(operations.getAllRelationships().iterator());
+	}
+
+	private void migrate(Iterator<? extends PropertyContainer> entities) {
+		while (entities.hasNext() && !stopRequested) {
+			eventHandler.suspendVersioning();
+			Transaction tx = graphDb.beginTx();
+			try {
+				int inBatch = 0;
+				while (inBatch < batchSize && entities.hasNext()) {
+					if (migrate(entities.next())) {
+						inBatch++;
+					}
+				}
+				tx.success();
+				migrated.addAndGet(inBatch);
+			} finally {
+				tx.finish();
+				eventHandler.resumeVersioning();
+			}
+		}
+	}
+
+	private static boolean migrate(PropertyContainer entity) {
+		if (!entity.hasProperty(VALID_FROM_PROPERTY) || entity.hasProperty(VALIDITY_PROPERTY)) {
+			return false;
+		}
+		// Removing first takes the entity lock, so the values returned are the latest committed ones.
+		Object from = entity.removeProperty(VALID_FROM_PROPERTY);
+		Object to = entity.removeProperty(VALID_TO_PROPERTY);
+		if (from == null || to == null) {
+			if (from != null) {
+				entity.setProperty(VALID_FROM_PROPERTY, from);
+			}
+			return false;
+		}
+		entity.setProperty(VALIDITY_PROPERTY, new long[] { (Long) from, (Long) to });
+		return true;
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * Stores property values once, as dictionary nodes found through a legacy index on a digest of the value, and hands
+ * out their node ids as references. Resolved values are kept in a bounded LRU cache. Two transactions interning the
+ * same new value at once may both create a dictionary node; both stay valid.
+ */
+public class ValueDictionary {
+	public static final String INDEX_NAME = "__value_dictionary__";
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+	private static final String DIGEST_KEY = "digest";
+	private static final String VALUE_PROPERTY = "__value__";
+
+	private final GraphDatabaseService graphDb;
+	private final Map<Long, Object> cache;
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	public ValueDictionary(GraphDatabaseService graphDb) {
+		this(graphDb, DEFAULT_CACHE_SIZE);
+	}
+
+	public ValueDictionary(GraphDatabaseService graphDb, final int cacheSize) {
+		this.graphDb = graphDb;
+		this.cache = new LinkedHashMap<Long, Object>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the reference of {@code value}, adding it to the dictionary if needed. Must run in a transaction.
+	 */
+	public long intern(Object value) {
+		String digest = digest(value);
+		Index<Node> index = graphDb.index().forNodes(INDEX_NAME);
+		IndexHits<Node> hits = index.get(DIGEST_KEY, digest);
+		try {
+			for (Node candidate : hits) {
+				if (sameValue(candidate.getProperty(VALUE_PROPERTY), value)) {
+					return candidate.getId();
+				}
+			}
+		} finally {
+			hits.close();
+		}
+		Node entry = graphDb.createNode();
+		entry.setProperty(VALUE_PROPERTY, value);
+		index.add(entry, DIGEST_KEY, digest);
+		return entry.getId();
+	}
+
+	/**
+	 * Returns the value {@code reference} stands for. Arrays are handed out as copies, so callers cannot change the
+	 * cached value.
+	 */
+	public Object resolve(long reference) {
+		synchronized (cache) {
+			Object cached = cache.get(reference);
+			if (cached != null) {
+				cacheHits.incrementAndGet();
+				return CachingVersionContext.copyOf(cached);
+			}
+		}
+		cacheMisses.incrementAndGet();
+		Object value = graphDb.getNodeById(reference).getProperty(VALUE_PROPERTY);
+		synchronized (cache) {
+			cache.put(reference, value);
+		}
+		return CachingVersionContext.copyOf(value);
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	private static boolean sameValue(Object a, Object b) {
+		return Arrays.deepEquals(new Object[] { a }, new Object[] { b });
+	}
+
+	private static String digest(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			PropertyCodec.writeValue(new DataOutputStream(bytes), value);
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not encode " + value, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available.", e);
+		}
+	}
+}
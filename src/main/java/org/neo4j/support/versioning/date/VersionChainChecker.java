@@ -0,0 +1,346 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.VersionContext.DELETED_PROP_KEY;
+import static org.neo4j.support.versioning.date.VersionContext.KEY_FILTER_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+import static org.neo4j.support.versioning.date.VersionContext.VALIDITY_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.VALID_FROM_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.VALID_TO_PROPERTY;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.core.NodeManager;
+import org.neo4j.support.versioning.Range;
+import org.neo4j.support.versioning.date.ConsistencyReport.Anomaly;
+import org.neo4j.support.versioning.date.ConsistencyReport.Kind;
+
+/**
+ * Verifies the version bookkeeping of a store: that history chains have contiguous, non-overlapping ranges, that
+ * {@link VersionContext#DELETED_PROP_KEY} markers and end versions agree, that no entity carries a version above
+ * the latest one, and that each node's {@link VersionContext#KEY_FILTER_PROPERTY} covers the keys of its history.
+ * The store is scanned in parallel by id partitions, rebuilding {@link VersionStatistics} in the same pass.
+ * <p>
+ * Offline, against a store without other writers, anomalies are reported as scanned. Online, each anomaly is checked
+ * again while holding the entity's write lock, so writes in flight are not reported. With repair enabled, anomalies
+ * are fixed in unversioned transactions: gaps and overlaps by moving the end of the older revision, markers and end
+ * versions by filling in whichever is missing, key filters by adding the keys they miss, and the latest version by raising it.
+ */
+public class VersionChainChecker {
+	private static final int PARTITIONS_PER_THREAD = 8;
+
+	private final GraphDatabaseService graphDb;
+	private final VersioningTransactionEventHandler eventHandler;
+	private final boolean online;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean repair;
+
+	public VersionChainChecker(GraphDatabaseService graphDb, VersioningTransactionEventHandler eventHandler, boolean online) {
+		this.graphDb = graphDb;
+		this.eventHandler = eventHandler;
+		this.online = online;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setRepair(boolean repair) {
+		this.repair = repair;
+	}
+
+	public ConsistencyReport check() {
+		long start = System.currentTimeMillis();
+		ConsistencyReport report = new ConsistencyReport();
+		NodeManager nodeManager = ((GraphDatabaseAPI) graphDb).getDependencyResolver().resolveDependency(NodeManager.class);
+		long highestNodeId = nodeManager.getHighestPossibleIdInUse(Node.class);
+		long highestRelationshipId = nodeManager.getHighestPossibleIdInUse(Relationship.class);
+
+		List<Partition> partitions = new ArrayList<Partition>();
+		addPartitions(partitions, report, highestNodeId, false);
+		addPartitions(partitions, report, highestRelationshipId, true);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		VersionStatistics statistics = new VersionStatistics();
+		long maxVersionSeen = 0;
+		try {
+			for (Future<Partition> future : executor.invokeAll(partitions)) {
+				Partition partition = future.get();
+				statistics.addAll(partition.statistics);
+				maxVersionSeen = Math.max(maxVersionSeen, partition.maxVersionSeen);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while checking.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Check failed.", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		checkLatestVersion(report, maxVersionSeen);
+		report.finish(statistics, System.currentTimeMillis() - start);
+		return report;
+	}
+
+	private void addPartitions(List<Partition> partitions, ConsistencyReport report, long highestId, boolean relationships) {
+		long partitionSize = Math.max(1, (highestId + 1) / (threads * PARTITIONS_PER_THREAD) + 1);
+		for (long from = 0; from <= highestId; from += partitionSize) {
+			partitions.add(new Partition(report, from, Math.min(from + partitionSize, highestId + 1), relationships));
+		}
+	}
+
+	private void checkLatestVersion(ConsistencyReport report, long maxVersionSeen) {
+		long latestVersion = eventHandler.getLatestVersion();
+		if (maxVersionSeen <= latestVersion) {
+			return;
+		}
+		if (repair) {
+			long previousLatestVersion;
+			Transaction tx = beginUnversioned();
+			try {
+				previousLatestVersion = eventHandler.raiseLatestVersion(maxVersionSeen);
+				tx.success();
+			} finally {
+				finishUnversioned(tx);
+			}
+			eventHandler.publishSkippedVersions(previousLatestVersion + 1, maxVersionSeen);
+		}
+		report.add(Collections.singletonList(new Anomaly(Kind.LATEST_VERSION_BEHIND, "__LATEST_VERSION__", "Latest version " + latestVersion
+				+ " is below version " + maxVersionSeen + " found in the store.", repair)));
+	}
+
+	private Transaction beginUnversioned() {
+		eventHandler.suspendVersioning();
+		return graphDb.beginTx();
+	}
+
+	private void finishUnversioned(Transaction tx) {
+		try {
+			tx.finish();
+		} finally {
+			eventHandler.resumeVersioning();
+		}
+	}
+
+	private class Partition implements Callable<Partition> {
+		private final ConsistencyReport report;
+		private final long fromId;
+		private final long toId;
+		private final boolean relationships;
+		private final VersionStatistics statistics = new VersionStatistics();
+		private long maxVersionSeen;
+
+		Partition(ConsistencyReport report, long fromId, long toId, boolean relationships) {
+			this.report = report;
+			this.fromId = fromId;
+			this.toId = toId;
+			this.relationships = relationships;
+		}
+
+		@Override
+		public Partition call() {
+			long checked = 0;
+			for (long id = fromId; id < toId; id++) {
+				PropertyContainer entity;
+				try {
+					entity = relationships ? graphDb.getRelationshipById(id) : graphDb.getNodeById(id);
+				} catch (NotFoundException e) {
+					continue;
+				}
+				if (!relationships && ((Node) entity).hasRelationship(PREV_VERSION_REL_TYPE, Direction.INCOMING)) {
+					// A history holder, checked along with its head.
+					continue;
+				}
+				if (check(entity)) {
+					checked++;
+				}
+			}
+			report.addChecked(relationships ? 0 : checked, relationships ? checked : 0);
+			return this;
+		}
+
+		private boolean check(PropertyContainer entity) {
+			List<Anomaly> anomalies = inspect(entity, false);
+			if (!anomalies.isEmpty() && (online || repair)) {
+				Transaction tx = beginUnversioned();
+				try {
+					if (online) {
+						tx.acquireWriteLock(entity);
+					}
+					anomalies = inspect(entity, repair);
+					tx.success();
+				} finally {
+					finishUnversioned(tx);
+				}
+			}
+			report.add(anomalies);
+			Range range = readRange(entity);
+			if (range == null) {
+				return false;
+			}
+			maxVersionSeen = Math.max(maxVersionSeen, range.to() == Long.MAX_VALUE ? range.from() : range.to() + 1);
+			if (relationships) {
+				statistics.relationshipAlive(((Relationship) entity).getType().name(), range);
+			} else {
+				long firstVersion = eventHandler.getHistoryStore().getFirstVersion((Node) entity);
+				statistics.nodeAlive(firstVersion >= 0 ? firstVersion : range.from(), range.to());
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Finds, and with {@code fix} repairs, the anomalies of one versioned node and its history, or of one relationship.
+	 */
+	private List<Anomaly> inspect(PropertyContainer entity, boolean fix) {
+		List<Anomaly> anomalies = new ArrayList<Anomaly>(0);
+		String name = describe(entity);
+		if (!hasValidity(entity)) {
+			if (entity.hasProperty(VALID_FROM_PROPERTY) || entity.hasProperty(VALID_TO_PROPERTY)) {
+				anomalies.add(new Anomaly(Kind.INVALID_RANGE, name, "Only one validity bound is set.", false));
+			}
+			return anomalies;
+		}
+		Range range = readRange(entity);
+		if (range == null) {
+			anomalies.add(new Anomaly(Kind.INVALID_RANGE, name, "Validity starts after it ends.", false));
+			return anomalies;
+		}
+		Object marker = entity.getProperty(DELETED_PROP_KEY, null);
+		if (marker != null && range.to() == Long.MAX_VALUE) {
+			if (fix) {
+				// The deleting context could see the entity, so it was valid at least up to the marked version.
+				VersionContext.setEndVersion(entity, Math.max(range.from(), (Long) marker));
+			}
+			anomalies.add(new Anomaly(Kind.DELETED_MARKER_MISMATCH, name, "Marked deleted at " + marker + " but never ended.", fix));
+		} else if (marker == null && range.to() != Long.MAX_VALUE) {
+			if (fix) {
+				entity.setProperty(DELETED_PROP_KEY, range.to() + 1);
+			}
+			anomalies.add(new Anomaly(Kind.DELETED_MARKER_MISMATCH, name, "Ended at " + range.to() + " without a deleted marker.", fix));
+		}
+		if (entity instanceof Node) {
+			inspectChain((Node) entity, range, fix, anomalies);
+			inspectKeyFilter((Node) entity, fix, anomalies);
+		}
+		return anomalies;
+	}
+
+	private static void inspectChain(Node head, Range headRange, boolean fix, List<Anomaly> anomalies) {
+		long newerFrom = headRange.from();
+		Node current = head;
+		Relationship prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		while (prevVersionRel != null) {
+			current = prevVersionRel.getOtherNode(current);
+			Range range = readRange(current);
+			if (range == null) {
+				anomalies.add(new Anomaly(Kind.INVALID_RANGE, describe(current), "History holder of " + describe(head) + " has no valid range.", false));
+				return;
+			}
+			if (range.to() != newerFrom - 1) {
+				Kind kind = range.to() < newerFrom - 1 ? Kind.RANGE_GAP : Kind.RANGE_OVERLAP;
+				boolean repairable = newerFrom - 1 >= range.from();
+				if (fix && repairable) {
+					VersionContext.setEndVersion(current, newerFrom - 1);
+				}
+				anomalies.add(new Anomaly(kind, describe(current), "History holder of " + describe(head) + " covers " + range + " but the next newer revision starts at "
+						+ newerFrom + ".", fix && repairable));
+			}
+			newerFrom = range.from();
+			prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+	}
+
+	/**
+	 * Adds the keys of the head and the in-graph history to the key filter. Keys the filter already holds are kept, as
+	 * they may belong to revisions in other history stores. A missing filter is only created when all history is in
+	 * the graph, since one built from part of it would rule out keys the node really had.
+	 */
+	private void inspectKeyFilter(Node head, boolean fix, List<Anomaly> anomalies) {
+		Set<String> keys = new HashSet<String>();
+		Node current = head;
+		while (current != null) {
+			for (String key : current.getPropertyKeys()) {
+				if (!VersionContext.isInternalKey(key) && !key.equals(DELETED_PROP_KEY) && !key.equals(InterningHistoryStore.INTERNED_KEYS_PROPERTY)) {
+					keys.add(key);
+				}
+			}
+			Relationship prevVersionRel = current.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+			current = prevVersionRel == null ? null : prevVersionRel.getOtherNode(current);
+		}
+		long[] filter = (long[]) head.getProperty(KEY_FILTER_PROPERTY, null);
+		if (filter != null && KeyFilter.containsAll(filter, keys)) {
+			return;
+		}
+		boolean repairable = filter != null || isHistoryInGraph();
+		if (fix && repairable) {
+			head.setProperty(KEY_FILTER_PROPERTY, KeyFilter.union(filter, KeyFilter.build(keys)));
+		}
+		anomalies.add(new Anomaly(Kind.KEY_FILTER_INCOMPLETE, describe(head), filter == null ? "Has no key filter." : "Key filter rules out keys of its history.",
+				fix && repairable));
+	}
+
+	private boolean isHistoryInGraph() {
+		HistoryStore historyStore = eventHandler.getHistoryStore();
+		if (historyStore instanceof InterningHistoryStore) {
+			historyStore = ((InterningHistoryStore) historyStore).getDelegate();
+		}
+		return historyStore instanceof InGraphHistoryStore;
+	}
+
+	private static boolean hasValidity(PropertyContainer entity) {
+		return entity.hasProperty(VALIDITY_PROPERTY) || (entity.hasProperty(VALID_FROM_PROPERTY) && entity.hasProperty(VALID_TO_PROPERTY));
+	}
+
+	private static Range readRange(PropertyContainer entity) {
+		try {
+			return VersionContext.getVersion(entity);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static String describe(PropertyContainer entity) {
+		if (entity instanceof Node) {
+			return "Node[" + ((Node) entity).getId() + "]";
+		}
+		return "Relationship[" + ((Relationship) entity).getId() + "]";
+	}
+}
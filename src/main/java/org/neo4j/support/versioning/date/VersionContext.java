@@ -19,8 +19,23 @@
  */
 package org.neo4j.support.versioning.date;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.PropertyContainer;
@@ -35,34 +50,199 @@ public class VersionContext {
 
 	public static final String VALID_FROM_PROPERTY = "__valid_from__";
 	public static final String VALID_TO_PROPERTY = "__valid_to__";
+	/**
+	 * Packed alternative to {@link #VALID_FROM_PROPERTY} and {@link #VALID_TO_PROPERTY}: a {@code long[] { from, to }}.
+	 */
+	public static final String VALIDITY_PROPERTY = "__validity__";
 	public static final RelationshipType PREV_VERSION_REL_TYPE = DynamicRelationshipType.withName("__PREV_VERSION__");
 	public static final String DELETED_PROP_KEY = "__deleted__";
+	/**
+	 * Bloom filter over every property key a node has had in any revision, kept on its head.
+	 */
+	public static final String KEY_FILTER_PROPERTY = "__key_filter__";
+	/**
+	 * Version a node was created at, kept on its head so that reads need not walk its history to find it.
+	 */
+	public static final String CREATED_VERSION_PROPERTY = "__created__";
+	private static final int MIN_BATCH_CHUNK_SIZE = 256;
 	private long version;
+	private final HistoryStore historyStore;
+	private AccessStatistics accessStatistics;
+	private boolean packedValidity;
 
 	public static VersionContext vc(long version) {
 		return new VersionContext(version);
 	}
 
+	public static VersionContext vc(long version, HistoryStore historyStore) {
+		return new VersionContext(version, historyStore);
+	}
+
 	public VersionContext(long version) {
+		this(version, InGraphHistoryStore.INSTANCE);
+	}
+
+	public VersionContext(long version, HistoryStore historyStore) {
 		this.version = version;
+		this.historyStore = historyStore;
+	}
+
+	/**
+	 * The version this context reads.
+	 */
+	public long version() {
+		return version;
 	}
 
 	public VersionedNode node(Node node) {
 		getPropHolderNode(node);
+		recordAccess(node);
 		return new VersionedNode(node, this);
 	}
 
+	/**
+	 * Counts the nodes this context is asked for in {@code statistics}.
+	 */
+	void setAccessStatistics(AccessStatistics statistics) {
+		this.accessStatistics = statistics;
+	}
+
+	void recordAccess(Node node) {
+		if (accessStatistics != null) {
+			accessStatistics.record(node.getId());
+		}
+	}
+
+	/**
+	 * Probes the packed validity encoding before the split one, for stores versioned with
+	 * {@link VersioningTransactionEventHandler#setPackedValidity(boolean)}.
+	 */
+	void setPackedValidity(boolean packedValidity) {
+		this.packedValidity = packedValidity;
+	}
+
 	public boolean hasValidVersion(PropertyContainer propertyContainer) {
-		Range range = VersionContext.getVersion(propertyContainer);
-		System.out.println("range: " + range);
-		return range != null && range.contains(version);
+		return isValidAt(propertyContainer, version, packedValidity);
+	}
+
+	/**
+	 * Returns a cursor over the relationships valid in this context, for expansion loops that should not allocate per
+	 * relationship.
+	 */
+	public ValidRelationshipCursor relationshipCursor() {
+		return new ValidRelationshipCursor(version, packedValidity);
+	}
+
+	/**
+	 * Nodes that existed at this version, by ascending id. History holders are skipped without reading their
+	 * properties, and nodes that were never versioned are left out.
+	 */
+	public Iterable<Node> getAllNodes(GraphDatabaseService graphDb) {
+		return scanNodes(graphDb, 1).get(0);
+	}
+
+	/**
+	 * Same as {@link #getAllNodes(GraphDatabaseService)}, split into {@code partitions} id ranges that can be read from
+	 * separate threads.
+	 */
+	public List<Iterable<Node>> scanNodes(GraphDatabaseService graphDb, int partitions) {
+		return VersionScan.nodes(graphDb, this, partitions);
+	}
+
+	/**
+	 * Relationships valid at this version, by ascending id.
+	 */
+	public Iterable<Relationship> getAllRelationships(GraphDatabaseService graphDb) {
+		return scanRelationships(graphDb, 1).get(0);
+	}
+
+	public List<Iterable<Relationship>> scanRelationships(GraphDatabaseService graphDb, int partitions) {
+		return VersionScan.relationships(graphDb, this, partitions);
+	}
+
+	/**
+	 * Whether the versioned head {@code node} existed at this version, in any of its revisions.
+	 */
+	boolean existedAt(Node node) {
+		if (getEndVersion(node) < version) {
+			return false;
+		}
+		long startVersion = getStartVersion(node);
+		if (startVersion >= 0 && startVersion <= version) {
+			return true;
+		}
+		Object createdVersion = node.getProperty(CREATED_VERSION_PROPERTY, null);
+		if (createdVersion != null) {
+			return (Long) createdVersion <= version;
+		}
+		// Heads created before the stamp: the walk stops at the revision covering this version.
+		return startVersion >= 0 && historyStore.getPropertyHolder(node, version) != null;
+	}
+
+	/**
+	 * The version {@code node} was created at, from its stamp or, for heads created before the stamp, its oldest
+	 * revision; {@code -1} if it has neither.
+	 */
+	static long getCreatedVersion(Node node, HistoryStore historyStore) {
+		Object createdVersion = node.getProperty(CREATED_VERSION_PROPERTY, null);
+		return createdVersion != null ? (Long) createdVersion : historyStore.getFirstVersion(node);
+	}
+
+	/**
+	 * Relationships of {@code node} valid in this context, of any type when {@code types} is empty.
+	 */
+	public Iterable<Relationship> getRelationships(Node node, Direction direction, RelationshipType... types) {
+		return validRelationships(types.length == 0 ? node.getRelationships(direction) : node.getRelationships(direction, types));
+	}
+
+	protected Iterable<Relationship> validRelationships(Iterable<Relationship> relationships) {
+		return new IterableWrapper<Relationship, Relationship>(new FilteringIterable<Relationship>(relationships, new Predicate<Relationship>() {
+			@Override
+			public boolean accept(Relationship item) {
+				return hasValidVersion(item);
+			}
+		})) {
+			@Override
+			protected Relationship underlyingObjectToObject(Relationship object) {
+				return new VersionedRelationship(object, VersionContext.this);
+			}
+		};
+	}
+
+	public Relationship createRelationship(Node from, Node to, RelationshipType type) {
+		return new VersionedRelationship(from.createRelationshipTo(to, type), this);
+	}
+
+	public void setProperty(Node node, String key, Object value) {
+		node.setProperty(key, value);
+	}
+
+	public Object removeProperty(Node node, String key) {
+		return node.removeProperty(key);
+	}
+
+	/**
+	 * Relationship properties are not versioned, so this writes through.
+	 */
+	public void setRelationshipProperty(Relationship relationship, String key, Object value) {
+		relationship.setProperty(key, value);
+	}
+
+	public Object removeRelationshipProperty(Relationship relationship, String key) {
+		return relationship.removeProperty(key);
 	}
 
-	private Node getPropHolderNode(Node node) {
+	/**
+	 * The revision of {@code node} holding its properties in this context.
+	 */
+	PropertyContainer getPropHolderNode(Node node) {
 		return getPropHolderNodeForVersion(node, version);
 	}
 
 	public Object getProperty(Node node, String key) {
+		if (!KeyFilter.mightHave(node, key)) {
+			throw new NotFoundException("Property [" + key + "] never existed on " + node + ".");
+		}
 		return getPropHolderNode(node).getProperty(key);
 	}
 
@@ -71,20 +251,23 @@ public class VersionContext {
 	}
 
 	public Object getProperty(Node node, String key, Object defaultValue) {
+		if (!KeyFilter.mightHave(node, key)) {
+			return defaultValue;
+		}
 		try {
-			return getProperty(node, key);
+			return getPropHolderNode(node).getProperty(key, defaultValue);
 		} catch (NotFoundException e) {
 			return defaultValue;
 		}
 	}
 
 	public Iterable<String> getPropertyKeys(Node node) {
-		Node propHolderNode = getPropHolderNode(node);
+		PropertyContainer propHolderNode = getPropHolderNode(node);
 		return rawGetPropertyKeys(propHolderNode);
 	}
 
 	public Iterable<Object> getPropertyValues(Node node) {
-		final Node propHolderNode = getPropHolderNode(node);
+		final PropertyContainer propHolderNode = getPropHolderNode(node);
 		return new IterableWrapper<Object, String>(rawGetPropertyKeys(propHolderNode)) {
 			@Override
 			protected Object underlyingObjectToObject(String object) {
@@ -93,15 +276,76 @@ public class VersionContext {
 		};
 	}
 
-	private Iterable<String> rawGetPropertyKeys(Node propHolderNode) {
+	private Iterable<String> rawGetPropertyKeys(PropertyContainer propHolderNode) {
 		return new FilteringIterable<String>(propHolderNode.getPropertyKeys(), new Predicate<String>() {
 			@Override
 			public boolean accept(String item) {
-				return !item.equals(VALID_FROM_PROPERTY) && !item.equals(VALID_TO_PROPERTY);
+				return !isInternalKey(item);
 			}
 		});
 	}
 
+	/**
+	 * Reads {@code keys} from many nodes at this version, on a shared pool of daemon threads, one per available
+	 * processor, created on first use.
+	 */
+	public PropertyBatch getProperties(GraphDatabaseService graphDb, long[] nodeIds, String[] keys) {
+		return getProperties(graphDb, nodeIds, keys, BatchReadExecutor.INSTANCE);
+	}
+
+	/**
+	 * Reads {@code keys} from many nodes at this version. The ids are sorted so each task reads a contiguous id range,
+	 * and the tasks run on {@code executor}. Missing keys read as {@code null}; nodes that did not exist at this version
+	 * are reported through {@link PropertyBatch#isPresent(int)}.
+	 */
+	public PropertyBatch getProperties(final GraphDatabaseService graphDb, long[] nodeIds, String[] keys, ExecutorService executor) {
+		long[] sortedIds = nodeIds.clone();
+		Arrays.sort(sortedIds);
+		final PropertyBatch batch = new PropertyBatch(sortedIds, keys);
+		int chunkSize = Math.max(MIN_BATCH_CHUNK_SIZE, sortedIds.length / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < sortedIds.length; start += chunkSize) {
+			final int from = start;
+			final int to = Math.min(start + chunkSize, sortedIds.length);
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					readBatchRows(graphDb, batch, from, to);
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while reading batch.", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException("Batch read failed.", e.getCause());
+			}
+		}
+		return batch;
+	}
+
+	private void readBatchRows(GraphDatabaseService graphDb, PropertyBatch batch, int from, int to) {
+		String[] keys = batch.keys();
+		for (int row = from; row < to; row++) {
+			PropertyContainer propHolder;
+			try {
+				propHolder = getPropHolderNode(graphDb.getNodeById(batch.nodeId(row)));
+			} catch (NotFoundException e) {
+				continue;
+			}
+			batch.setPresent(row);
+			for (int key = 0; key < keys.length; key++) {
+				batch.set(row, key, propHolder.getProperty(keys[key], null));
+			}
+		}
+	}
+
 	public void deleteRelationship(Relationship relationship) {
 		relationship.setProperty(DELETED_PROP_KEY, version);
 	}
@@ -110,76 +354,205 @@ public class VersionContext {
 		node.setProperty(DELETED_PROP_KEY, version);
 	}
 
-	private static Node copyPropsToNewNode(Node node) {
-		Node newNode = node.getGraphDatabase().createNode();
-		for (String propKey : node.getPropertyKeys()) {
-			newNode.setProperty(propKey, node.getProperty(propKey, null));
+	/**
+	 * Sets and removes properties of {@code node} as one revision. The previous revision is kept once, by the
+	 * {@link VersioningTransactionEventHandler} when the transaction commits, however many keys change and however many
+	 * calls touch the node in that transaction. Must run in a transaction.
+	 *
+	 * @return the previous values of the keys that changed, {@code null} for keys that were absent.
+	 */
+	public static Map<String, Object> updateVersionedProperties(Node node, Map<String, ?> sets, Collection<String> removes) {
+		for (String key : removes) {
+			if (sets.containsKey(key)) {
+				throw new IllegalArgumentException("Property [" + key + "] is both set and removed.");
+			}
+		}
+		Map<String, Object> previousValues = new HashMap<String, Object>();
+		for (Map.Entry<String, ?> entry : sets.entrySet()) {
+			checkUserKey(entry.getKey());
+			if (entry.getValue() == null) {
+				throw new IllegalArgumentException("Null value for property [" + entry.getKey() + "].");
+			}
+			Object previous = node.getProperty(entry.getKey(), null);
+			if (!VersioningTransactionEventHandler.sameValue(previous, entry.getValue())) {
+				node.setProperty(entry.getKey(), entry.getValue());
+				previousValues.put(entry.getKey(), previous);
+			}
 		}
-		return newNode;
+		for (String key : removes) {
+			checkUserKey(key);
+			if (node.hasProperty(key)) {
+				previousValues.put(key, node.removeProperty(key));
+			}
+		}
+		return previousValues;
 	}
 
-	private static void rotatePropertiesRelationships(Node node, Node newNode) {
-		Relationship olderPropsRel = node.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
-		if (olderPropsRel != null) {
-			newNode.createRelationshipTo(olderPropsRel.getOtherNode(node), PREV_VERSION_REL_TYPE);
-			olderPropsRel.delete();
+	private static void checkUserKey(String key) {
+		if (isInternalKey(key) || key.equals(DELETED_PROP_KEY)) {
+			throw new IllegalArgumentException("Property [" + key + "] is kept by versioning.");
 		}
-		node.createRelationshipTo(newNode, PREV_VERSION_REL_TYPE);
 	}
 
+	/**
+	 * @deprecated Use {@link #updateVersionedProperties(Node, Map, Collection)}, which versions any number of keys as
+	 *             one revision.
+	 */
+	@Deprecated
 	public static void addVersionedProperty(Node node, String key, Object value) {
-		Node newNode = copyPropsToNewNode(node);
-		newNode.setProperty(key, value);
-		rotatePropertiesRelationships(node, newNode);
+		updateVersionedProperties(node, Collections.singletonMap(key, value), Collections.<String> emptySet());
 	}
 
+	/**
+	 * @deprecated Use {@link #updateVersionedProperties(Node, Map, Collection)}, which versions any number of keys as
+	 *             one revision.
+	 */
+	@Deprecated
 	public static Object removeVersionedProperty(Node node, String key) {
-		Node newNode = copyPropsToNewNode(node);
-		Object result = newNode.removeProperty(key);
-		rotatePropertiesRelationships(node, newNode);
-		return result;
+		return updateVersionedProperties(node, Collections.<String, Object> emptyMap(), Collections.singleton(key)).get(key);
+	}
+
+	public static boolean isInternalKey(String key) {
+		return key.equals(VALID_FROM_PROPERTY) || key.equals(VALID_TO_PROPERTY) || key.equals(VALIDITY_PROPERTY) || key.equals(KEY_FILTER_PROPERTY)
+				|| key.equals(CREATED_VERSION_PROPERTY) || key.startsWith(Branch.KEY_PREFIX);
 	}
 
+	/**
+	 * Stamps {@code range} using the encoding the entity already has, {@link #VALID_FROM_PROPERTY} and
+	 * {@link #VALID_TO_PROPERTY} for new entities.
+	 */
 	public static void setVersion(PropertyContainer propertyContainer, Range range) {
 		setStartVersion(propertyContainer, range.from());
 		setEndVersion(propertyContainer, range.to());
 	}
 
+	/**
+	 * Stamps {@code range} as a single packed {@link #VALIDITY_PROPERTY}, dropping the split properties if present.
+	 */
+	public static void setPackedVersion(PropertyContainer entity, Range range) {
+		entity.setProperty(VALIDITY_PROPERTY, new long[] { range.from(), range.to() });
+		entity.removeProperty(VALID_FROM_PROPERTY);
+		entity.removeProperty(VALID_TO_PROPERTY);
+	}
+
 	public static void setStartVersion(PropertyContainer entity, long startVersion) {
-		entity.setProperty(VALID_FROM_PROPERTY, startVersion);
+		setBound(entity, VALID_FROM_PROPERTY, 0, startVersion);
 	}
 
 	public static void setEndVersion(PropertyContainer entity, long endVersion) {
-		entity.setProperty(VALID_TO_PROPERTY, endVersion);
+		setBound(entity, VALID_TO_PROPERTY, 1, endVersion);
+	}
+
+	private static void setBound(PropertyContainer entity, String splitKey, int packedIndex, long bound) {
+		long[] packed = (long[]) entity.getProperty(VALIDITY_PROPERTY, null);
+		if (packed == null) {
+			entity.setProperty(splitKey, bound);
+			// The write above holds the entity lock, so a migration to the packed form has either committed by now or
+			// waits for us.
+			packed = (long[]) entity.getProperty(VALIDITY_PROPERTY, null);
+			if (packed == null) {
+				return;
+			}
+			entity.removeProperty(splitKey);
+		}
+		long[] updated = packed.clone();
+		updated[packedIndex] = bound;
+		entity.setProperty(VALIDITY_PROPERTY, updated);
 	}
 
 	public static long getStartVersion(PropertyContainer entity) {
-		return (Long) entity.getProperty(VALID_FROM_PROPERTY, -1L);
+		Object from = entity.getProperty(VALID_FROM_PROPERTY, null);
+		if (from != null) {
+			return (Long) from;
+		}
+		long[] packed = (long[]) entity.getProperty(VALIDITY_PROPERTY, null);
+		return packed != null ? packed[0] : -1L;
 	}
 
 	public static long getEndVersion(PropertyContainer entity) {
-		return (Long) entity.getProperty(VALID_TO_PROPERTY, -1L);
+		Object to = entity.getProperty(VALID_TO_PROPERTY, null);
+		if (to != null) {
+			return (Long) to;
+		}
+		long[] packed = (long[]) entity.getProperty(VALIDITY_PROPERTY, null);
+		return packed != null ? packed[1] : -1L;
+	}
+
+	/**
+	 * Same as {@code getVersion(entity).contains(version)}, without creating a {@link Range}. The split encoding, the
+	 * default, is probed first; entities in the packed encoding cost one more property read.
+	 */
+	public static boolean isValidAt(PropertyContainer entity, long version) {
+		Object from = entity.getProperty(VALID_FROM_PROPERTY, null);
+		if (from == null) {
+			return isValidAtPacked(entity.getProperty(VALIDITY_PROPERTY, null), version);
+		}
+		if ((Long) from > version) {
+			return false;
+		}
+		Object to = entity.getProperty(VALID_TO_PROPERTY, null);
+		return to != null && (Long) to >= version;
+	}
+
+	/**
+	 * Same as {@link #isValidAt(PropertyContainer, long)}, probing {@link #VALIDITY_PROPERTY} first when
+	 * {@code packedFirst}, so entities in the packed encoding are answered with a single property read.
+	 */
+	static boolean isValidAt(PropertyContainer entity, long version, boolean packedFirst) {
+		if (!packedFirst) {
+			return isValidAt(entity, version);
+		}
+		Object packed = entity.getProperty(VALIDITY_PROPERTY, null);
+		return packed != null ? isValidAtPacked(packed, version) : isValidAt(entity, version);
+	}
+
+	private static boolean isValidAtPacked(Object packed, long version) {
+		if (packed == null) {
+			return false;
+		}
+		long[] bounds = (long[]) packed;
+		return bounds[0] <= version && version <= bounds[1];
 	}
 
 	public static Range getVersion(PropertyContainer propertyContainer) {
 		Object from = propertyContainer.getProperty(VALID_FROM_PROPERTY, null);
+		if (from == null) {
+			long[] packed = (long[]) propertyContainer.getProperty(VALIDITY_PROPERTY, null);
+			return packed != null ? new Range(packed[0], packed[1]) : null;
+		}
 		Object to = propertyContainer.getProperty(VALID_TO_PROPERTY, null);
-		if (from == null || to == null) {
+		if (to == null) {
 			return null;
 		}
 		return new Range((Long) from, (Long) to);
 	}
 
-	private static Node getPropHolderNodeForVersion(Node node, long version) {
+	private PropertyContainer getPropHolderNodeForVersion(Node node, long version) {
 		Range range = getVersion(node);
-		System.out.println("Seeking prop holder for: " + node);
-		if (!range.contains(version)) {
-			Relationship prevVersionRel = node.getSingleRelationship(PREV_VERSION_REL_TYPE, Direction.OUTGOING);
-			if (prevVersionRel == null) {
-				throw new NotFoundException("Version [" + version + "] not found.");
-			}
-			return getPropHolderNodeForVersion(prevVersionRel.getOtherNode(node), version);
+		if (range != null && range.contains(version)) {
+			return node;
+		}
+		PropertyContainer propHolder = historyStore.getPropertyHolder(node, version);
+		if (propHolder == null) {
+			throw new NotFoundException("Version [" + version + "] not found.");
 		}
-		return node;
+		return propHolder;
+	}
+
+	/**
+	 * Holds the pool of {@link #getProperties(GraphDatabaseService, long[], String[])}, so it is only created once a
+	 * batch is read.
+	 */
+	private static final class BatchReadExecutor {
+		static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "versioning-batch-read-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 }
@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+/**
+ * Everything one committed version changed, with values, in the order a replica applies it: creations, property
+ * changes, versioned deletions, then physical deletions. Ids are those of the primary.
+ */
+public class VersionRecord {
+	public enum Operation {
+		CREATE_NODE, CREATE_RELATIONSHIP, SET_NODE_PROPERTIES, SET_RELATIONSHIP_PROPERTIES, END_NODE, END_RELATIONSHIP, DELETE_RELATIONSHIP, DELETE_NODE
+	}
+
+	/**
+	 * One operation on one entity. Property maps hold new values, {@code null} for removed keys.
+	 */
+	public static class Change {
+		private final Operation operation;
+		private final long id;
+		private final long startNodeId;
+		private final long endNodeId;
+		private final String type;
+		private final Map<String, Object> properties;
+		private final long deletedMarker;
+
+		Change(Operation operation, long id, long startNodeId, long endNodeId, String type, Map<String, Object> properties, long deletedMarker) {
+			this.operation = operation;
+			this.id = id;
+			this.startNodeId = startNodeId;
+			this.endNodeId = endNodeId;
+			this.type = type;
+			this.properties = properties;
+			this.deletedMarker = deletedMarker;
+		}
+
+		public Operation getOperation() {
+			return operation;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public long getStartNodeId() {
+			return startNodeId;
+		}
+
+		public long getEndNodeId() {
+			return endNodeId;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public Map<String, Object> getProperties() {
+			return properties;
+		}
+
+		/**
+		 * The version the entity was marked deleted at, for {@link Operation#END_NODE} and
+		 * {@link Operation#END_RELATIONSHIP}.
+		 */
+		public long getDeletedMarker() {
+			return deletedMarker;
+		}
+	}
+
+	private final long version;
+	private final List<Change> changes;
+	private final boolean missing;
+	private final long primaryVersion;
+
+	public VersionRecord(long version, List<Change> changes) {
+		this(version, changes, false, version);
+	}
+
+	private VersionRecord(long version, List<Change> changes, boolean missing, long primaryVersion) {
+		this.version = version;
+		this.changes = changes;
+		this.missing = missing;
+		this.primaryVersion = primaryVersion;
+	}
+
+	/**
+	 * Placeholder for a version whose changes were not captured, such as one committed while the shipper was being
+	 * set. A replica cannot apply it and must be seeded again.
+	 */
+	static VersionRecord missing(long version) {
+		return new VersionRecord(version, Collections.<Change> emptyList(), true, version);
+	}
+
+	/**
+	 * This record as shipped when the primary's latest committed version was {@code primaryVersion}.
+	 */
+	VersionRecord withPrimaryVersion(long primaryVersion) {
+		return new VersionRecord(version, changes, missing, Math.max(version, primaryVersion));
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isMissing() {
+		return missing;
+	}
+
+	/**
+	 * The latest version the primary had committed when this record was shipped, for replicas to tell their lag.
+	 */
+	public long getPrimaryVersion() {
+		return primaryVersion;
+	}
+
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Reads what {@code data} commits as {@code version}, from {@code beforeCommit}, leaving out the relationships of
+	 * {@code discardedRelationshipIds}, which were created and deleted in it.
+	 */
+	static VersionRecord capture(long version, TransactionData data, Set<Long> discardedRelationshipIds) {
+		LongLongMap createdNodes = new LongLongMap();
+		LongLongMap createdRelationships = new LongLongMap();
+		List<Change> creations = new ArrayList<Change>();
+		for (Node node : data.createdNodes()) {
+			createdNodes.put(node.getId(), 0);
+			creations.add(new Change(Operation.CREATE_NODE, node.getId(), -1, -1, null, userProperties(node), 0));
+		}
+		for (Relationship relationship : data.createdRelationships()) {
+			if (discardedRelationshipIds.contains(relationship.getId())) {
+				continue;
+			}
+			createdRelationships.put(relationship.getId(), 0);
+			creations.add(new Change(Operation.CREATE_RELATIONSHIP, relationship.getId(), relationship.getStartNode().getId(), relationship.getEndNode().getId(),
+					relationship.getType().name(), userProperties(relationship), 0));
+		}
+
+		Map<Long, Map<String, Object>> nodeChanges = new HashMap<Long, Map<String, Object>>();
+		List<Change> ends = new ArrayList<Change>();
+		for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+			long id = entry.entity().getId();
+			if (entry.key().equals(VersionContext.DELETED_PROP_KEY)) {
+				if (entry.previouslyCommitedValue() == null) {
+					ends.add(new Change(Operation.END_NODE, id, -1, -1, null, null, (Long) entry.value()));
+				}
+			} else if (!createdNodes.containsKey(id) && isReplicated(entry)) {
+				changesOf(nodeChanges, id).put(entry.key(), entry.value());
+			}
+		}
+		for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+			long id = entry.entity().getId();
+			if (!createdNodes.containsKey(id) && isReplicated(entry) && !entry.key().equals(VersionContext.DELETED_PROP_KEY)) {
+				changesOf(nodeChanges, id).put(entry.key(), null);
+			}
+		}
+		Map<Long, Map<String, Object>> relationshipChanges = new HashMap<Long, Map<String, Object>>();
+		for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+			long id = entry.entity().getId();
+			if (entry.key().equals(VersionContext.DELETED_PROP_KEY)) {
+				if (entry.previouslyCommitedValue() == null) {
+					ends.add(new Change(Operation.END_RELATIONSHIP, id, -1, -1, null, null, (Long) entry.value()));
+				}
+			} else if (!createdRelationships.containsKey(id) && !discardedRelationshipIds.contains(id) && isReplicated(entry)) {
+				changesOf(relationshipChanges, id).put(entry.key(), entry.value());
+			}
+		}
+		for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+			long id = entry.entity().getId();
+			if (!createdRelationships.containsKey(id) && !discardedRelationshipIds.contains(id) && isReplicated(entry)
+					&& !entry.key().equals(VersionContext.DELETED_PROP_KEY)) {
+				changesOf(relationshipChanges, id).put(entry.key(), null);
+			}
+		}
+
+		List<Change> changes = creations;
+		for (Map.Entry<Long, Map<String, Object>> entry : nodeChanges.entrySet()) {
+			changes.add(new Change(Operation.SET_NODE_PROPERTIES, entry.getKey(), -1, -1, null, entry.getValue(), 0));
+		}
+		for (Map.Entry<Long, Map<String, Object>> entry : relationshipChanges.entrySet()) {
+			changes.add(new Change(Operation.SET_RELATIONSHIP_PROPERTIES, entry.getKey(), -1, -1, null, entry.getValue(), 0));
+		}
+		changes.addAll(ends);
+		for (Relationship relationship : data.deletedRelationships()) {
+			if (!discardedRelationshipIds.contains(relationship.getId()) && !relationship.isType(VersionContext.PREV_VERSION_REL_TYPE)) {
+				changes.add(new Change(Operation.DELETE_RELATIONSHIP, relationship.getId(), -1, -1, null, null, 0));
+			}
+		}
+		for (Node node : data.deletedNodes()) {
+			changes.add(new Change(Operation.DELETE_NODE, node.getId(), -1, -1, null, null, 0));
+		}
+		return new VersionRecord(version, changes);
+	}
+
+	private static boolean isReplicated(PropertyEntry<?> entry) {
+		if (VersionContext.isInternalKey(entry.key())) {
+			return false;
+		}
+		// Removals report no new value; assignments of the committed value change nothing.
+		return entry.value() == null || !VersioningTransactionEventHandler.sameValue(entry.value(), entry.previouslyCommitedValue());
+	}
+
+	private static Map<String, Object> changesOf(Map<Long, Map<String, Object>> changesById, long id) {
+		Map<String, Object> changes = changesById.get(id);
+		if (changes == null) {
+			changes = new HashMap<String, Object>();
+			changesById.put(id, changes);
+		}
+		return changes;
+	}
+
+	private static Map<String, Object> userProperties(PropertyContainer entity) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		for (String key : entity.getPropertyKeys()) {
+			if (!VersionContext.isInternalKey(key) && !key.equals(VersionContext.DELETED_PROP_KEY)) {
+				properties.put(key, entity.getProperty(key));
+			}
+		}
+		return properties;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(version);
+		out.writeLong(primaryVersion);
+		out.writeInt(missing ? -1 : changes.size());
+		for (Change change : changes) {
+			out.writeByte(change.operation.ordinal());
+			out.writeLong(change.id);
+			out.writeLong(change.startNodeId);
+			out.writeLong(change.endNodeId);
+			out.writeBoolean(change.type != null);
+			if (change.type != null) {
+				out.writeUTF(change.type);
+			}
+			out.writeLong(change.deletedMarker);
+			if (change.properties == null) {
+				out.writeInt(-1);
+				continue;
+			}
+			out.writeInt(change.properties.size());
+			for (Map.Entry<String, Object> entry : change.properties.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeBoolean(entry.getValue() != null);
+				if (entry.getValue() != null) {
+					PropertyCodec.writeValue(out, entry.getValue());
+				}
+			}
+		}
+	}
+
+	public static VersionRecord read(DataInput in) throws IOException {
+		long version = in.readLong();
+		long primaryVersion = in.readLong();
+		int count = in.readInt();
+		if (count < 0) {
+			return missing(version).withPrimaryVersion(primaryVersion);
+		}
+		List<Change> changes = new ArrayList<Change>(count);
+		for (int i = 0; i < count; i++) {
+			Operation operation = Operation.values()[in.readByte()];
+			long id = in.readLong();
+			long startNodeId = in.readLong();
+			long endNodeId = in.readLong();
+			String type = in.readBoolean() ? in.readUTF() : null;
+			long deletedMarker = in.readLong();
+			int propertyCount = in.readInt();
+			Map<String, Object> properties = null;
+			if (propertyCount >= 0) {
+				properties = new HashMap<String, Object>();
+				for (int j = 0; j < propertyCount; j++) {
+					String key = in.readUTF();
+					properties.put(key, in.readBoolean() ? PropertyCodec.readValue(in) : null);
+				}
+			}
+			changes.add(new Change(operation, id, startNodeId, endNodeId, type, properties, deletedMarker));
+		}
+		return new VersionRecord(version, Collections.unmodifiableList(changes), false, primaryVersion);
+	}
+
+	@Override
+	public String toString() {
+		return "VersionRecord[version=" + version + (missing ? ", missing" : ", changes=" + changes.size()) + "]";
+	}
+}
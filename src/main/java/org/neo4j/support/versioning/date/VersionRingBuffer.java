@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free ring buffer delivering one element per version to any number of consumers, each on its own thread,
+ * in version order and in batches. Versions are committed densely but their {@code afterCommit} calls may race, so an
+ * element is placed in the slot of its version and consumers wait for every version in turn, however long it takes to
+ * come. Versions that have nothing to publish, such as those skipped without being committed, must be published
+ * explicitly through {@link #publishMissing}. Elements below every consumer's next version are dropped. Producers wait
+ * while the slowest consumer is a full buffer behind, but no longer than the publish wait: consumers still that far
+ * behind are then dropped and flagged out of sync.
+ */
+class VersionRingBuffer<E> {
+	static final long DEFAULT_MAX_PUBLISH_WAIT_MILLIS = 1000;
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final int SPINS_BEFORE_PARKING = 100;
+
+	interface BatchHandler<E> {
+		void handle(List<E> batch) throws Exception;
+	}
+
+	interface MissingElements<E> {
+		/**
+		 * The element to hand consumers for {@code version}, which has nothing to publish.
+		 */
+		E missing(long version);
+	}
+
+	private static final class Slot<E> {
+		final long version;
+		final E element;
+		final boolean missing;
+
+		Slot(long version, E element, boolean missing) {
+			this.version = version;
+			this.element = element;
+			this.missing = missing;
+		}
+	}
+
+	private final int mask;
+	private final long firstVersion;
+	private final AtomicReferenceArray<Slot<E>> slots;
+	private final AtomicLong highestPublished;
+	private final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+	private final int maxBatchSize;
+	private final MissingElements<E> missingElements;
+	private volatile long maxPublishWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_PUBLISH_WAIT_MILLIS);
+
+	VersionRingBuffer(long firstVersion, int capacity, int maxBatchSize, MissingElements<E> missingElements) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity [" + capacity + "] must be a power of two.");
+		}
+		this.mask = capacity - 1;
+		this.firstVersion = firstVersion;
+		this.slots = new AtomicReferenceArray<Slot<E>>(capacity);
+		this.highestPublished = new AtomicLong(firstVersion - 1);
+		this.maxBatchSize = maxBatchSize;
+		this.missingElements = missingElements;
+	}
+
+	void setMaxPublishWait(long timeout, TimeUnit unit) {
+		this.maxPublishWaitNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * The first version this buffer was created for.
+	 */
+	long getFirstVersion() {
+		return firstVersion;
+	}
+
+	void publish(long version, E element) {
+		publish(new Slot<E>(version, element, false));
+	}
+
+	/**
+	 * Publishes the missing element for each of versions {@code from} to {@code to} that has not been published yet.
+	 */
+	void publishMissing(long from, long to) {
+		for (long version = Math.max(from, firstVersion); version <= to; version++) {
+			publish(new Slot<E>(version, missingElements.missing(version), true));
+		}
+	}
+
+	private void publish(Slot<E> slot) {
+		long version = slot.version;
+		if (version > lowestConsumedVersion()) {
+			waitForRoom(version);
+			int index = (int) version & mask;
+			while (true) {
+				Slot<E> current = slots.get(index);
+				// An element outranks a missing one for the same version; neither replaces an element.
+				if (current != null && current.version == version && (slot.missing || !current.missing)) {
+					break;
+				}
+				if (slots.compareAndSet(index, current, slot)) {
+					break;
+				}
+			}
+		}
+		long highest = highestPublished.get();
+		while (version > highest && !highestPublished.compareAndSet(highest, version)) {
+			highest = highestPublished.get();
+		}
+		for (Consumer consumer : consumers) {
+			if (consumer.parked) {
+				LockSupport.unpark(consumer.thread);
+			}
+		}
+	}
+
+	private void waitForRoom(long version) {
+		long deadline = System.nanoTime() + maxPublishWaitNanos;
+		int spins = 0;
+		while (version - lowestConsumedVersion() > mask) {
+			if (System.nanoTime() - deadline >= 0) {
+				for (Consumer consumer : consumers) {
+					if (version - (consumer.nextVersion - 1) > mask) {
+						consumer.drop();
+					}
+				}
+			} else if (++spins > SPINS_BEFORE_PARKING) {
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * The highest version published so far.
+	 */
+	long getHighestPublished() {
+		return highestPublished.get();
+	}
+
+	/**
+	 * The highest version every consumer is done with; {@link Long#MAX_VALUE} without consumers, so nothing waits.
+	 */
+	private long lowestConsumedVersion() {
+		long lowest = Long.MAX_VALUE;
+		for (Consumer consumer : consumers) {
+			lowest = Math.min(lowest, consumer.nextVersion - 1);
+		}
+		return lowest;
+	}
+
+	Consumer subscribe(String name, BatchHandler<E> handler) {
+		Consumer consumer = new Consumer(name, handler, highestPublished.get() + 1);
+		consumers.add(consumer);
+		consumer.thread.start();
+		return consumer;
+	}
+
+	void close() {
+		for (Consumer consumer : consumers) {
+			consumer.close();
+		}
+	}
+
+	class Consumer implements Runnable {
+		private final BatchHandler<E> handler;
+		private final Thread thread;
+		private volatile long nextVersion;
+		private volatile boolean parked;
+		private volatile boolean closed;
+		private volatile boolean outOfSync;
+		private final AtomicLong failures = new AtomicLong();
+
+		Consumer(String name, BatchHandler<E> handler, long nextVersion) {
+			this.handler = handler;
+			this.nextVersion = nextVersion;
+			this.thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<E> batch = new ArrayList<E>(maxBatchSize);
+			int idleSpins = 0;
+			while (!closed) {
+				long version = nextVersion;
+				while (batch.size() < maxBatchSize) {
+					Slot<E> slot = slots.get((int) version & mask);
+					if (slot == null || slot.version != version) {
+						break;
+					}
+					batch.add(slot.element);
+					version++;
+				}
+				if (batch.isEmpty()) {
+					if (++idleSpins > SPINS_BEFORE_PARKING) {
+						parked = true;
+						// Publishers unpark parked consumers after filling a slot, so check it once more before blocking.
+						Slot<E> slot = slots.get((int) version & mask);
+						if (!closed && (slot == null || slot.version != version)) {
+							LockSupport.park(this);
+						}
+						parked = false;
+					}
+					continue;
+				}
+				idleSpins = 0;
+				try {
+					handler.handle(batch);
+				} catch (Exception e) {
+					failures.incrementAndGet();
+				}
+				batch.clear();
+				nextVersion = version;
+			}
+		}
+
+		/**
+		 * The next version this consumer will be handed.
+		 */
+		long getNextVersion() {
+			return nextVersion;
+		}
+
+		long getFailureCount() {
+			return failures.get();
+		}
+
+		/**
+		 * Whether this consumer was dropped for holding producers back longer than the publish wait.
+		 */
+		boolean isOutOfSync() {
+			return outOfSync;
+		}
+
+		boolean isClosed() {
+			return closed;
+		}
+
+		void close() {
+			closed = true;
+			consumers.remove(this);
+			LockSupport.unpark(thread);
+		}
+
+		private void drop() {
+			outOfSync = true;
+			close();
+			// The handler may be stuck; it is no longer waited for either way.
+			thread.interrupt();
+		}
+	}
+}
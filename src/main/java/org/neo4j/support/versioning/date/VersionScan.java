@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.helpers.collection.PrefetchingIterator;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.core.NodeManager;
+
+/**
+ * Id range scans over the store for the entities of one {@link VersionContext}. Each range is an independent
+ * {@link Iterable}, so ranges can be read from separate threads.
+ */
+abstract class VersionScan<T> implements Iterable<T> {
+	private final long fromId;
+	private final long toId;
+
+	VersionScan(long fromId, long toId) {
+		this.fromId = fromId;
+		this.toId = toId;
+	}
+
+	static List<Iterable<Node>> nodes(final GraphDatabaseService graphDb, final VersionContext context, int partitions) {
+		List<Iterable<Node>> scans = new ArrayList<Iterable<Node>>(partitions);
+		long highestId = nodeManager(graphDb).getHighestPossibleIdInUse(Node.class);
+		for (long[] range : split(highestId, partitions)) {
+			scans.add(new VersionScan<Node>(range[0], range[1]) {
+				@Override
+				Node load(long id) {
+					Node node = graphDb.getNodeById(id);
+					// Holders are recognized by their link from a newer revision, before any property is read.
+					if (node.hasRelationship(PREV_VERSION_REL_TYPE, Direction.INCOMING) || !context.existedAt(node)) {
+						return null;
+					}
+					return new VersionedNode(node, context);
+				}
+			});
+		}
+		return scans;
+	}
+
+	static List<Iterable<Relationship>> relationships(final GraphDatabaseService graphDb, final VersionContext context, int partitions) {
+		List<Iterable<Relationship>> scans = new ArrayList<Iterable<Relationship>>(partitions);
+		long highestId = nodeManager(graphDb).getHighestPossibleIdInUse(Relationship.class);
+		for (long[] range : split(highestId, partitions)) {
+			scans.add(new VersionScan<Relationship>(range[0], range[1]) {
+				@Override
+				Relationship load(long id) {
+					Relationship relationship = graphDb.getRelationshipById(id);
+					if (relationship.isType(PREV_VERSION_REL_TYPE) || !context.hasValidVersion(relationship)) {
+						return null;
+					}
+					return new VersionedRelationship(relationship, context);
+				}
+			});
+		}
+		return scans;
+	}
+
+	private static NodeManager nodeManager(GraphDatabaseService graphDb) {
+		return ((GraphDatabaseAPI) graphDb).getDependencyResolver().resolveDependency(NodeManager.class);
+	}
+
+	private static List<long[]> split(long highestId, int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("Need at least one partition, got [" + partitions + "].");
+		}
+		List<long[]> ranges = new ArrayList<long[]>(partitions);
+		long size = (highestId + 1) / partitions + 1;
+		for (int i = 0; i < partitions; i++) {
+			long from = Math.min(i * size, highestId + 1);
+			ranges.add(new long[] { from, Math.min(from + size, highestId + 1) });
+		}
+		return ranges;
+	}
+
+	/**
+	 * The entity with {@code id} if the scan returns it, otherwise {@code null}.
+	 */
+	abstract T load(long id);
+
+	@Override
+	public Iterator<T> iterator() {
+		return new PrefetchingIterator<T>() {
+			private long nextId = fromId;
+
+			@Override
+			protected T fetchNextOrNull() {
+				while (nextId < toId) {
+					long id = nextId++;
+					try {
+						T entity = load(id);
+						if (entity != null) {
+							return entity;
+						}
+					} catch (NotFoundException e) {
+						// A free id.
+					}
+				}
+				return null;
+			}
+		};
+	}
+}
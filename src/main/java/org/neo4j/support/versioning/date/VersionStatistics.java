@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.support.versioning.Range;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Counts of nodes and relationships alive at any version, answered in O(log n) without touching the store. Every
+ * creation adds one at its start version and every versioned deletion subtracts one at the version it takes effect, so
+ * the count at a version is a prefix sum.
+ */
+public class VersionStatistics {
+	private final FenwickTree nodes = new FenwickTree();
+	private final Map<String, FenwickTree> relationshipsByType = new HashMap<String, FenwickTree>();
+
+	/**
+	 * Builds statistics from the validity ranges already in the store. Writes committed while this runs may be missed,
+	 * so run it before registering the statistics with a handler that sees traffic.
+	 */
+	public static VersionStatistics rebuild(GraphDatabaseService graphDb, HistoryStore historyStore) {
+		VersionStatistics statistics = new VersionStatistics();
+		GlobalGraphOperations operations = GlobalGraphOperations.at(graphDb);
+		for (Node node : operations.getAllNodes()) {
+			Range range = VersionContext.getVersion(node);
+			if (range != null && !node.hasRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.INCOMING)) {
+				long firstVersion = historyStore.getFirstVersion(node);
+				statistics.nodeAlive(firstVersion >= 0 ? firstVersion : range.from(), range.to());
+			}
+		}
+		for (Relationship relationship : operations.getAllRelationships()) {
+			Range range = VersionContext.getVersion(relationship);
+			if (range != null) {
+				statistics.relationshipAlive(relationship.getType().name(), range);
+			}
+		}
+		return statistics;
+	}
+
+	public synchronized long nodeCount(long version) {
+		return nodes.prefixSum(version);
+	}
+
+	public synchronized long relationshipCount(RelationshipType type, long version) {
+		FenwickTree counts = relationshipsByType.get(type.name());
+		return counts == null ? 0 : counts.prefixSum(version);
+	}
+
+	public synchronized long relationshipCount(long version) {
+		long count = 0;
+		for (FenwickTree counts : relationshipsByType.values()) {
+			count += counts.prefixSum(version);
+		}
+		return count;
+	}
+
+	public synchronized Set<String> relationshipTypeNames() {
+		return new HashSet<String>(relationshipsByType.keySet());
+	}
+
+	/**
+	 * Records {@code delta} more nodes alive from {@code version} on; negative for deletions.
+	 */
+	synchronized void addNodes(long version, long delta) {
+		if (delta != 0) {
+			nodes.add(version, delta);
+		}
+	}
+
+	synchronized void addRelationships(String type, long version, long delta) {
+		if (delta != 0) {
+			counts(type).add(version, delta);
+		}
+	}
+
+	/**
+	 * Adds the counts of {@code other}, for statistics built in parallel over partitions of the store.
+	 */
+	synchronized void addAll(VersionStatistics other) {
+		synchronized (other) {
+			nodes.addAll(other.nodes);
+			for (Map.Entry<String, FenwickTree> entry : other.relationshipsByType.entrySet()) {
+				counts(entry.getKey()).addAll(entry.getValue());
+			}
+		}
+	}
+
+	void nodeAlive(long from, long to) {
+		addNodes(Math.max(1, from), 1);
+		if (to != Long.MAX_VALUE) {
+			addNodes(to + 1, -1);
+		}
+	}
+
+	void relationshipAlive(String type, Range range) {
+		addRelationships(type, Math.max(1, range.from()), 1);
+		if (range.to() != Long.MAX_VALUE) {
+			addRelationships(type, range.to() + 1, -1);
+		}
+	}
+
+	private FenwickTree counts(String type) {
+		FenwickTree counts = relationshipsByType.get(type);
+		if (counts == null) {
+			counts = new FenwickTree();
+			relationshipsByType.put(type, counts);
+		}
+		return counts;
+	}
+}
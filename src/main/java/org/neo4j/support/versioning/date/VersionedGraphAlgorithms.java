@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.Arrays;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Shortest path, Dijkstra and k-hop expansion over the graph as it was at the version of a {@link VersionContext}.
+ * Expansion reads validity ranges directly through a {@link ValidRelationshipCursor} and keeps its bookkeeping in
+ * primitive id maps, so relationships are never wrapped and only those valid at the version are followed. Not thread
+ * safe; use one instance per thread.
+ * <p>
+ * Relationship properties are not versioned, so a relationship weight is always its current value. To weigh
+ * relationships as of the version, derive the cost from node properties with {@link #nodePropertyAsOf(String)}.
+ */
+public class VersionedGraphAlgorithms {
+	private static final long NO_RELATIONSHIP = -1;
+
+	public interface CostFunction {
+		double cost(Relationship relationship, long fromNodeId, long toNodeId);
+	}
+
+	/**
+	 * Nodes and relationships of a path found by {@link VersionedGraphAlgorithms}, from start to end.
+	 */
+	public static class IdPath {
+		private final long[] nodeIds;
+		private final long[] relationshipIds;
+		private final double weight;
+
+		IdPath(long[] nodeIds, long[] relationshipIds, double weight) {
+			this.nodeIds = nodeIds;
+			this.relationshipIds = relationshipIds;
+			this.weight = weight;
+		}
+
+		public long[] nodeIds() {
+			return nodeIds;
+		}
+
+		public long[] relationshipIds() {
+			return relationshipIds;
+		}
+
+		public int length() {
+			return relationshipIds.length;
+		}
+
+		/**
+		 * Total cost for Dijkstra paths, the length for shortest paths.
+		 */
+		public double weight() {
+			return weight;
+		}
+
+		@Override
+		public String toString() {
+			return "IdPath" + Arrays.toString(nodeIds) + "[weight=" + weight + "]";
+		}
+	}
+
+	private final GraphDatabaseService graphDb;
+	private final VersionContext versionContext;
+	private final Direction direction;
+	private final RelationshipType[] types;
+	private final ValidRelationshipCursor cursor;
+
+	public VersionedGraphAlgorithms(GraphDatabaseService graphDb, VersionContext versionContext, Direction direction, RelationshipType... types) {
+		this.graphDb = graphDb;
+		this.versionContext = versionContext;
+		this.direction = direction;
+		this.types = types;
+		this.cursor = versionContext.relationshipCursor();
+	}
+
+	/**
+	 * Cost read from a relationship property, as it is now.
+	 */
+	public static CostFunction relationshipProperty(final String key) {
+		return new CostFunction() {
+			@Override
+			public double cost(Relationship relationship, long fromNodeId, long toNodeId) {
+				return ((Number) relationship.getProperty(key)).doubleValue();
+			}
+		};
+	}
+
+	/**
+	 * Cost of entering a node, read from its property as of this instance's version.
+	 */
+	public CostFunction nodePropertyAsOf(final String key) {
+		return new CostFunction() {
+			@Override
+			public double cost(Relationship relationship, long fromNodeId, long toNodeId) {
+				return ((Number) versionContext.getProperty(graphDb.getNodeById(toNodeId), key)).doubleValue();
+			}
+		};
+	}
+
+	/**
+	 * Fewest-hops path by bidirectional breadth-first search, always growing the smaller frontier, or {@code null}.
+	 */
+	public IdPath shortestPath(long startId, long endId, int maxDepth) {
+		if (!existed(startId) || !existed(endId)) {
+			return null;
+		}
+		if (startId == endId) {
+			return new IdPath(new long[] { startId }, new long[0], 0);
+		}
+		LongLongMap forwardParents = new LongLongMap();
+		LongLongMap backwardParents = new LongLongMap();
+		forwardParents.put(startId, NO_RELATIONSHIP);
+		backwardParents.put(endId, NO_RELATIONSHIP);
+		LongList forwardFrontier = new LongList();
+		LongList backwardFrontier = new LongList();
+		forwardFrontier.add(startId);
+		backwardFrontier.add(endId);
+		for (int depth = 0; depth < maxDepth && !forwardFrontier.isEmpty() && !backwardFrontier.isEmpty(); depth++) {
+			boolean forward = forwardFrontier.size() <= backwardFrontier.size();
+			LongList next = new LongList();
+			// The first node reached from both sides closes a shortest path; any shorter one would have met earlier.
+			long meeting = forward ? expandLevel(forwardFrontier, direction, forwardParents, backwardParents, next) : expandLevel(backwardFrontier,
+					direction.reverse(), backwardParents, forwardParents, next);
+			if (meeting != Long.MIN_VALUE) {
+				return join(meeting, forwardParents, backwardParents);
+			}
+			if (forward) {
+				forwardFrontier = next;
+			} else {
+				backwardFrontier = next;
+			}
+		}
+		return null;
+	}
+
+	private long expandLevel(LongList frontier, Direction expandDirection, LongLongMap parents, LongLongMap otherParents, LongList next) {
+		for (int i = 0; i < frontier.size(); i++) {
+			cursor.init(graphDb.getNodeById(frontier.get(i)), expandDirection, types);
+			while (cursor.next()) {
+				long other = cursor.otherNodeId();
+				if (parents.containsKey(other) || !notDeleted(other)) {
+					continue;
+				}
+				parents.put(other, cursor.relationshipId());
+				if (otherParents.containsKey(other)) {
+					return other;
+				}
+				next.add(other);
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+
+	private IdPath join(long meeting, LongLongMap forwardParents, LongLongMap backwardParents) {
+		LongList nodes = new LongList();
+		LongList relationships = new LongList();
+		walkToRoot(meeting, forwardParents, nodes, relationships);
+		long[] nodeIds = reverse(nodes.toArray());
+		long[] relationshipIds = reverse(relationships.toArray());
+		nodes.clear();
+		relationships.clear();
+		walkToRoot(meeting, backwardParents, nodes, relationships);
+		long[] backwardNodeIds = nodes.toArray();
+		long[] backwardRelationshipIds = relationships.toArray();
+		long[] allNodeIds = Arrays.copyOf(nodeIds, nodeIds.length + backwardNodeIds.length - 1);
+		System.arraycopy(backwardNodeIds, 1, allNodeIds, nodeIds.length, backwardNodeIds.length - 1);
+		long[] allRelationshipIds = Arrays.copyOf(relationshipIds, relationshipIds.length + backwardRelationshipIds.length);
+		System.arraycopy(backwardRelationshipIds, 0, allRelationshipIds, relationshipIds.length, backwardRelationshipIds.length);
+		return new IdPath(allNodeIds, allRelationshipIds, allRelationshipIds.length);
+	}
+
+	/**
+	 * Adds {@code nodeId} and its ancestors up to the root to {@code nodes}, and the relationships between them.
+	 */
+	private void walkToRoot(long nodeId, LongLongMap parents, LongList nodes, LongList relationships) {
+		long current = nodeId;
+		nodes.add(current);
+		long relationshipId = parents.get(current, NO_RELATIONSHIP);
+		while (relationshipId != NO_RELATIONSHIP) {
+			relationships.add(relationshipId);
+			current = otherNodeId(relationshipId, current);
+			nodes.add(current);
+			relationshipId = parents.get(current, NO_RELATIONSHIP);
+		}
+	}
+
+	/**
+	 * Cheapest path by Dijkstra's algorithm, or {@code null}. Costs must not be negative.
+	 */
+	public IdPath dijkstra(long startId, long endId, CostFunction costFunction) {
+		if (!existed(startId) || !existed(endId)) {
+			return null;
+		}
+		LongLongMap distances = new LongLongMap();
+		LongLongMap parents = new LongLongMap();
+		LongLongMap settled = new LongLongMap();
+		Heap queue = new Heap();
+		distances.put(startId, Double.doubleToLongBits(0));
+		parents.put(startId, NO_RELATIONSHIP);
+		queue.push(0, startId);
+		while (!queue.isEmpty()) {
+			double distance = queue.peekPriority();
+			long nodeId = queue.pop();
+			if (settled.containsKey(nodeId)) {
+				continue;
+			}
+			settled.put(nodeId, 1);
+			if (nodeId == endId) {
+				LongList nodes = new LongList();
+				LongList relationships = new LongList();
+				walkToRoot(endId, parents, nodes, relationships);
+				return new IdPath(reverse(nodes.toArray()), reverse(relationships.toArray()), distance);
+			}
+			cursor.init(graphDb.getNodeById(nodeId), direction, types);
+			while (cursor.next()) {
+				long other = cursor.otherNodeId();
+				if (settled.containsKey(other) || !notDeleted(other)) {
+					continue;
+				}
+				double cost = costFunction.cost(cursor.relationship(), nodeId, other);
+				if (cost < 0) {
+					throw new IllegalArgumentException("Negative cost " + cost + " on relationship [" + cursor.relationshipId() + "].");
+				}
+				double candidate = distance + cost;
+				long known = distances.get(other, Long.MIN_VALUE);
+				if (known == Long.MIN_VALUE || candidate < Double.longBitsToDouble(known)) {
+					distances.put(other, Double.doubleToLongBits(candidate));
+					parents.put(other, cursor.relationshipId());
+					queue.push(candidate, other);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Ids of the nodes 1 to {@code k} hops from {@code startId}, nearest first.
+	 */
+	public long[] kHop(long startId, int k) {
+		if (!existed(startId)) {
+			return new long[0];
+		}
+		LongLongMap visited = new LongLongMap();
+		visited.put(startId, 0);
+		LongList result = new LongList();
+		LongList frontier = new LongList();
+		frontier.add(startId);
+		for (int depth = 1; depth <= k && !frontier.isEmpty(); depth++) {
+			LongList next = new LongList();
+			for (int i = 0; i < frontier.size(); i++) {
+				cursor.init(graphDb.getNodeById(frontier.get(i)), direction, types);
+				while (cursor.next()) {
+					long other = cursor.otherNodeId();
+					if (!visited.containsKey(other) && notDeleted(other)) {
+						visited.put(other, depth);
+						next.add(other);
+						result.add(other);
+					}
+				}
+			}
+			frontier = next;
+		}
+		return result.toArray();
+	}
+
+	private boolean existed(long nodeId) {
+		try {
+			versionContext.node(graphDb.getNodeById(nodeId));
+			return true;
+		} catch (NotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * For a node reached over a relationship valid at the version: relationships are created after their nodes, so the
+	 * node existed unless it had been deleted.
+	 */
+	private boolean notDeleted(long nodeId) {
+		return VersionContext.getEndVersion(graphDb.getNodeById(nodeId)) >= versionContext.version();
+	}
+
+	private long otherNodeId(long relationshipId, long nodeId) {
+		Relationship relationship = graphDb.getRelationshipById(relationshipId);
+		long startNodeId = relationship.getStartNode().getId();
+		return startNodeId == nodeId ? relationship.getEndNode().getId() : startNodeId;
+	}
+
+	private static long[] reverse(long[] values) {
+		for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+			long swap = values[i];
+			values[i] = values[j];
+			values[j] = swap;
+		}
+		return values;
+	}
+
+	/**
+	 * Binary min-heap of node ids by priority. Stale entries are skipped by the caller rather than updated in place.
+	 */
+	private static class Heap {
+		private double[] priorities = new double[64];
+		private long[] ids = new long[64];
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(double priority, long id) {
+			if (size == ids.length) {
+				priorities = Arrays.copyOf(priorities, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (priorities[parent] <= priority) {
+					break;
+				}
+				priorities[i] = priorities[parent];
+				ids[i] = ids[parent];
+				i = parent;
+			}
+			priorities[i] = priority;
+			ids[i] = id;
+		}
+
+		double peekPriority() {
+			return priorities[0];
+		}
+
+		long pop() {
+			long top = ids[0];
+			size--;
+			double priority = priorities[size];
+			long id = ids[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && priorities[child + 1] < priorities[child]) {
+					child++;
+				}
+				if (priorities[child] >= priority) {
+					break;
+				}
+				priorities[i] = priorities[child];
+				ids[i] = ids[child];
+				i = child;
+			}
+			priorities[i] = priority;
+			ids[i] = id;
+			return top;
+		}
+	}
+}
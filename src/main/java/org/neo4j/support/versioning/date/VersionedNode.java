@@ -30,9 +30,6 @@ import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Traverser;
-import org.neo4j.helpers.Predicate;
-import org.neo4j.helpers.collection.FilteringIterable;
-import org.neo4j.helpers.collection.IterableWrapper;
 
 public class VersionedNode implements Node {
 	private Node node;
@@ -52,40 +49,24 @@ public class VersionedNode implements Node {
 	}
 
 	public Iterable<Relationship> getRelationships() {
-		return getValidRelationships(node.getRelationships());
+		return versionContext.getRelationships(node, Direction.BOTH);
 	}
 
 	public Iterable<Relationship> getRelationships(Direction dir) {
-		return getValidRelationships(node.getRelationships(dir));
+		return versionContext.getRelationships(node, dir);
 	}
 
 	public Iterable<Relationship> getRelationships(RelationshipType... types) {
-		return getValidRelationships(node.getRelationships(types));
+		return versionContext.getRelationships(node, Direction.BOTH, types);
 	}
 
 	public Iterable<Relationship> getRelationships(RelationshipType type, Direction dir) {
-		return getValidRelationships(node.getRelationships(type, dir));
+		return versionContext.getRelationships(node, dir, type);
 	}
 
 	@Override
 	public Iterable<Relationship> getRelationships(Direction direction, RelationshipType... types) {
-		return getValidRelationships(node.getRelationships(direction, types));
-	}
-
-	private Iterable<Relationship> getValidRelationships(Iterable<Relationship> relationships) {
-		return new IterableWrapper<Relationship, Relationship>(new FilteringIterable<Relationship>(relationships, new Predicate<Relationship>() {
-			public boolean accept(Relationship item) {
-				boolean valid = versionContext.hasValidVersion(item);
-				System.out.println("Inspecting rel: " + item + " (valid=" + valid + ")");
-				return valid;
-			}
-		})) {
-			@Override
-			protected Relationship underlyingObjectToObject(Relationship object) {
-				System.out.println("wrapping rel: " + object);
-				return new VersionedRelationship(object, versionContext);
-			}
-		};
+		return versionContext.getRelationships(node, direction, types);
 	}
 
 	public boolean hasRelationship() {
@@ -121,7 +102,7 @@ public class VersionedNode implements Node {
 	}
 
 	public Relationship createRelationshipTo(Node otherNode, RelationshipType type) {
-		return new VersionedRelationship(node.createRelationshipTo(otherNode, type), versionContext);
+		return versionContext.createRelationship(node, otherNode, type);
 	}
 
 	public Traverser traverse(Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator, RelationshipType relationshipType,
@@ -155,11 +136,11 @@ public class VersionedNode implements Node {
 	}
 
 	public void setProperty(String key, Object value) {
-		node.setProperty(key, value);
+		versionContext.setProperty(node, key, value);
 	}
 
 	public Object removeProperty(String key) {
-		return node.removeProperty(key);
+		return versionContext.removeProperty(node, key);
 	}
 
 	public Iterable<String> getPropertyKeys() {
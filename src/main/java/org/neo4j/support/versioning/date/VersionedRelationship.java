@@ -27,6 +27,8 @@ import org.neo4j.graphdb.RelationshipType;
 public class VersionedRelationship implements Relationship {
 	private Relationship relationship;
 	private VersionContext versionContext;
+	private VersionedNode startNode;
+	private VersionedNode endNode;
 
 	public VersionedRelationship(Relationship relationship, VersionContext versionContext) {
 		this.relationship = relationship;
@@ -42,20 +44,31 @@ public class VersionedRelationship implements Relationship {
 	}
 
 	public Node getStartNode() {
-		return new VersionedNode(relationship.getStartNode(), versionContext);
+		if (startNode == null) {
+			startNode = new VersionedNode(relationship.getStartNode(), versionContext);
+		}
+		return startNode;
 	}
 
 	public Node getEndNode() {
-		return new VersionedNode(relationship.getEndNode(), versionContext);
+		if (endNode == null) {
+			endNode = new VersionedNode(relationship.getEndNode(), versionContext);
+		}
+		return endNode;
 	}
 
 	public Node getOtherNode(Node node) {
+		if (getStartNode().getId() == node.getId()) {
+			return getEndNode();
+		}
+		if (getEndNode().getId() == node.getId()) {
+			return getStartNode();
+		}
 		return new VersionedNode(relationship.getOtherNode(node), versionContext);
 	}
 
 	public Node[] getNodes() {
-		Node[] nodes = relationship.getNodes();
-		return new Node[] { new VersionedNode(nodes[0], versionContext), new VersionedNode(nodes[1], versionContext) };
+		return new Node[] { getStartNode(), getEndNode() };
 	}
 
 	public RelationshipType getType() {
@@ -83,11 +96,11 @@ public class VersionedRelationship implements Relationship {
 	}
 
 	public void setProperty(String key, Object value) {
-		relationship.setProperty(key, value);
+		versionContext.setRelationshipProperty(relationship, key, value);
 	}
 
 	public Object removeProperty(String key) {
-		return relationship.removeProperty(key);
+		return versionContext.removeRelationshipProperty(relationship, key);
 	}
 
 	public Iterable<String> getPropertyKeys() {
@@ -20,39 +20,163 @@
 package org.neo4j.support.versioning.date;
 
 import static org.neo4j.support.versioning.Range.range;
+import static org.neo4j.support.versioning.date.VersionContext.getEndVersion;
 import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
 import static org.neo4j.support.versioning.date.VersionContext.setEndVersion;
 import static org.neo4j.support.versioning.date.VersionContext.setStartVersion;
 import static org.neo4j.support.versioning.date.VersionContext.setVersion;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.TransactionManager;
 
 import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.event.PropertyEntry;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.support.versioning.Range;
 
 public class VersioningTransactionEventHandler implements TransactionEventHandler<Object> {
 	private static final String LATEST_VERSION_PROP_KEY = "__LATEST_VERSION__";
 	public static final String LOCK_PROP_KEY = "__DUMMY_LOCK__";
 	private final Node versionDataNode;
+	private final HistoryStore historyStore;
+	private final ThreadLocal<Boolean> suspended = new ThreadLocal<Boolean>();
+	private volatile boolean skipNoOpTransactions;
+	private volatile boolean packedValidity;
+	private volatile VersionStatistics statistics;
+	private volatile ChangeFeed changeFeed;
+	private volatile AsOfCache asOfCache;
+	private volatile ReplicationShipper replicationShipper;
+	private volatile TemporalAggregates aggregates;
+	private volatile AccessStatistics accessStatistics;
+	private volatile TransactionManager txManager;
+	private volatile long maxModificationBytes = Long.MAX_VALUE;
+	private volatile File spillDirectory;
+	private final AtomicLong peakModificationBytes = new AtomicLong();
+	private final AtomicLong spilledModificationBytes = new AtomicLong();
+	private final AtomicLong spilledTransactions = new AtomicLong();
+	private final SnapshotPins snapshotPins = new SnapshotPins();
+	private final ConcurrentMap<String, Branch> branches = new ConcurrentHashMap<String, Branch>();
+	private volatile Boolean branchesPresent;
 
 	public VersioningTransactionEventHandler(Node versionDataNode) {
+		this(versionDataNode, InGraphHistoryStore.INSTANCE);
+	}
+
+	public VersioningTransactionEventHandler(Node versionDataNode, HistoryStore historyStore) {
 		this.versionDataNode = versionDataNode;
+		this.historyStore = historyStore;
 	}
 
 	@Override
 	public Object beforeCommit(TransactionData data) throws Exception {
-		long version = getNextVersionNumber();
-		processCreatedNodes(version, data.createdNodes());
-		processCreatedRelationships(version, data.createdRelationships());
-		processMarkedDeletedRelationships(version, data.assignedRelationshipProperties());
-		rotateProperties(version, findModifiedProperties(version, data));
-		return null;
+		if (suspended.get() != null) {
+			return null;
+		}
+		if (hasBranches()) {
+			data = new TrunkTransactionData(data);
+		}
+		ModificationBuffer modifications = new ModificationBuffer(maxModificationBytes, spillDirectory);
+		try {
+			findModifiedProperties(data, modifications);
+			if (skipNoOpTransactions && modifications.isEmpty() && !hasOtherChanges(data)) {
+				return null;
+			}
+			CommitState state = new CommitState(getNextVersionNumber());
+			// Read under the version lock: a feed or shipper set after this gets the version as missing.
+			state.changeFeed = changeFeed;
+			state.shipper = replicationShipper;
+			TemporalAggregates currentAggregates = aggregates;
+			processCreatedNodes(state, data.createdNodes(), currentAggregates);
+			processCreatedRelationships(state, data.createdRelationships());
+			processMarkedDeletedRelationships(state, data.assignedRelationshipProperties());
+			processMarkedDeletedNodes(state, data.assignedNodeProperties(), state.changeFeed != null);
+			LongList modifiedNodeIds = new LongList();
+			List<String[]> modifiedKeys = new ArrayList<String[]>();
+			rotateProperties(state.version, modifications, state.changeFeed != null ? modifiedNodeIds : null, modifiedKeys,
+					currentAggregates != null ? new AggregateTracker(currentAggregates, state.aggregateChanges) : null);
+			if (state.changeFeed != null) {
+				state.changeSet = buildChangeSet(state.version, data, modifiedNodeIds, modifiedKeys, state.endedRelationshipIds,
+						state.discardedRelationships.keySet());
+			}
+			if (state.shipper != null) {
+				state.record = VersionRecord.capture(state.version, data, state.discardedRelationships.keySet());
+			}
+			recordMemoryUse(modifications);
+			return state;
+		} finally {
+			modifications.close();
+		}
+	}
+
+	private void recordMemoryUse(ModificationBuffer modifications) {
+		long peak = peakModificationBytes.get();
+		while (modifications.getPeakBufferedBytes() > peak && !peakModificationBytes.compareAndSet(peak, modifications.getPeakBufferedBytes())) {
+			peak = peakModificationBytes.get();
+		}
+		if (modifications.getSpilledBytes() > 0) {
+			spilledModificationBytes.addAndGet(modifications.getSpilledBytes());
+			spilledTransactions.incrementAndGet();
+		}
+	}
+
+	private static ChangeSet buildChangeSet(long version, TransactionData data, LongList modifiedNodeIds, List<String[]> modifiedKeys,
+			LongList endedRelationshipIds, Set<Long> discardedRelationshipIds) {
+		LongList createdNodeIds = new LongList();
+		for (Node node : data.createdNodes()) {
+			createdNodeIds.add(node.getId());
+		}
+		LongList createdRelationshipIds = new LongList();
+		for (Relationship relationship : data.createdRelationships()) {
+			if (!discardedRelationshipIds.contains(relationship.getId())) {
+				createdRelationshipIds.add(relationship.getId());
+			}
+		}
+		LongList deletedNodeIds = new LongList();
+		for (Node node : data.deletedNodes()) {
+			deletedNodeIds.add(node.getId());
+		}
+		for (PropertyEntry<Node> nodePropertyEntry : data.assignedNodeProperties()) {
+			if (nodePropertyEntry.key().equals(VersionContext.DELETED_PROP_KEY) && nodePropertyEntry.previouslyCommitedValue() == null) {
+				deletedNodeIds.add(nodePropertyEntry.entity().getId());
+			}
+		}
+		LongList deletedRelationshipIds = new LongList();
+		for (Relationship relationship : data.deletedRelationships()) {
+			if (!discardedRelationshipIds.contains(relationship.getId())) {
+				deletedRelationshipIds.add(relationship.getId());
+			}
+		}
+		for (PropertyEntry<Relationship> relationshipPropertyEntry : data.assignedRelationshipProperties()) {
+			if (relationshipPropertyEntry.key().equals(VersionContext.DELETED_PROP_KEY) && relationshipPropertyEntry.previouslyCommitedValue() == null) {
+				deletedRelationshipIds.add(relationshipPropertyEntry.entity().getId());
+			}
+		}
+		for (int i = 0; i < endedRelationshipIds.size(); i++) {
+			deletedRelationshipIds.add(endedRelationshipIds.get(i));
+		}
+		return new ChangeSet(version, createdNodeIds.toArray(), deletedNodeIds.toArray(), createdRelationshipIds.toArray(), deletedRelationshipIds.toArray(),
+				modifiedNodeIds.toArray(), modifiedKeys.toArray(new String[modifiedKeys.size()][]));
 	}
 
 	private long getNextVersionNumber() {
@@ -63,101 +187,321 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
 		return nextVersion;
 	}
 
-	private static void processCreatedNodes(long version, Iterable<Node> createdNodes) {
+	private void processCreatedNodes(CommitState state, Iterable<Node> createdNodes, TemporalAggregates aggregates) {
 		for (Node node : createdNodes) {
-			Range range = Range.range(version);
-			setVersion(node, range);
+			Range range = Range.range(state.version);
+			stampVersion(node, range);
+			node.setProperty(VersionContext.CREATED_VERSION_PROPERTY, state.version);
+			if (!node.hasProperty(VersionContext.KEY_FILTER_PROPERTY)) {
+				node.setProperty(VersionContext.KEY_FILTER_PROPERTY, KeyFilter.empty());
+			}
+			if (aggregates != null) {
+				for (String key : aggregates.getKeys()) {
+					if (node.hasProperty(key)) {
+						state.aggregateChanges.add(new TemporalAggregates.Change(node.getId(), key, node.getProperty(key)));
+					}
+				}
+			}
+			state.createdNodes++;
 		}
 	}
 
-	private static void processCreatedRelationships(long version, Iterable<Relationship> createdRelationships) {
+	private void processCreatedRelationships(CommitState state, Iterable<Relationship> createdRelationships) {
 		for (Relationship relationship : createdRelationships) {
-			Range range = range(version);
-			setVersion(relationship, range);
+			Range range = range(state.version);
+			stampVersion(relationship, range);
+			state.createdRelationshipTypes.add(relationship.getType().name());
+		}
+	}
+
+	private void stampVersion(PropertyContainer entity, Range range) {
+		if (packedValidity) {
+			VersionContext.setPackedVersion(entity, range);
+		} else {
+			setVersion(entity, range);
 		}
 	}
 
-	private static void processMarkedDeletedRelationships(long version, Iterable<PropertyEntry<Relationship>> relationshipProperties) {
+	private static void processMarkedDeletedRelationships(CommitState state, Iterable<PropertyEntry<Relationship>> relationshipProperties) {
 		for (PropertyEntry<Relationship> relationshipPropertyEntry : relationshipProperties) {
 			if (relationshipPropertyEntry.key().equals(VersionContext.DELETED_PROP_KEY)) {
 				Relationship rel = relationshipPropertyEntry.entity();
-				setEndVersion(rel, version - 1);
+				setEndVersion(rel, state.version - 1);
+				if (relationshipPropertyEntry.previouslyCommitedValue() == null) {
+					state.relationshipsDeleted(rel.getType().name(), 1);
+				}
 			}
 		}
 	}
 
-	private static Map<Node, Map<String, Object>> findModifiedProperties(long version, TransactionData data) {
-		Map<Node, Map<String, Object>> modifiedPropsByNode = new HashMap<Node, Map<String, Object>>();
-		for (PropertyEntry<Node> nodePropertyEntry : data.assignedNodeProperties()) {
+	/**
+	 * Ends deleted nodes and, in the same pass, every relationship they still have; relationships deleted explicitly in
+	 * the same transaction were ended already. Runs after {@link #processMarkedDeletedRelationships}.
+	 */
+	private static void processMarkedDeletedNodes(CommitState state, Iterable<PropertyEntry<Node>> nodeProperties, boolean collectEndedRelationships) {
+		for (PropertyEntry<Node> nodePropertyEntry : nodeProperties) {
 			if (nodePropertyEntry.key().equals(VersionContext.DELETED_PROP_KEY)) {
-				setEndVersion(nodePropertyEntry.entity(), version - 1);
+				Node node = nodePropertyEntry.entity();
+				setEndVersion(node, state.version - 1);
+				if (nodePropertyEntry.previouslyCommitedValue() == null) {
+					state.deletedNodes++;
+					state.deletedNodeIds.add(node.getId());
+					Map<String, int[]> ended = endRelationships(node, state.version, nodePropertyEntry.value(),
+							collectEndedRelationships ? state.endedRelationshipIds : null, state.discardedRelationships);
+					for (Map.Entry<String, int[]> entry : ended.entrySet()) {
+						state.relationshipsDeleted(entry.getKey(), entry.getValue()[0]);
+					}
+				}
+			}
+		}
+		for (String type : state.discardedRelationships.values()) {
+			state.createdRelationshipTypes.remove(type);
+		}
+	}
+
+	/**
+	 * Ends the relationships of {@code node} still valid before {@code version}, marking them deleted with
+	 * {@code deletedMarker}, and counts them by type. Relationships created in the same transaction would never be
+	 * valid, so they are deleted outright and collected in {@code discardedRelationships}, by id to type, when given.
+	 * The adjacency list is streamed, but every ended relationship adds two property writes to the transaction state,
+	 * so deleting a node with {@code n} relationships holds as much memory as setting two properties on each of them.
+	 * For nodes with too many relationships to end in one transaction, end them first with
+	 * {@link #endAllRelationships(Node, int)}.
+	 */
+	static Map<String, int[]> endRelationships(Node node, long version, Object deletedMarker, LongList endedRelationshipIds,
+			Map<Long, String> discardedRelationships) {
+		Map<String, int[]> ended = new HashMap<String, int[]>();
+		for (Relationship relationship : node.getRelationships()) {
+			if (relationship.isType(VersionContext.PREV_VERSION_REL_TYPE) || getEndVersion(relationship) != Long.MAX_VALUE) {
 				continue;
 			}
-			if (isInternalProperty(nodePropertyEntry)) {
+			if (getStartVersion(relationship) >= version) {
+				if (discardedRelationships != null) {
+					discardedRelationships.put(relationship.getId(), relationship.getType().name());
+				}
+				relationship.delete();
 				continue;
 			}
-			addEntryToMap(nodePropertyEntry, modifiedPropsByNode);
+			relationship.setProperty(VersionContext.DELETED_PROP_KEY, deletedMarker);
+			setEndVersion(relationship, version - 1);
+			String type = relationship.getType().name();
+			int[] count = ended.get(type);
+			if (count == null) {
+				ended.put(type, new int[] { 1 });
+			} else {
+				count[0]++;
+			}
+			if (endedRelationshipIds != null) {
+				endedRelationshipIds.add(relationship.getId());
+			}
+		}
+		return ended;
+	}
+
+	/**
+	 * Ends every relationship of {@code node} still valid, {@code batchSize} per transaction and version, and returns
+	 * how many it ended. Use it on nodes with more relationships than one transaction should hold before deleting
+	 * them; relationships created meanwhile are ended by the deletion itself. Must not be called in a transaction.
+	 */
+	public long endAllRelationships(Node node, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size [" + batchSize + "] must be positive.");
+		}
+		GraphDatabaseService graphDb = versionDataNode.getGraphDatabase();
+		long ended = 0;
+		Iterator<Relationship> relationships = node.getRelationships().iterator();
+		while (relationships.hasNext()) {
+			Transaction tx = null;
+			try {
+				int endedInBatch = 0;
+				while (endedInBatch < batchSize && relationships.hasNext()) {
+					Relationship relationship = relationships.next();
+					if (relationship.isType(VersionContext.PREV_VERSION_REL_TYPE) || getEndVersion(relationship) != Long.MAX_VALUE
+							|| relationship.hasProperty(VersionContext.DELETED_PROP_KEY)) {
+						continue;
+					}
+					if (tx == null) {
+						tx = graphDb.beginTx();
+					}
+					// Ended by processMarkedDeletedRelationships when the batch commits.
+					relationship.setProperty(VersionContext.DELETED_PROP_KEY, getLatestVersion());
+					endedInBatch++;
+				}
+				if (tx != null) {
+					tx.success();
+				}
+				ended += endedInBatch;
+			} finally {
+				if (tx != null) {
+					tx.finish();
+				}
+			}
+		}
+		return ended;
+	}
+
+	private static void findModifiedProperties(TransactionData data, ModificationBuffer modifications) throws IOException {
+		for (PropertyEntry<Node> nodePropertyEntry : data.assignedNodeProperties()) {
+			if (nodePropertyEntry.key().equals(VersionContext.DELETED_PROP_KEY) || isInternalProperty(nodePropertyEntry) || isUnchanged(nodePropertyEntry)) {
+				continue;
+			}
+			addEntry(nodePropertyEntry, modifications);
 		}
 		for (PropertyEntry<Node> nodePropertyEntry : data.removedNodeProperties()) {
-			if (isInternalProperty(nodePropertyEntry)) {
+			if (isInternalProperty(nodePropertyEntry) || nodePropertyEntry.previouslyCommitedValue() == null) {
 				continue;
 			}
-			addEntryToMap(nodePropertyEntry, modifiedPropsByNode);
+			addEntry(nodePropertyEntry, modifications);
 		}
-		return modifiedPropsByNode;
 	}
 
-	private static boolean isInternalProperty(PropertyEntry<Node> nodePropertyEntry) {
-		return nodePropertyEntry.key().equals(VersionContext.VALID_FROM_PROPERTY) || nodePropertyEntry.key().equals(VersionContext.VALID_TO_PROPERTY);
+	/**
+	 * Anything besides node property changes that makes a transaction worth a version of its own.
+	 */
+	private static boolean hasOtherChanges(TransactionData data) {
+		if (data.createdNodes().iterator().hasNext() || data.createdRelationships().iterator().hasNext() || data.deletedNodes().iterator().hasNext()
+				|| data.deletedRelationships().iterator().hasNext()) {
+			return true;
+		}
+		for (PropertyEntry<Node> nodePropertyEntry : data.assignedNodeProperties()) {
+			if (nodePropertyEntry.key().equals(VersionContext.DELETED_PROP_KEY) && !isUnchanged(nodePropertyEntry)) {
+				return true;
+			}
+		}
+		for (PropertyEntry<Relationship> relationshipPropertyEntry : data.assignedRelationshipProperties()) {
+			if (!isInternalProperty(relationshipPropertyEntry) && !isUnchanged(relationshipPropertyEntry)) {
+				return true;
+			}
+		}
+		for (PropertyEntry<Relationship> relationshipPropertyEntry : data.removedRelationshipProperties()) {
+			if (!isInternalProperty(relationshipPropertyEntry) && relationshipPropertyEntry.previouslyCommitedValue() != null) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	private static void addEntryToMap(PropertyEntry<Node> nodePropertyEntry, Map<Node, Map<String, Object>> modifiedPropsByNode) {
-		Map<String, Object> modifiedProps = modifiedPropsByNode.get(nodePropertyEntry.entity());
-		if (modifiedProps == null) {
-			modifiedProps = new HashMap<String, Object>();
-			modifiedPropsByNode.put(nodePropertyEntry.entity(), modifiedProps);
-		}
-		modifiedProps.put(nodePropertyEntry.key(), nodePropertyEntry.previouslyCommitedValue());
+	private static boolean isInternalProperty(PropertyEntry<?> propertyEntry) {
+		return VersionContext.isInternalKey(propertyEntry.key());
+	}
+
+	private static boolean isUnchanged(PropertyEntry<?> propertyEntry) {
+		return sameValue(propertyEntry.value(), propertyEntry.previouslyCommitedValue());
 	}
 
-	private static void rotateProperties(long version, Map<Node, Map<String, Object>> modifiedPropsByNode) {
-		for (Map.Entry<Node, Map<String, Object>> nodeEntry : modifiedPropsByNode.entrySet()) {
-			Node mainNode = nodeEntry.getKey();
-			Node newHistoricNode = mainNode.getGraphDatabase().createNode();
-			copyProps(mainNode, newHistoricNode, nodeEntry.getValue());
-			insertFirstInChain(mainNode, newHistoricNode, version);
+	static boolean sameValue(Object value, Object otherValue) {
+		// deepEquals compares primitive arrays element by element, which plain equals does not.
+		return Arrays.deepEquals(new Object[] { value }, new Object[] { otherValue });
+	}
+
+	private static void addEntry(PropertyEntry<Node> nodePropertyEntry, ModificationBuffer modifications) throws IOException {
+		modifications.add(nodePropertyEntry.entity().getId(), nodePropertyEntry.key(), nodePropertyEntry.previouslyCommitedValue());
+	}
+
+	/**
+	 * Keeps the revision before {@code version} of every modified node, collecting what changed when
+	 * {@code modifiedNodeIds} is given.
+	 */
+	private void rotateProperties(final long version, ModificationBuffer modifications, final LongList modifiedNodeIds, final List<String[]> modifiedKeys,
+			final AggregateTracker aggregateTracker) throws IOException {
+		final GraphDatabaseService graphDb = versionDataNode.getGraphDatabase();
+		modifications.forEachNode(new ModificationBuffer.NodeHandler() {
+			@Override
+			public void modified(long nodeId, Map<String, Object> previousValues) {
+				if (modifiedNodeIds != null) {
+					modifiedNodeIds.add(nodeId);
+					modifiedKeys.add(previousValues.keySet().toArray(new String[previousValues.size()]));
+				}
+				Node mainNode = graphDb.getNodeById(nodeId);
+				KeyFilter.addAll(mainNode, previousValues.keySet());
+				long startVersion = getStartVersion(mainNode);
+				if (startVersion >= version) {
+					// Created in this transaction, there is no earlier revision to keep.
+					return;
+				}
+				historyStore.append(mainNode, historicProps(mainNode, previousValues), range(startVersion, version - 1));
+				setStartVersion(mainNode, version);
+				if (aggregateTracker != null) {
+					aggregateTracker.modified(mainNode, previousValues.keySet());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Collects the new values of aggregated keys, for {@link TemporalAggregates} to take in once the version commits.
+	 */
+	private static final class AggregateTracker {
+		private final TemporalAggregates aggregates;
+		private final List<TemporalAggregates.Change> changes;
+
+		AggregateTracker(TemporalAggregates aggregates, List<TemporalAggregates.Change> changes) {
+			this.aggregates = aggregates;
+			this.changes = changes;
+		}
+
+		void modified(Node node, Set<String> keys) {
+			for (String key : keys) {
+				if (aggregates.tracks(key)) {
+					changes.add(new TemporalAggregates.Change(node.getId(), key, node.getProperty(key, null)));
+				}
+			}
 		}
 	}
 
-	private static void copyProps(Node node, Node newNode, Map<String, Object> oldValues) {
+	static Map<String, Object> historicProps(Node node, Map<String, Object> oldValues) {
+		Map<String, Object> props = new HashMap<String, Object>();
 		for (String propKey : node.getPropertyKeys()) {
-			newNode.setProperty(propKey, node.getProperty(propKey, null));
+			props.put(propKey, node.getProperty(propKey, null));
 		}
 		for (Map.Entry<String, Object> propEntry : oldValues.entrySet()) {
 			String key = propEntry.getKey();
 			Object value = propEntry.getValue();
 			if (value == null) {
-				newNode.removeProperty(key);
+				props.remove(key);
 			} else {
-				newNode.setProperty(key, value);
+				props.put(key, value);
 			}
 		}
+		props.remove(VersionContext.VALID_FROM_PROPERTY);
+		props.remove(VersionContext.VALID_TO_PROPERTY);
+		props.remove(VersionContext.VALIDITY_PROPERTY);
+		props.remove(VersionContext.KEY_FILTER_PROPERTY);
+		props.remove(VersionContext.CREATED_VERSION_PROPERTY);
+		return props;
 	}
 
-	private static void insertFirstInChain(Node mainNode, Node newHistoricNode, long version) {
-		Relationship prevVersionRel = mainNode.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
-		if (prevVersionRel != null) {
-			newHistoricNode.createRelationshipTo(prevVersionRel.getOtherNode(mainNode), VersionContext.PREV_VERSION_REL_TYPE);
-			prevVersionRel.delete();
+	@Override
+	public void afterCommit(TransactionData data, Object state) {
+		if (state == null) {
+			return;
+		}
+		CommitState commitState = (CommitState) state;
+		// The shipper goes first, so nothing this thread may wait on delays shipping.
+		if (commitState.shipper != null) {
+			commitState.shipper.publish(commitState.record);
+		}
+		VersionStatistics currentStatistics = statistics;
+		if (currentStatistics != null) {
+			updateStatistics(currentStatistics, commitState);
+		}
+		TemporalAggregates currentAggregates = aggregates;
+		if (currentAggregates != null) {
+			currentAggregates.apply(commitState.version, commitState.aggregateChanges, commitState.deletedNodeIds);
+		}
+		if (commitState.changeFeed != null) {
+			commitState.changeFeed.publish(commitState.changeSet);
 		}
-		mainNode.createRelationshipTo(newHistoricNode, VersionContext.PREV_VERSION_REL_TYPE);
-		setStartVersion(newHistoricNode, getStartVersion(mainNode));
-		setEndVersion(newHistoricNode, version - 1);
-		setStartVersion(mainNode, version);
 	}
 
-	@Override
-	public void afterCommit(TransactionData data, Object state) {
+	private static void updateStatistics(VersionStatistics statistics, CommitState state) {
+		statistics.addNodes(state.version, state.createdNodes - state.deletedNodes);
+		for (String type : state.createdRelationshipTypes) {
+			statistics.addRelationships(type, state.version, 1);
+		}
+		for (Map.Entry<String, int[]> entry : state.deletedRelationships.entrySet()) {
+			statistics.addRelationships(entry.getKey(), state.version, -entry.getValue()[0]);
+		}
 	}
 
 	@Override
@@ -171,4 +515,349 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
 	public long getLatestVersion() {
 		return (Long) versionDataNode.getProperty(LATEST_VERSION_PROP_KEY, 0L);
 	}
+
+	/**
+	 * Moves the latest version up to {@code version} unless it already is at or past it, returning the latest version
+	 * before. Must run in a transaction with versioning suspended; once it has committed, hand the skipped versions to
+	 * {@link #publishSkippedVersions}.
+	 */
+	long raiseLatestVersion(long version) {
+		versionDataNode.setProperty(LOCK_PROP_KEY, 0);
+		long latestVersion = getLatestVersion();
+		if (latestVersion < version) {
+			setLatestVersion(version);
+		}
+		return latestVersion;
+	}
+
+	/**
+	 * Tells the change feed and the replication shipper that versions {@code from} to {@code to} were skipped without
+	 * being committed through this handler, so their consumers do not wait for them.
+	 */
+	void publishSkippedVersions(long from, long to) {
+		ChangeFeed currentChangeFeed = changeFeed;
+		if (currentChangeFeed != null) {
+			currentChangeFeed.publishMissing(from, to);
+		}
+		ReplicationShipper currentShipper = replicationShipper;
+		if (currentShipper != null) {
+			currentShipper.publishMissing(from, to);
+		}
+	}
+
+	/**
+	 * Runs {@code attach} holding the version lock and returns the latest version: every version committed after
+	 * sees what {@code attach} did, and none up to the returned one does.
+	 */
+	private long underVersionLock(Runnable attach) {
+		suspendVersioning();
+		try {
+			Transaction tx = versionDataNode.getGraphDatabase().beginTx();
+			try {
+				versionDataNode.setProperty(LOCK_PROP_KEY, 0);
+				attach.run();
+				long latestVersion = getLatestVersion();
+				tx.success();
+				return latestVersion;
+			} finally {
+				tx.finish();
+			}
+		} finally {
+			resumeVersioning();
+		}
+	}
+
+	/**
+	 * When set, transactions whose writes all left the graph as it was do not consume a version.
+	 */
+	public void setSkipNoOpTransactions(boolean skipNoOpTransactions) {
+		this.skipNoOpTransactions = skipNoOpTransactions;
+	}
+
+	/**
+	 * When set, entities created from now on store their validity as a single packed
+	 * {@link VersionContext#VALIDITY_PROPERTY}, and contexts from {@link #versionContext(long)} probe that encoding
+	 * first. Existing entities keep their encoding until migrated with {@link ValidityMigration}.
+	 */
+	public void setPackedValidity(boolean packedValidity) {
+		this.packedValidity = packedValidity;
+	}
+
+	/**
+	 * Lets the current thread commit maintenance transactions, such as migrations or compaction, without them being
+	 * versioned. Must be paired with {@link #resumeVersioning()}.
+	 */
+	public void suspendVersioning() {
+		suspended.set(Boolean.TRUE);
+	}
+
+	public void resumeVersioning() {
+		suspended.remove();
+	}
+
+	/**
+	 * Keeps {@code statistics} up to date with every committed version. Pass {@code null} to stop.
+	 */
+	public void setStatistics(VersionStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public VersionStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Keeps {@code aggregates} up to date with every committed version. Pass {@code null} to stop.
+	 */
+	public void setTemporalAggregates(TemporalAggregates aggregates) {
+		this.aggregates = aggregates;
+	}
+
+	public TemporalAggregates getTemporalAggregates() {
+		return aggregates;
+	}
+
+	/**
+	 * Counts the nodes read through contexts from {@link #versionContext(long)} in {@code statistics}, for a
+	 * {@link CacheWarmer}. Pass {@code null} to stop.
+	 */
+	public void setAccessStatistics(AccessStatistics statistics) {
+		this.accessStatistics = statistics;
+	}
+
+	public AccessStatistics getAccessStatistics() {
+		return accessStatistics;
+	}
+
+	/**
+	 * Publishes a {@link ChangeSet} to {@code changeFeed} after every versioned commit. Pass {@code null} to stop.
+	 * Versions from the feed's first version committed before it was set reach it as empty change sets. Must not be
+	 * called in a transaction.
+	 */
+	public void setChangeFeed(final ChangeFeed changeFeed) {
+		if (changeFeed == this.changeFeed) {
+			return;
+		}
+		long latestVersion = underVersionLock(new Runnable() {
+			@Override
+			public void run() {
+				VersioningTransactionEventHandler.this.changeFeed = changeFeed;
+			}
+		});
+		if (changeFeed != null) {
+			changeFeed.publishMissing(changeFeed.getFirstVersion(), latestVersion);
+		}
+	}
+
+	public ChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * Hands the {@link VersionRecord} of every versioned commit to {@code shipper}. Pass {@code null} to stop. Versions
+	 * from the shipper's first version committed before it was set are shipped as missing. Must not be called in a
+	 * transaction.
+	 */
+	public void setReplicationShipper(final ReplicationShipper shipper) {
+		if (shipper == this.replicationShipper) {
+			return;
+		}
+		long latestVersion = underVersionLock(new Runnable() {
+			@Override
+			public void run() {
+				replicationShipper = shipper;
+			}
+		});
+		if (shipper != null) {
+			shipper.publishMissing(shipper.getFirstVersion(), latestVersion);
+		}
+	}
+
+	public ReplicationShipper getReplicationShipper() {
+		return replicationShipper;
+	}
+
+	/**
+	 * Bounds the memory a transaction's modified properties take while being versioned: past {@code maxBytes}
+	 * (estimated) they spill to temporary files in {@code spillDirectory}, or the default temporary directory when
+	 * {@code null}. Pass {@link Long#MAX_VALUE} to keep everything in memory, the default.
+	 */
+	public void setStreamingMode(long maxBytes, File spillDirectory) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Memory bound must be positive, was [" + maxBytes + "].");
+		}
+		this.spillDirectory = spillDirectory;
+		this.maxModificationBytes = maxBytes;
+	}
+
+	/**
+	 * The most memory, estimated in bytes, the modified properties of a single transaction have taken.
+	 */
+	public long getPeakModificationBytes() {
+		return peakModificationBytes.get();
+	}
+
+	public long getSpilledModificationBytes() {
+		return spilledModificationBytes.get();
+	}
+
+	public long getSpilledTransactionCount() {
+		return spilledTransactions.get();
+	}
+
+	/**
+	 * Versions long-running readers work at; history they need is not reclaimed while they are pinned.
+	 */
+	public SnapshotPins getSnapshotPins() {
+		return snapshotPins;
+	}
+
+	public HistoryStore getHistoryStore() {
+		return historyStore;
+	}
+
+	/**
+	 * Returns a {@link VersionContext} reading history from this handler's {@link HistoryStore}.
+	 */
+	public VersionContext versionContext(long version) {
+		AsOfCache cache = asOfCache;
+		VersionContext context = cache != null ? new CachingVersionContext(version, historyStore, cache, txManager, getLatestVersion())
+				: new VersionContext(version, historyStore);
+		context.setAccessStatistics(accessStatistics);
+		context.setPackedValidity(packedValidity);
+		return context;
+	}
+
+	/**
+	 * Returns an {@link IntervalVersionContext} over versions {@code from} to {@code to} inclusive, reading history from
+	 * this handler's {@link HistoryStore}.
+	 */
+	public IntervalVersionContext intervalContext(long from, long to) {
+		return new IntervalVersionContext(range(from, to), historyStore);
+	}
+
+	/**
+	 * Answers reads through {@link #versionContext(long)} from {@code cache}. Pass {@code null} to stop.
+	 */
+	public void setAsOfCache(AsOfCache cache) {
+		GraphDatabaseService graphDb = versionDataNode.getGraphDatabase();
+		if (cache != null && graphDb instanceof GraphDatabaseAPI) {
+			// Reads in transactions are never cached; without the transaction manager no read is.
+			txManager = ((GraphDatabaseAPI) graphDb).getDependencyResolver().resolveDependency(TransactionManager.class);
+		}
+		this.asOfCache = cache;
+	}
+
+	public AsOfCache getAsOfCache() {
+		return asOfCache;
+	}
+
+	/**
+	 * Creates a named {@link Branch} of trunk as it was at {@code forkVersion}. Must not be called in a transaction.
+	 */
+	public Branch createBranch(String name, long forkVersion) {
+		if (forkVersion < 1 || forkVersion > getLatestVersion()) {
+			throw new IllegalArgumentException("Version [" + forkVersion + "] has not been committed.");
+		}
+		Node branchNode;
+		suspendVersioning();
+		try {
+			Transaction tx = versionDataNode.getGraphDatabase().beginTx();
+			try {
+				// Serializes branch creation, so two branches cannot take the same name.
+				versionDataNode.setProperty(LOCK_PROP_KEY, 0);
+				if (findBranchNode(name) != null) {
+					throw new IllegalArgumentException("Branch [" + name + "] already exists.");
+				}
+				branchNode = versionDataNode.getGraphDatabase().createNode();
+				branchNode.setProperty(Branch.BRANCH_PROPERTY, name);
+				branchNode.setProperty(Branch.FORK_VERSION_PROPERTY, forkVersion);
+				branchNode.setProperty(Branch.LATEST_VERSION_PROPERTY, forkVersion);
+				versionDataNode.createRelationshipTo(branchNode, Branch.BRANCH_REL_TYPE).setProperty(Branch.BRANCH_PROPERTY, name);
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		} finally {
+			resumeVersioning();
+		}
+		branchesPresent = true;
+		Branch branch = new Branch(branchNode, historyStore, transactionManager());
+		branches.put(name, branch);
+		return branch;
+	}
+
+	public Branch getBranch(String name) {
+		Branch branch = branches.get(name);
+		if (branch == null) {
+			Node branchNode = findBranchNode(name);
+			if (branchNode == null) {
+				throw new NotFoundException("Branch [" + name + "] not found.");
+			}
+			branch = new Branch(branchNode, historyStore, transactionManager());
+			Branch existing = branches.putIfAbsent(name, branch);
+			if (existing != null) {
+				branch = existing;
+			}
+		}
+		return branch;
+	}
+
+	public Collection<Branch> getBranches() {
+		List<Branch> all = new ArrayList<Branch>();
+		for (Relationship branchRel : versionDataNode.getRelationships(Branch.BRANCH_REL_TYPE, Direction.OUTGOING)) {
+			all.add(getBranch((String) branchRel.getProperty(Branch.BRANCH_PROPERTY)));
+		}
+		return all;
+	}
+
+	/**
+	 * Discards a branch and everything written to it, in one transaction. Must not be called in a transaction.
+	 */
+	public void dropBranch(String name) {
+		suspendVersioning();
+		try {
+			Transaction tx = versionDataNode.getGraphDatabase().beginTx();
+			try {
+				versionDataNode.setProperty(LOCK_PROP_KEY, 0);
+				Node branchNode = findBranchNode(name);
+				if (branchNode == null) {
+					throw new NotFoundException("Branch [" + name + "] not found.");
+				}
+				new Branch(branchNode, historyStore, null).delete();
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		} finally {
+			resumeVersioning();
+		}
+		branches.remove(name);
+	}
+
+	private Node findBranchNode(String name) {
+		for (Relationship branchRel : versionDataNode.getRelationships(Branch.BRANCH_REL_TYPE, Direction.OUTGOING)) {
+			if (name.equals(branchRel.getProperty(Branch.BRANCH_PROPERTY))) {
+				return branchRel.getEndNode();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Whether any branch was ever created, so transactions must be told apart from what they write to branches.
+	 */
+	private boolean hasBranches() {
+		Boolean present = branchesPresent;
+		if (present == null) {
+			present = versionDataNode.hasRelationship(Branch.BRANCH_REL_TYPE, Direction.OUTGOING);
+			branchesPresent = present;
+		}
+		return present;
+	}
+
+	private TransactionManager transactionManager() {
+		GraphDatabaseService graphDb = versionDataNode.getGraphDatabase();
+		return graphDb instanceof GraphDatabaseAPI ? ((GraphDatabaseAPI) graphDb).getDependencyResolver().resolveDependency(TransactionManager.class) : null;
+	}
 }
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class AsOfCacheTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private AsOfCache cache;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		cache = new AsOfCache(100);
+		versioningTransactionEventHandler.setAsOfCache(cache);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shouldServeRepeatedHistoricReadsFromCache() {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		Node other = createNode();
+		createRelationship(node, other);
+		setProperty(node, "key", "bar");
+
+		assertEquals("foo", versioningTransactionEventHandler.versionContext(fooVersion).node(node).getProperty("key"));
+		assertEquals(0, cache.getHistoricHits());
+		assertEquals("foo", versioningTransactionEventHandler.versionContext(fooVersion).node(node).getProperty("key"));
+		assertEquals(2, cache.getHistoricHits());
+
+		long linkedVersion = versioningTransactionEventHandler.getLatestVersion() - 1;
+		VersionedNode linked = versioningTransactionEventHandler.versionContext(linkedVersion).node(node);
+		assertEquals(1, IteratorUtil.count(linked.getRelationships(Direction.OUTGOING, RelTypes.LINKED)));
+		long hits = cache.getHistoricHits();
+		assertEquals(1, IteratorUtil.count(linked.getRelationships(Direction.OUTGOING, RelTypes.LINKED)));
+		assertEquals(hits + 1, cache.getHistoricHits());
+		assertEquals(0, IteratorUtil.count(versioningTransactionEventHandler.versionContext(fooVersion).node(node).getRelationships(RelTypes.LINKED)));
+	}
+
+	@Test
+	public void shouldNotCacheReadsOfUncommittedWrites() {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		setProperty(node, "other", "value");
+		long version = versioningTransactionEventHandler.getLatestVersion();
+
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty("key", "uncommitted");
+			assertEquals("uncommitted", versioningTransactionEventHandler.versionContext(version).node(node).getProperty("key"));
+		} finally {
+			tx.finish();
+		}
+		assertEquals(0, cache.size());
+		assertEquals("foo", versioningTransactionEventHandler.versionContext(version).node(node).getProperty("key"));
+	}
+
+	enum RelTypes implements RelationshipType {
+		LINKED;
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void createRelationship(Node from, Node to) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			from.createRelationshipTo(to, RelTypes.LINKED);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.helpers.collection.IteratorUtil.count;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.NotInTransactionException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class BranchTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void branchWritesShouldNotReachTrunk() {
+		Node node = createNode("price", 10);
+		long forkVersion = versioningTransactionEventHandler.getLatestVersion();
+		BranchVersionContext branch = versioningTransactionEventHandler.createBranch("what-if", forkVersion).versionContext();
+
+		Transaction tx = graphDb.beginTx();
+		try {
+			branch.node(node).setProperty("price", 20);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		setProperty(node, "price", 30);
+
+		assertEquals(20, branch.node(node).getProperty("price"));
+		assertEquals(30, node.getProperty("price"));
+		assertEquals(10, versioningTransactionEventHandler.versionContext(forkVersion).node(node).getProperty("price"));
+		assertEquals(1, versioningTransactionEventHandler.getBranch("what-if").getChangeCount());
+	}
+
+	@Test
+	public void branchShouldSeeTrunkAsOfForkVersion() {
+		Node node = createNode("name", "a");
+		long forkVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "name", "b");
+
+		VersionedNode onBranch = versioningTransactionEventHandler.createBranch("old", forkVersion).versionContext().node(node);
+		assertEquals("a", onBranch.getProperty("name"));
+		Transaction tx = graphDb.beginTx();
+		try {
+			onBranch.removeProperty("name");
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		assertFalse(onBranch.hasProperty("name"));
+		assertEquals("b", node.getProperty("name"));
+	}
+
+	@Test
+	public void branchShouldOverlayRelationships() {
+		Node a = createNode("name", "a");
+		Node b = createNode("name", "b");
+		Relationship trunkRelationship = createRelationship(a, b);
+		BranchVersionContext branch = versioningTransactionEventHandler.createBranch("rewire", versioningTransactionEventHandler.getLatestVersion())
+				.versionContext();
+
+		VersionedNode c;
+		Transaction tx = graphDb.beginTx();
+		try {
+			c = branch.createNode();
+			c.setProperty("name", "c");
+			branch.node(a).createRelationshipTo(c, RelTypes.LINKED);
+			branch.deleteRelationship(trunkRelationship);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+
+		Relationship onBranch = branch.node(a).getSingleRelationship(RelTypes.LINKED, Direction.OUTGOING);
+		assertEquals("c", onBranch.getEndNode().getProperty("name"));
+		assertEquals(1, count(c.getRelationships(Direction.INCOMING)));
+		VersionContext trunk = versioningTransactionEventHandler.versionContext(versioningTransactionEventHandler.getLatestVersion());
+		assertEquals(b.getId(), trunk.node(a).getSingleRelationship(RelTypes.LINKED, Direction.OUTGOING).getEndNode().getId());
+
+		tx = graphDb.beginTx();
+		try {
+			branch.deleteNode(b);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		try {
+			branch.node(b);
+			fail("Should have thrown exception.");
+		} catch (NotFoundException e) {
+		}
+		assertEquals("b", trunk.node(b).getProperty("name"));
+	}
+
+	@Test
+	public void rolledBackBranchWritesShouldBeDiscarded() {
+		Node node = createNode("price", 10);
+		Branch branch = versioningTransactionEventHandler.createBranch("rollback", versioningTransactionEventHandler.getLatestVersion());
+
+		Transaction tx = graphDb.beginTx();
+		try {
+			branch.versionContext().node(node).setProperty("price", 20);
+			branch.versionContext().createNode().setProperty("name", "new");
+			tx.failure();
+		} finally {
+			tx.finish();
+		}
+
+		assertEquals(10, branch.versionContext().node(node).getProperty("price"));
+		assertEquals(branch.getForkVersion(), branch.getLatestVersion());
+		assertEquals(0, branch.getChangeCount());
+	}
+
+	@Test(expected = NotInTransactionException.class)
+	public void branchWritesShouldNeedATransaction() {
+		Node node = createNode("price", 10);
+		versioningTransactionEventHandler.createBranch("no-tx", versioningTransactionEventHandler.getLatestVersion()).versionContext().node(node)
+				.setProperty("price", 20);
+	}
+
+	@Test
+	public void branchShouldKeepItsOwnVersions() {
+		Node node = createNode("price", 10);
+		long forkVersion = versioningTransactionEventHandler.getLatestVersion();
+		Branch branch = versioningTransactionEventHandler.createBranch("history", forkVersion);
+
+		setBranchProperty(branch, node, "price", 20);
+		setBranchProperty(branch, node, "price", 30);
+		setProperty(node, "price", 40);
+
+		assertEquals(forkVersion + 2, branch.getLatestVersion());
+		assertEquals(10, branch.versionContext(forkVersion).node(node).getProperty("price"));
+		assertEquals(20, branch.versionContext(forkVersion + 1).node(node).getProperty("price"));
+		assertEquals(30, branch.versionContext(forkVersion + 2).node(node).getProperty("price"));
+		assertEquals(30, branch.versionContext().node(node).getProperty("price"));
+		try {
+			setBranchProperty(branch, node, "price", 50, forkVersion + 1);
+			fail("Should have thrown exception.");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void branchesShouldBeStoredInTheGraph() {
+		Node node = createNode("price", 10);
+		long forkVersion = versioningTransactionEventHandler.getLatestVersion();
+		setBranchProperty(versioningTransactionEventHandler.createBranch("kept", forkVersion), node, "price", 20);
+
+		graphDb.unregisterTransactionEventHandler(versioningTransactionEventHandler);
+		VersioningTransactionEventHandler reopened = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(reopened);
+
+		assertEquals(1, reopened.getBranches().size());
+		Branch branch = reopened.getBranch("kept");
+		assertEquals(forkVersion, branch.getForkVersion());
+		assertEquals(forkVersion + 1, branch.getLatestVersion());
+		assertEquals(20, branch.versionContext().node(node).getProperty("price"));
+
+		reopened.dropBranch("kept");
+		assertTrue(reopened.getBranches().isEmpty());
+		assertEquals(10, node.getProperty("price"));
+		assertFalse(graphDb.getReferenceNode().hasRelationship(Branch.BRANCH_REL_TYPE));
+		assertFalse(node.hasRelationship(Branch.OVERLAY_REL_TYPE));
+	}
+
+	@Test
+	public void scansAndCursorsShouldSeeTheBranch() {
+		Node a = createNode("name", "a");
+		Node b = createNode("name", "b");
+		createRelationship(a, b);
+		Branch branch = versioningTransactionEventHandler.createBranch("scan", versioningTransactionEventHandler.getLatestVersion());
+		BranchVersionContext onBranch = branch.versionContext();
+
+		VersionedNode c;
+		Transaction tx = graphDb.beginTx();
+		try {
+			c = onBranch.createNode();
+			c.setProperty("name", "c");
+			onBranch.node(a).createRelationshipTo(c, RelTypes.LINKED);
+			onBranch.deleteNode(b);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+
+		assertEquals(set("a", "c"), names(onBranch.getAllNodes(graphDb)));
+		assertEquals(1, count(onBranch.getAllRelationships(graphDb)));
+		VersionContext trunk = versioningTransactionEventHandler.versionContext(versioningTransactionEventHandler.getLatestVersion());
+		assertEquals(set("a", "b"), names(trunk.getAllNodes(graphDb)));
+		assertEquals(1, count(trunk.getAllRelationships(graphDb)));
+
+		ValidRelationshipCursor cursor = onBranch.relationshipCursor().init(a, Direction.OUTGOING);
+		assertTrue(cursor.next());
+		assertEquals(c.getId(), cursor.otherNodeId());
+		assertFalse(cursor.next());
+
+		PropertyBatch batch = onBranch.getProperties(graphDb, new long[] { a.getId(), b.getId(), c.getId() }, new String[] { "name" });
+		assertTrue(batch.isPresent(0));
+		assertFalse(batch.isPresent(1));
+		assertEquals("c", batch.get(2, 0));
+		assertEquals(set("a", "b"), names(branch.versionContext(branch.getForkVersion()).getAllNodes(graphDb)));
+	}
+
+	enum RelTypes implements RelationshipType {
+		LINKED;
+	}
+
+	private Node createNode(String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			node.setProperty(key, value);
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setBranchProperty(Branch branch, Node node, String key, Object value) {
+		setBranchProperty(branch, node, key, value, Long.MAX_VALUE);
+	}
+
+	private void setBranchProperty(Branch branch, Node node, String key, Object value, long branchVersion) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			(branchVersion == Long.MAX_VALUE ? branch.versionContext() : branch.versionContext(branchVersion)).node(node).setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static Set<String> set(String... names) {
+		return new HashSet<String>(Arrays.asList(names));
+	}
+
+	private static Set<String> names(Iterable<Node> nodes) {
+		Set<String> names = new HashSet<String>();
+		for (Node node : nodes) {
+			names.add((String) node.getProperty("name"));
+		}
+		return names;
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private Relationship createRelationship(Node from, Node to) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Relationship relationship = from.createRelationshipTo(to, RelTypes.LINKED);
+			tx.success();
+			return relationship;
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class CacheWarmerTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private File statisticsFile;
+
+	@Before
+	public void setUp() throws IOException {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+		statisticsFile = File.createTempFile("access", ".stats");
+		statisticsFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+		statisticsFile.delete();
+	}
+
+	@Test
+	public void shouldWarmNodesMostReadInPreviousRun() throws Exception {
+		Node hot = createNode();
+		Node cold = createNode();
+		setProperty(hot, "key", "foo");
+		setProperty(hot, "key", "bar");
+		long version = versioningTransactionEventHandler.getLatestVersion();
+
+		CacheWarmer previousRun = new CacheWarmer(graphDb, versioningTransactionEventHandler, statisticsFile);
+		previousRun.start();
+		assertTrue(previousRun.awaitWarmUp(10, TimeUnit.SECONDS));
+		assertEquals(0, previousRun.getWarmedNodeCount());
+		for (int i = 0; i < 4; i++) {
+			versioningTransactionEventHandler.versionContext(version - 1).node(hot);
+		}
+		versioningTransactionEventHandler.versionContext(version).node(cold);
+		assertArrayEquals(new long[] { hot.getId(), cold.getId() }, versioningTransactionEventHandler.getAccessStatistics().getMostRead(10));
+		previousRun.beforeShutdown();
+		assertNull(previousRun.getFailure());
+
+		CacheWarmer warmer = new CacheWarmer(graphDb, versioningTransactionEventHandler, statisticsFile);
+		warmer.setSegments(1);
+		warmer.start();
+		assertTrue(warmer.awaitWarmUp(10, TimeUnit.SECONDS));
+		assertNull(warmer.getFailure());
+		assertEquals(1, warmer.getWarmedNodeCount());
+		AccessStatistics statistics = versioningTransactionEventHandler.getAccessStatistics();
+		assertEquals(2, statistics.getCount(hot.getId()));
+		assertEquals(0, statistics.getCount(cold.getId()));
+	}
+
+	@Test
+	public void shouldLetNodesReadLatelyDisplaceOnesNoLongerRead() {
+		AccessStatistics statistics = new AccessStatistics(2);
+		for (int i = 0; i < 4; i++) {
+			statistics.record(1);
+		}
+		statistics.record(2);
+		for (int i = 0; i < 3; i++) {
+			statistics.record(3);
+		}
+
+		assertEquals(2, statistics.size());
+		assertEquals(0, statistics.getCount(2));
+		assertArrayEquals(new long[] { 3, 1 }, statistics.getMostRead(2));
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
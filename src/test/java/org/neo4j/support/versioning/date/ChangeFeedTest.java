@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class ChangeFeedTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private ChangeFeed changeFeed;
+	private final BlockingQueue<ChangeSet> received = new LinkedBlockingQueue<ChangeSet>();
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		changeFeed = new ChangeFeed(versioningTransactionEventHandler.getLatestVersion() + 1, 4, 2);
+		versioningTransactionEventHandler.setChangeFeed(changeFeed);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+		changeFeed.subscribe("test-subscriber", new ChangeSubscriber() {
+			@Override
+			public void onChanges(List<ChangeSet> changes) {
+				received.addAll(changes);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		changeFeed.close();
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shouldDeliverChangesInVersionOrder() throws InterruptedException {
+		Node node = createNode();
+		for (int i = 0; i < 10; i++) {
+			setProperty(node, "key", i);
+		}
+
+		ChangeSet created = received.poll(10, TimeUnit.SECONDS);
+		assertEquals(1, created.getVersion());
+		assertArrayEquals(new long[] { node.getId() }, created.getCreatedNodeIds());
+		for (int i = 0; i < 10; i++) {
+			ChangeSet modified = received.poll(10, TimeUnit.SECONDS);
+			assertEquals(i + 2, modified.getVersion());
+			assertArrayEquals(new long[] { node.getId() }, modified.getModifiedNodeIds());
+			assertArrayEquals(new String[] { "key" }, modified.getModifiedKeys()[0]);
+		}
+	}
+
+	@Test
+	public void shouldHandOutVersionsSkippedByRepair() throws InterruptedException {
+		Node node = createNode();
+		long previousLatestVersion;
+		versioningTransactionEventHandler.suspendVersioning();
+		Transaction tx = graphDb.beginTx();
+		try {
+			previousLatestVersion = versioningTransactionEventHandler.raiseLatestVersion(versioningTransactionEventHandler.getLatestVersion() + 2);
+			tx.success();
+		} finally {
+			tx.finish();
+			versioningTransactionEventHandler.resumeVersioning();
+		}
+		setProperty(node, "key", "foo");
+		Thread.sleep(50);
+		assertEquals(1, received.size());
+		versioningTransactionEventHandler.publishSkippedVersions(previousLatestVersion + 1, previousLatestVersion + 2);
+
+		assertEquals(1, received.poll(10, TimeUnit.SECONDS).getVersion());
+		for (long version = 2; version <= 3; version++) {
+			ChangeSet skipped = received.poll(10, TimeUnit.SECONDS);
+			assertEquals(version, skipped.getVersion());
+			assertTrue(skipped.isMissing());
+		}
+		ChangeSet modified = received.poll(10, TimeUnit.SECONDS);
+		assertEquals(4, modified.getVersion());
+		assertFalse(modified.isMissing());
+		assertArrayEquals(new long[] { node.getId() }, modified.getModifiedNodeIds());
+	}
+
+	@Test
+	public void shouldFlagVersionsCommittedBeforeTheFeedWasSet() throws InterruptedException {
+		ChangeFeed lateFeed = new ChangeFeed(versioningTransactionEventHandler.getLatestVersion() + 1);
+		final BlockingQueue<ChangeSet> lateReceived = new LinkedBlockingQueue<ChangeSet>();
+		lateFeed.subscribe("late-subscriber", new ChangeSubscriber() {
+			@Override
+			public void onChanges(List<ChangeSet> changes) {
+				lateReceived.addAll(changes);
+			}
+		});
+		try {
+			createNode();
+			versioningTransactionEventHandler.setChangeFeed(lateFeed);
+			Node node = createNode();
+
+			ChangeSet before = lateReceived.poll(10, TimeUnit.SECONDS);
+			assertEquals(1, before.getVersion());
+			assertTrue(before.isMissing());
+			ChangeSet after = lateReceived.poll(10, TimeUnit.SECONDS);
+			assertEquals(2, after.getVersion());
+			assertFalse(after.isMissing());
+			assertArrayEquals(new long[] { node.getId() }, after.getCreatedNodeIds());
+		} finally {
+			lateFeed.close();
+		}
+	}
+
+	@Test
+	public void shouldDropSubscriberThatHoldsCommitsBack() throws InterruptedException {
+		changeFeed.setMaxPublishWait(50, TimeUnit.MILLISECONDS);
+		final CountDownLatch never = new CountDownLatch(1);
+		ChangeFeed.Subscription stuck = changeFeed.subscribe("stuck-subscriber", new ChangeSubscriber() {
+			@Override
+			public void onChanges(List<ChangeSet> changes) throws InterruptedException {
+				never.await();
+			}
+		});
+
+		Node node = createNode();
+		for (int i = 0; i < 10; i++) {
+			setProperty(node, "key", i);
+		}
+
+		assertTrue(stuck.isOutOfSync());
+		for (long version = 1; version <= 11; version++) {
+			assertEquals(version, received.poll(10, TimeUnit.SECONDS).getVersion());
+		}
+	}
+
+	@Test
+	public void shouldLeaveOutRelationshipsDiscardedWithTheirNode() throws InterruptedException {
+		Node hub = createNode();
+		Node other = createNode();
+		Transaction tx = graphDb.beginTx();
+		try {
+			hub.createRelationshipTo(other, DynamicRelationshipType.withName("LINKED"));
+			VersionContext.vc(versioningTransactionEventHandler.getLatestVersion()).deleteNode(hub);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+
+		received.poll(10, TimeUnit.SECONDS);
+		received.poll(10, TimeUnit.SECONDS);
+		ChangeSet deleted = received.poll(10, TimeUnit.SECONDS);
+		assertArrayEquals(new long[] { hub.getId() }, deleted.getDeletedNodeIds());
+		assertArrayEquals(new long[0], deleted.getCreatedRelationshipIds());
+		assertArrayEquals(new long[0], deleted.getDeletedRelationshipIds());
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class InterningHistoryStoreTest {
+	private static final String LONG_VALUE = "a status description long enough to be worth storing only once";
+
+	private ImpermanentGraphDatabase graphDb;
+	private ValueDictionary dictionary;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		dictionary = new ValueDictionary(graphDb, 100);
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode(), new InterningHistoryStore(
+				InGraphHistoryStore.INSTANCE, dictionary, 16));
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shouldStoreRepeatedLargeValuesOnce() {
+		Node node = createNode();
+		long[] versions = new long[5];
+		for (int i = 0; i < versions.length; i++) {
+			setProperty(node, "counter", i);
+			versions[i] = versioningTransactionEventHandler.getLatestVersion();
+		}
+
+		Set<Object> references = new HashSet<Object>();
+		Relationship prevVersionRel = node.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		while (prevVersionRel != null) {
+			Node holder = prevVersionRel.getEndNode();
+			references.add(holder.getProperty("status"));
+			prevVersionRel = holder.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+		assertEquals(1, references.size());
+		assertTrue(references.iterator().next() instanceof Long);
+
+		for (int i = 0; i < versions.length - 1; i++) {
+			VersionedNode historic = versioningTransactionEventHandler.versionContext(versions[i]).node(node);
+			assertEquals(LONG_VALUE, historic.getProperty("status"));
+			assertEquals(i, historic.getProperty("counter"));
+			for (String key : historic.getPropertyKeys()) {
+				assertFalse(key.equals(InterningHistoryStore.INTERNED_KEYS_PROPERTY));
+			}
+		}
+		assertTrue(dictionary.getCacheHits() > 0);
+	}
+
+	@Test
+	public void resolvedArraysShouldNotShareTheCachedValue() {
+		long reference;
+		Transaction tx = graphDb.beginTx();
+		try {
+			reference = dictionary.intern(new int[] { 1, 2, 3 });
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+
+		((int[]) dictionary.resolve(reference))[0] = 9;
+		((int[]) dictionary.resolve(reference))[1] = 9;
+		assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) dictionary.resolve(reference));
+		assertEquals(2, dictionary.getCacheHits());
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			node.setProperty("status", LONG_VALUE);
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class MappedFileHistoryStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ImpermanentGraphDatabase graphDb;
+	private File historyDir;
+	private MappedFileHistoryStore historyStore;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+	@Before
+	public void setUp() throws IOException {
+		graphDb = new ImpermanentGraphDatabase();
+		historyDir = folder.newFolder("history");
+		historyStore = new MappedFileHistoryStore(historyDir, 4096);
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode(), historyStore);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		graphDb.shutdown();
+		historyStore.close();
+	}
+
+	@Test
+	public void shouldKeepHistoryOutOfTheGraph() {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "bar");
+		long barVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals("foo", versioningTransactionEventHandler.versionContext(fooVersion).node(node).getProperty("key"));
+		assertEquals("bar", versioningTransactionEventHandler.versionContext(barVersion).node(node).getProperty("key"));
+		assertFalse(node.hasRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING));
+	}
+
+	@Test
+	public void shouldFindHistoryAfterReopening() throws IOException {
+		Node node = createNode();
+		setProperty(node, "key", new long[] { 1, 2 });
+		long firstVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "second");
+		historyStore.close();
+
+		historyStore = new MappedFileHistoryStore(historyDir, 4096);
+		VersionContext versionContext = VersionContext.vc(firstVersion, historyStore);
+		assertArrayEquals(new long[] { 1, 2 }, (long[]) versionContext.node(node).getProperty("key"));
+	}
+
+	@Test
+	public void shouldRollOverToNewSegmentWhenFull() {
+		Node node = createNode();
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			value.append('x');
+		}
+		for (int i = 0; i < 10; i++) {
+			setProperty(node, "key", value.toString() + i);
+		}
+		long version = versioningTransactionEventHandler.getLatestVersion() - 5;
+		assertEquals(value.toString() + 4, versioningTransactionEventHandler.versionContext(version).node(node).getProperty("key"));
+		assertTrue(historyDir.list().length > 1);
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
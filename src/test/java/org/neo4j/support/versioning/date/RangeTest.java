@@ -116,6 +116,13 @@ public class RangeTest {
 		assertEquals(asList(range(1, 2), range(3, 4), range(5, 6)), compactRanges(asSet(range(1, 2), range(3, 4), range(5, 6))));
 	}
 
+	@Test
+	public void compactAdjacentShouldMergeAdjacentRanges() {
+		assertEquals(asList(range(1, 4)), Range.compactAdjacentRanges(asSet(range(1, 2), range(3, 4))));
+		assertEquals(asList(range(1, 6), range(8, 9)), Range.compactAdjacentRanges(asList(range(5, 6), range(8, 9), range(1, 2), range(2, 4))));
+		assertEquals(asList(range(1)), Range.compactAdjacentRanges(asList(range(3), range(1, 2))));
+	}
+
 	@Test
 	public void compactShouldMergeOverlappingDateRanges() {
 	}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class ReplicationTest {
+	private ImpermanentGraphDatabase graphDb;
+	private ImpermanentGraphDatabase standbyDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private ReplicationShipper shipper;
+	private QueueReplicationTransport transport;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		standbyDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		transport = new QueueReplicationTransport(100);
+		shipper = new ReplicationShipper(transport, versioningTransactionEventHandler.getLatestVersion() + 1);
+		versioningTransactionEventHandler.setReplicationShipper(shipper);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		shipper.close();
+		graphDb.shutdown();
+		standbyDb.shutdown();
+	}
+
+	@Test
+	public void shouldReplayHistoryOnStandby() throws Exception {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		Node other = createNode();
+		Relationship relationship = createRelationship(node, other);
+		long linkedVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "bar");
+		deleteRelationship(relationship);
+		long latestVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		StandbyReplica replica = new StandbyReplica(standbyDb, standbyDb.getReferenceNode(), transport);
+		replica.start();
+		try {
+			waitForVersion(replica, latestVersion);
+		} finally {
+			replica.stop();
+		}
+		assertNull(replica.getFailure());
+		assertEquals(0, replica.getLag());
+
+		Node standbyNode = replica.getNode(node.getId());
+		assertEquals("foo", replica.versionContext(fooVersion).node(standbyNode).getProperty("key"));
+		assertEquals("bar", replica.versionContext(latestVersion).node(standbyNode).getProperty("key"));
+		assertFalse(replica.versionContext(fooVersion).node(standbyNode).hasRelationship());
+		assertEquals(1, IteratorUtil.count(replica.versionContext(linkedVersion).node(standbyNode).getRelationships(Direction.OUTGOING, RelTypes.LINKED)));
+		assertEquals(0, IteratorUtil.count(replica.versionContext(latestVersion).node(standbyNode).getRelationships(Direction.OUTGOING, RelTypes.LINKED)));
+	}
+
+	@Test
+	public void shouldSkipRecordsAlreadyApplied() throws Exception {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long latestVersion = versioningTransactionEventHandler.getLatestVersion();
+		waitForShipped(latestVersion);
+
+		StandbyReplica replica = new StandbyReplica(standbyDb, standbyDb.getReferenceNode(), transport);
+		List<VersionRecord> records = transport.receive(100, 1, TimeUnit.SECONDS);
+		replica.apply(records);
+		replica.apply(records);
+		assertEquals(latestVersion, replica.getAppliedVersion());
+		assertEquals("foo", replica.versionContext(latestVersion).node(replica.getNode(node.getId())).getProperty("key"));
+
+		setProperty(node, "key", "bar");
+		setProperty(node, "key", "baz");
+		waitForShipped(latestVersion + 2);
+		List<VersionRecord> later = transport.receive(100, 1, TimeUnit.SECONDS);
+		try {
+			replica.apply(new ArrayList<VersionRecord>(later.subList(1, later.size())));
+			fail("Should have thrown exception.");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(latestVersion, replica.getAppliedVersion());
+		replica.apply(later);
+		assertEquals(latestVersion + 2, replica.getAppliedVersion());
+	}
+
+	@Test
+	public void shouldDropShipperThatHoldsCommitsBack() {
+		shipper.close();
+		shipper = new ReplicationShipper(new ReplicationTransport() {
+			@Override
+			public void send(List<VersionRecord> records) throws IOException {
+				throw new IOException("Transport down.");
+			}
+
+			@Override
+			public List<VersionRecord> receive(int maxRecords, long timeout, TimeUnit unit) {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public void close() {
+			}
+		}, versioningTransactionEventHandler.getLatestVersion() + 1, 4, 2);
+		shipper.setMaxPublishWait(50, TimeUnit.MILLISECONDS);
+		versioningTransactionEventHandler.setReplicationShipper(shipper);
+
+		Node node = createNode();
+		for (int i = 0; i < 10; i++) {
+			setProperty(node, "key", i);
+		}
+
+		assertTrue(shipper.isOutOfSync());
+		assertEquals(0, shipper.getShippedVersion());
+	}
+
+	@Test
+	public void shouldWaitForVersionsHandedOverLate() throws Exception {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long latestVersion = versioningTransactionEventHandler.getLatestVersion();
+		waitForShipped(latestVersion);
+		transport.receive(100, 1, TimeUnit.SECONDS);
+
+		shipper.publish(new VersionRecord(latestVersion + 2, Collections.singletonList(new VersionRecord.Change(VersionRecord.Operation.SET_NODE_PROPERTIES,
+				node.getId(), -1, -1, null, Collections.<String, Object> singletonMap("key", "bar"), 0))));
+		Thread.sleep(1500);
+		assertEquals(latestVersion, shipper.getShippedVersion());
+		shipper.publish(new VersionRecord(latestVersion + 1, Collections.<VersionRecord.Change> emptyList()));
+		waitForShipped(latestVersion + 2);
+
+		List<VersionRecord> records = transport.receive(100, 1, TimeUnit.SECONDS);
+		assertEquals(2, records.size());
+		for (VersionRecord record : records) {
+			assertFalse(record.isMissing());
+		}
+	}
+
+	@Test
+	public void shouldReportLagBehindPrimary() throws Exception {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		setProperty(node, "key", "bar");
+		long latestVersion = versioningTransactionEventHandler.getLatestVersion();
+		waitForShipped(latestVersion);
+
+		StandbyReplica replica = new StandbyReplica(standbyDb, standbyDb.getReferenceNode(), transport);
+		List<VersionRecord> records = transport.receive(100, 1, TimeUnit.SECONDS);
+		replica.apply(Collections.singletonList(records.get(0).withPrimaryVersion(latestVersion)));
+		assertEquals(latestVersion, replica.getPrimaryVersion());
+		assertEquals(latestVersion - 1, replica.getLag());
+		replica.apply(records);
+		assertEquals(0, replica.getLag());
+	}
+
+	@Test
+	public void shouldStopOnVersionsNotCaptured() {
+		Node node = createNode();
+		StandbyReplica replica = new StandbyReplica(standbyDb, standbyDb.getReferenceNode(), transport);
+		replica.apply(Collections.singletonList(new VersionRecord(1, Collections.singletonList(new VersionRecord.Change(VersionRecord.Operation.CREATE_NODE,
+				node.getId(), -1, -1, null, Collections.<String, Object> emptyMap(), 0)))));
+		try {
+			replica.apply(Collections.singletonList(VersionRecord.missing(2)));
+			fail("Should have thrown exception.");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(1, replica.getAppliedVersion());
+	}
+
+	private void waitForShipped(long version) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (shipper.getShippedVersion() < version && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(version, shipper.getShippedVersion());
+	}
+
+	private void waitForVersion(StandbyReplica replica, long version) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (replica.getAppliedVersion() < version && replica.getFailure() == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(version, replica.getAppliedVersion());
+	}
+
+	enum RelTypes implements RelationshipType {
+		LINKED;
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private Relationship createRelationship(Node from, Node to) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Relationship relationship = from.createRelationshipTo(to, RelTypes.LINKED);
+			tx.success();
+			return relationship;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void deleteRelationship(Relationship relationship) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			versioningTransactionEventHandler.versionContext(versioningTransactionEventHandler.getLatestVersion()).deleteRelationship(relationship);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class StreamingCommitTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shouldKeepOneRevisionPerNodeWhenSpilling() {
+		List<Node> nodes = new ArrayList<Node>();
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (int i = 0; i < 200; i++) {
+				Node node = graphDb.createNode();
+				node.setProperty("name", "node-" + i);
+				node.setProperty("count", i);
+				node.setProperty("tag", "old");
+				nodes.add(node);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		long createdVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		versioningTransactionEventHandler.setStreamingMode(1024, folder.getRoot());
+		tx = graphDb.beginTx();
+		try {
+			for (Node node : nodes) {
+				node.setProperty("name", "renamed-" + node.getId());
+				node.setProperty("count", -1);
+				node.removeProperty("tag");
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		long modifiedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertTrue(versioningTransactionEventHandler.getSpilledModificationBytes() > 0);
+		assertEquals(1, versioningTransactionEventHandler.getSpilledTransactionCount());
+		assertEquals(0, folder.getRoot().list().length);
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			assertEquals("node-" + i, vc(createdVersion).node(node).getProperty("name"));
+			assertEquals(i, vc(createdVersion).node(node).getProperty("count"));
+			assertEquals("old", vc(createdVersion).node(node).getProperty("tag"));
+			assertEquals(-1, vc(modifiedVersion).node(node).getProperty("count"));
+			assertEquals(modifiedVersion, VersionContext.getStartVersion(node));
+		}
+	}
+
+	@Test
+	public void shouldPartitionSpillsAgainWhenTheyDoNotFit() throws IOException {
+		ModificationBuffer modifications = new ModificationBuffer(4096, folder.getRoot());
+		final Map<Long, Map<String, Object>> handled = new HashMap<Long, Map<String, Object>>();
+		try {
+			// Every node id falls in the same first-level partition.
+			for (long i = 0; i < 3200; i++) {
+				modifications.add(i * ModificationBuffer.SPILL_PARTITIONS, "key", i);
+				modifications.add(i * ModificationBuffer.SPILL_PARTITIONS, "other", null);
+			}
+			modifications.forEachNode(new ModificationBuffer.NodeHandler() {
+				@Override
+				public void modified(long nodeId, Map<String, Object> previousValues) {
+					assertNull(handled.put(nodeId, new HashMap<String, Object>(previousValues)));
+				}
+			});
+		} finally {
+			modifications.close();
+		}
+
+		assertEquals(3200, handled.size());
+		for (long i = 0; i < 3200; i++) {
+			Map<String, Object> previousValues = handled.get(i * ModificationBuffer.SPILL_PARTITIONS);
+			assertEquals(i, previousValues.get("key"));
+			assertTrue(previousValues.containsKey("other"));
+		}
+		assertTrue(modifications.getPeakBufferedBytes() < 16 * 1024);
+		assertEquals(0, folder.getRoot().list().length);
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.date.TemporalAggregates.Aggregate;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class TemporalAggregatesTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private TemporalAggregates aggregates;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		aggregates = new TemporalAggregates("price");
+		versioningTransactionEventHandler.setTemporalAggregates(aggregates);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void segmentTreeShouldKeepAggregatesWhenGrowing() {
+		SegmentTree tree = new SegmentTree(2);
+		tree.set(0, 5);
+		tree.set(1, 3);
+		tree.set(6, -2);
+		tree.set(100, 1);
+		tree.set(1, Double.NaN);
+		double[] all = tree.query(0, Integer.MAX_VALUE);
+		assertEquals(3, all[SegmentTree.COUNT], 0);
+		assertEquals(-2, all[SegmentTree.MIN], 0);
+		assertEquals(5, all[SegmentTree.MAX], 0);
+		assertEquals(4, all[SegmentTree.SUM], 0);
+		assertEquals(5, tree.query(0, 5)[SegmentTree.SUM], 0);
+		assertEquals(0, tree.query(7, 99)[SegmentTree.COUNT], 0);
+	}
+
+	@Test
+	public void shouldAggregateValuesHeldOverVersionRange() {
+		Node node = createNode(10);
+		long createdVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "price", 30);
+		setProperty(node, "name", "node");
+		long namedVersion = versioningTransactionEventHandler.getLatestVersion();
+		removeProperty(node, "price");
+		long removedVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "price", 20.5);
+		delete(node);
+		long deletedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		Aggregate first = aggregates.aggregate(node, "price", createdVersion, createdVersion);
+		assertEquals(1, first.getCount());
+		assertEquals(10, first.getMin(), 0);
+		Aggregate untilNamed = aggregates.aggregate(node, "price", createdVersion, namedVersion);
+		assertEquals(2, untilNamed.getCount());
+		assertEquals(20, untilNamed.getAverage(), 0);
+		assertEquals(1, aggregates.aggregate(node, "price", namedVersion, removedVersion).getCount());
+		assertEquals(0, aggregates.aggregate(node, "price", removedVersion, removedVersion).getCount());
+		Aggregate all = aggregates.aggregate(node, "price", 0, Long.MAX_VALUE);
+		assertEquals(3, all.getCount());
+		assertEquals(10, all.getMin(), 0);
+		assertEquals(30, all.getMax(), 0);
+		assertEquals(60.5, all.getSum(), 0);
+		Aggregate afterDelete = aggregates.aggregate(node, "price", deletedVersion, Long.MAX_VALUE);
+		assertEquals(0, afterDelete.getCount());
+		assertTrue(Double.isNaN(afterDelete.getAverage()));
+
+		TemporalAggregates rebuilt = TemporalAggregates.rebuild(graphDb, versioningTransactionEventHandler.getHistoryStore(), "price");
+		for (long from = 0; from <= deletedVersion; from++) {
+			for (long to = from; to <= deletedVersion; to++) {
+				assertEquals(aggregates.aggregate(node, "price", from, to).toString(), rebuilt.aggregate(node, "price", from, to).toString());
+			}
+		}
+	}
+
+	@Test
+	public void shouldRejectKeysNotAggregated() {
+		Node node = createNode(10);
+		try {
+			aggregates.aggregate(node, "name", 0, Long.MAX_VALUE);
+			fail("Should have thrown exception.");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private Node createNode(Object price) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			node.setProperty("price", price);
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void removeProperty(Node node, String key) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.removeProperty(key);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void delete(Node node) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			vc(versioningTransactionEventHandler.getLatestVersion()).deleteNode(node);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class TieredHistoryStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ImpermanentGraphDatabase graphDb;
+	private File coldDir;
+	private CompressedSegmentStore coldStore;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+	@Before
+	public void setUp() throws IOException {
+		graphDb = new ImpermanentGraphDatabase();
+		coldDir = folder.newFolder("cold");
+		coldStore = new CompressedSegmentStore(coldDir, 256);
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode(), new TieredHistoryStore(
+				InGraphHistoryStore.INSTANCE, coldStore));
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		graphDb.shutdown();
+		coldStore.close();
+	}
+
+	@Test
+	public void shouldMoveOldHistoryToColdSegments() throws IOException {
+		Node node = createNode();
+		long[] versions = new long[20];
+		for (int i = 0; i < versions.length; i++) {
+			setProperty(node, "key", "value-" + i);
+			versions[i] = versioningTransactionEventHandler.getLatestVersion();
+		}
+
+		HistoryTieringJob job = new HistoryTieringJob(graphDb, versioningTransactionEventHandler, 5);
+		job.run();
+
+		assertTrue(job.getMovedCount() > 0);
+		assertEquals(1, coldStore.getSegmentCount());
+		assertEquals(versions.length - job.getMovedCount(), chainLength(node));
+		for (int i = 0; i < versions.length; i++) {
+			assertEquals("value-" + i, versioningTransactionEventHandler.versionContext(versions[i]).node(node).getProperty("key"));
+		}
+
+		coldStore.close();
+		CompressedSegmentStore reopened = new CompressedSegmentStore(coldDir);
+		try {
+			assertEquals("value-0", reopened.getPropertyHolder(node, versions[0]).getProperty("key"));
+			assertEquals(versions[0] - 1, reopened.getFirstVersion(node));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void shouldKeepHistoryVisibleAtPinnedVersions() {
+		Node node = createNode();
+		long[] versions = new long[20];
+		for (int i = 0; i < versions.length; i++) {
+			setProperty(node, "key", "value-" + i);
+			versions[i] = versioningTransactionEventHandler.getLatestVersion();
+		}
+		SnapshotPins.Pin pin = versioningTransactionEventHandler.getSnapshotPins().pin(versions[3]);
+
+		HistoryTieringJob pinnedJob = new HistoryTieringJob(graphDb, versioningTransactionEventHandler, 5);
+		pinnedJob.run();
+		// Only the initial revision and value-0 to value-2 ended before the pin.
+		assertEquals(4, pinnedJob.getMovedCount());
+
+		pin.release();
+		HistoryTieringJob job = new HistoryTieringJob(graphDb, versioningTransactionEventHandler, 5);
+		job.run();
+		assertEquals(11, job.getMovedCount());
+		for (int i = 0; i < versions.length; i++) {
+			assertEquals("value-" + i, versioningTransactionEventHandler.versionContext(versions[i]).node(node).getProperty("key"));
+		}
+	}
+
+	@Test
+	public void shouldTierNextToLiveWriters() throws Exception {
+		final Node node = createNode();
+		final long[] versions = new long[200];
+		final AtomicReference<Throwable> writerFailure = new AtomicReference<Throwable>();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < versions.length; i++) {
+						setProperty(node, "key", "value-" + i);
+						versions[i] = versioningTransactionEventHandler.getLatestVersion();
+					}
+				} catch (Throwable e) {
+					writerFailure.set(e);
+				}
+			}
+		};
+		writer.start();
+		long moved = 0;
+		while (writer.isAlive()) {
+			HistoryTieringJob job = new HistoryTieringJob(graphDb, versioningTransactionEventHandler, 0);
+			job.run();
+			moved += job.getMovedCount();
+		}
+		writer.join();
+
+		assertNull(writerFailure.get());
+		assertTrue(moved > 0);
+		for (int i = 0; i < versions.length; i++) {
+			assertEquals("value-" + i, versioningTransactionEventHandler.versionContext(versions[i]).node(node).getProperty("key"));
+		}
+	}
+
+	@Test
+	public void shouldIgnoreExpiredPins() throws InterruptedException {
+		SnapshotPins pins = new SnapshotPins();
+		SnapshotPins.Pin expiring = pins.pin(3, 1);
+		SnapshotPins.Pin live = pins.pin(7);
+		Thread.sleep(20);
+
+		assertEquals(7, pins.getLowestPinnedVersion());
+		assertEquals(1, pins.getPinCount());
+		assertFalse(expiring.renew(1000));
+		assertTrue(live.renew(1000));
+		live.release();
+		assertEquals(Long.MAX_VALUE, pins.getLowestPinnedVersion());
+	}
+
+	private static int chainLength(Node node) {
+		int length = 0;
+		Relationship prevVersionRel = node.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		while (prevVersionRel != null) {
+			length++;
+			Node holder = prevVersionRel.getEndNode();
+			prevVersionRel = holder.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+		return length;
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			node.setProperty("key", "initial");
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.date.ConsistencyReport.Anomaly;
+import org.neo4j.support.versioning.date.ConsistencyReport.Kind;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class VersionChainCheckerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shouldFindNothingInAConsistentStore() {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		setProperty(node, "key", "bar");
+		Relationship relationship = createRelationship(node, createNode());
+		deleteRelationship(relationship);
+
+		ConsistencyReport report = new VersionChainChecker(graphDb, versioningTransactionEventHandler, true).check();
+
+		assertTrue(report.getAnomalies().toString(), report.isConsistent());
+		assertEquals(2, report.getNodesChecked());
+		assertEquals(1, report.getRelationshipsChecked());
+		VersionStatistics rebuilt = VersionStatistics.rebuild(graphDb, versioningTransactionEventHandler.getHistoryStore());
+		for (long version = 1; version <= versioningTransactionEventHandler.getLatestVersion(); version++) {
+			assertEquals(rebuilt.nodeCount(version), report.getStatistics().nodeCount(version));
+			assertEquals(rebuilt.relationshipCount(version), report.getStatistics().relationshipCount(version));
+		}
+	}
+
+	@Test
+	public void shouldReportAndRepairAnomalies() {
+		Node node = createNode();
+		Relationship relationship = createRelationship(node, createNode());
+		long relationshipVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "bar");
+		long latestVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		versioningTransactionEventHandler.suspendVersioning();
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node oldestHolder = oldestHolder(node);
+			VersionContext.setEndVersion(oldestHolder, VersionContext.getEndVersion(oldestHolder) - 1);
+			relationship.setProperty(VersionContext.DELETED_PROP_KEY, relationshipVersion);
+			versioningTransactionEventHandler.setLatestVersion(latestVersion - 1);
+			tx.success();
+		} finally {
+			tx.finish();
+			versioningTransactionEventHandler.resumeVersioning();
+		}
+
+		VersionChainChecker checker = new VersionChainChecker(graphDb, versioningTransactionEventHandler, false);
+		ConsistencyReport report = checker.check();
+		assertFalse(report.isConsistent());
+		assertEquals(kinds(Kind.RANGE_GAP, Kind.DELETED_MARKER_MISMATCH, Kind.LATEST_VERSION_BEHIND), kinds(report));
+
+		checker.setRepair(true);
+		assertTrue(checker.check().isConsistent());
+		assertTrue(checker.check().getAnomalies().isEmpty());
+		assertEquals(latestVersion, versioningTransactionEventHandler.getLatestVersion());
+		assertEquals("foo", vc(fooVersion).node(node).getProperty("key"));
+		assertFalse(vc(relationshipVersion + 1).node(node).hasRelationship(RelTypes.LINKED));
+	}
+
+	@Test
+	public void shouldRebuildMissingKeyFilters() {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "other", "bar");
+
+		versioningTransactionEventHandler.suspendVersioning();
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.removeProperty(VersionContext.KEY_FILTER_PROPERTY);
+			tx.success();
+		} finally {
+			tx.finish();
+			versioningTransactionEventHandler.resumeVersioning();
+		}
+		assertEquals("foo", vc(fooVersion).node(node).getProperty("key"));
+
+		VersionChainChecker checker = new VersionChainChecker(graphDb, versioningTransactionEventHandler, true);
+		assertEquals(kinds(Kind.KEY_FILTER_INCOMPLETE), kinds(checker.check()));
+		checker.setRepair(true);
+		assertTrue(checker.check().isConsistent());
+		long[] filter = (long[]) node.getProperty(VersionContext.KEY_FILTER_PROPERTY);
+		assertTrue(KeyFilter.mightContain(filter, "key"));
+		assertTrue(KeyFilter.mightContain(filter, "other"));
+		assertEquals("foo", vc(fooVersion).node(node).getProperty("key"));
+	}
+
+	@Test
+	public void shouldKeepKeysOfOffGraphHistoryInKeyFilters() throws IOException {
+		graphDb.unregisterTransactionEventHandler(versioningTransactionEventHandler);
+		MappedFileHistoryStore historyStore = new MappedFileHistoryStore(folder.newFolder("history"), 4096);
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode(), historyStore);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+		try {
+			Node node = createNode();
+			setProperty(node, "gone", "foo");
+			long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+			setProperty(node, "kept", "bar");
+			removeProperty(node, "gone");
+
+			replaceKeyFilter(node, null);
+			VersionChainChecker checker = new VersionChainChecker(graphDb, versioningTransactionEventHandler, false);
+			checker.setRepair(true);
+			ConsistencyReport report = checker.check();
+			assertEquals(kinds(Kind.KEY_FILTER_INCOMPLETE), kinds(report));
+			assertFalse(report.getAnomalies().get(0).isRepaired());
+			assertFalse(node.hasProperty(VersionContext.KEY_FILTER_PROPERTY));
+			assertEquals("foo", versioningTransactionEventHandler.versionContext(fooVersion).node(node).getProperty("gone"));
+
+			replaceKeyFilter(node, KeyFilter.build(Collections.singleton("gone")));
+			assertTrue(checker.check().getAnomalies().get(0).isRepaired());
+			assertTrue(checker.check().isConsistent());
+			long[] filter = (long[]) node.getProperty(VersionContext.KEY_FILTER_PROPERTY);
+			assertTrue(KeyFilter.mightContain(filter, "gone"));
+			assertTrue(KeyFilter.mightContain(filter, "kept"));
+			assertEquals("foo", versioningTransactionEventHandler.versionContext(fooVersion).node(node).getProperty("gone"));
+		} finally {
+			historyStore.close();
+		}
+	}
+
+	private void replaceKeyFilter(Node node, long[] filter) {
+		versioningTransactionEventHandler.suspendVersioning();
+		Transaction tx = graphDb.beginTx();
+		try {
+			if (filter == null) {
+				node.removeProperty(VersionContext.KEY_FILTER_PROPERTY);
+			} else {
+				node.setProperty(VersionContext.KEY_FILTER_PROPERTY, filter);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+			versioningTransactionEventHandler.resumeVersioning();
+		}
+	}
+
+	private static Node oldestHolder(Node node) {
+		Node current = node;
+		Relationship prevVersionRel = current.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		while (prevVersionRel != null) {
+			current = prevVersionRel.getEndNode();
+			prevVersionRel = current.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+		return current;
+	}
+
+	private static Set<Kind> kinds(Kind... kinds) {
+		Set<Kind> set = new HashSet<Kind>();
+		for (Kind kind : kinds) {
+			set.add(kind);
+		}
+		return set;
+	}
+
+	private static Set<Kind> kinds(ConsistencyReport report) {
+		Set<Kind> set = new HashSet<Kind>();
+		for (Anomaly anomaly : report.getAnomalies()) {
+			set.add(anomaly.getKind());
+		}
+		return set;
+	}
+
+	enum RelTypes implements RelationshipType {
+		LINKED;
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void removeProperty(Node node, String key) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.removeProperty(key);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private Relationship createRelationship(Node from, Node to) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Relationship relationship = from.createRelationshipTo(to, RelTypes.LINKED);
+			tx.success();
+			return relationship;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void deleteRelationship(Relationship relationship) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			vc(versioningTransactionEventHandler.getLatestVersion()).deleteRelationship(relationship);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
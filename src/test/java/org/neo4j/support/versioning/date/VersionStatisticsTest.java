@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class VersionStatisticsTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private VersionStatistics statistics;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		statistics = new VersionStatistics();
+		versioningTransactionEventHandler.setStatistics(statistics);
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void fenwickTreeShouldKeepSumsWhenGrowing() {
+		FenwickTree tree = new FenwickTree(2);
+		tree.add(1, 5);
+		tree.add(2, 3);
+		tree.add(7, -2);
+		tree.add(100, 1);
+		assertEquals(5, tree.prefixSum(1));
+		assertEquals(8, tree.prefixSum(6));
+		assertEquals(6, tree.prefixSum(99));
+		assertEquals(7, tree.prefixSum(100));
+		assertEquals(7, tree.prefixSum(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void shouldCountEntitiesAliveAtEachVersion() {
+		Node n1 = createNode();
+		Node n2 = createNode();
+		Relationship rel = createRelationship(n1, n2);
+		long bothVersion = versioningTransactionEventHandler.getLatestVersion();
+		delete(rel, n2);
+		long deletedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(2, statistics.nodeCount(bothVersion));
+		assertEquals(1, statistics.relationshipCount(RelTypes.LINKED, bothVersion));
+		assertEquals(1, statistics.nodeCount(deletedVersion));
+		assertEquals(0, statistics.relationshipCount(deletedVersion));
+
+		VersionStatistics rebuilt = VersionStatistics.rebuild(graphDb, versioningTransactionEventHandler.getHistoryStore());
+		for (long version = 1; version <= deletedVersion; version++) {
+			assertEquals(statistics.nodeCount(version), rebuilt.nodeCount(version));
+			assertEquals(statistics.relationshipCount(version), rebuilt.relationshipCount(version));
+		}
+	}
+
+	enum RelTypes implements RelationshipType {
+		LINKED;
+	}
+
+	private Node createNode() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			node.setProperty("name", "node");
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private Relationship createRelationship(Node from, Node to) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Relationship rel = from.createRelationshipTo(to, RelTypes.LINKED);
+			tx.success();
+			return rel;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void delete(Relationship relationship, Node node) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			vc(versioningTransactionEventHandler.getLatestVersion()).deleteRelationship(relationship);
+			vc(versioningTransactionEventHandler.getLatestVersion()).deleteNode(node);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphalgo.GraphAlgoFactory;
+import org.neo4j.graphalgo.PathFinder;
+import org.neo4j.graphalgo.WeightedPath;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.Traversal;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+/**
+ * Compares {@link VersionedGraphAlgorithms} with the unversioned graph-algo implementations, run on plain nodes and
+ * on {@link VersionedNode}s. Not run by the build; run it by hand and read the timings printed.
+ */
+public class VersionedGraphAlgorithmsBenchmark {
+	private static final int SIDE = 60;
+	private static final int RUNS = 20;
+
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private Node[][] grid;
+	private long version;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+		grid = new Node[SIDE][SIDE];
+		Random random = new Random(42);
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (int x = 0; x < SIDE; x++) {
+				for (int y = 0; y < SIDE; y++) {
+					grid[x][y] = graphDb.createNode();
+					if (x > 0) {
+						link(grid[x - 1][y], grid[x][y], random);
+					}
+					if (y > 0) {
+						link(grid[x][y - 1], grid[x][y], random);
+					}
+				}
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		version = versioningTransactionEventHandler.getLatestVersion();
+		// Relationships created after the benchmarked version, which the versioned runs have to skip.
+		for (int round = 0; round < 5; round++) {
+			tx = graphDb.beginTx();
+			try {
+				for (int x = 1; x < SIDE; x++) {
+					Relationship extra = grid[x - 1][random.nextInt(SIDE)].createRelationshipTo(grid[x][random.nextInt(SIDE)], RelTypes.ROAD);
+					extra.setProperty("weight", 1);
+				}
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		}
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shortestPath() {
+		final Node start = grid[0][0];
+		final Node end = grid[SIDE - 1][SIDE - 1];
+		final PathFinder<Path> finder = GraphAlgoFactory.shortestPath(Traversal.expanderForTypes(RelTypes.ROAD, Direction.BOTH), SIDE * 2);
+		final VersionContext versionContext = versioningTransactionEventHandler.versionContext(version);
+		final VersionedGraphAlgorithms algorithms = new VersionedGraphAlgorithms(graphDb, versionContext, Direction.BOTH, RelTypes.ROAD);
+
+		time("shortest path, unversioned", new Runnable() {
+			@Override
+			public void run() {
+				finder.findSinglePath(start, end);
+			}
+		});
+		time("shortest path, VersionedNode", new Runnable() {
+			@Override
+			public void run() {
+				assertEquals((SIDE - 1) * 2, finder.findSinglePath(versionContext.node(start), versionContext.node(end)).length());
+			}
+		});
+		time("shortest path, VersionedGraphAlgorithms", new Runnable() {
+			@Override
+			public void run() {
+				assertEquals((SIDE - 1) * 2, algorithms.shortestPath(start.getId(), end.getId(), SIDE * 2).length());
+			}
+		});
+	}
+
+	@Test
+	public void dijkstra() {
+		final Node start = grid[0][0];
+		final Node end = grid[SIDE - 1][SIDE - 1];
+		final PathFinder<WeightedPath> finder = GraphAlgoFactory.dijkstra(Traversal.expanderForTypes(RelTypes.ROAD, Direction.BOTH), "weight");
+		final VersionContext versionContext = versioningTransactionEventHandler.versionContext(version);
+		final VersionedGraphAlgorithms algorithms = new VersionedGraphAlgorithms(graphDb, versionContext, Direction.BOTH, RelTypes.ROAD);
+		final VersionedGraphAlgorithms.CostFunction weight = VersionedGraphAlgorithms.relationshipProperty("weight");
+
+		time("dijkstra, unversioned", new Runnable() {
+			@Override
+			public void run() {
+				finder.findSinglePath(start, end);
+			}
+		});
+		time("dijkstra, VersionedNode", new Runnable() {
+			@Override
+			public void run() {
+				finder.findSinglePath(versionContext.node(start), versionContext.node(end));
+			}
+		});
+		time("dijkstra, VersionedGraphAlgorithms", new Runnable() {
+			@Override
+			public void run() {
+				algorithms.dijkstra(start.getId(), end.getId(), weight);
+			}
+		});
+	}
+
+	@Test
+	public void kHop() {
+		final Node start = grid[SIDE / 2][SIDE / 2];
+		final int k = 6;
+		final VersionContext versionContext = versioningTransactionEventHandler.versionContext(version);
+		final VersionedGraphAlgorithms algorithms = new VersionedGraphAlgorithms(graphDb, versionContext, Direction.BOTH, RelTypes.ROAD);
+
+		time("k-hop, unversioned", new Runnable() {
+			@Override
+			public void run() {
+				breadthFirst(start, k);
+			}
+		});
+		time("k-hop, VersionedNode", new Runnable() {
+			@Override
+			public void run() {
+				breadthFirst(versionContext.node(start), k);
+			}
+		});
+		time("k-hop, VersionedGraphAlgorithms", new Runnable() {
+			@Override
+			public void run() {
+				algorithms.kHop(start.getId(), k);
+			}
+		});
+	}
+
+	private static int breadthFirst(Node start, int k) {
+		Set<Long> visited = new HashSet<Long>();
+		visited.add(start.getId());
+		Queue<Node> frontier = new ArrayDeque<Node>();
+		frontier.add(start);
+		for (int depth = 0; depth < k; depth++) {
+			Queue<Node> next = new ArrayDeque<Node>();
+			for (Node node : frontier) {
+				for (Relationship relationship : node.getRelationships(Direction.BOTH, RelTypes.ROAD)) {
+					Node other = relationship.getOtherNode(node);
+					if (visited.add(other.getId())) {
+						next.add(other);
+					}
+				}
+			}
+			frontier = next;
+		}
+		return visited.size() - 1;
+	}
+
+	private static void time(String name, Runnable benchmark) {
+		for (int i = 0; i < RUNS / 4; i++) {
+			benchmark.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			benchmark.run();
+		}
+		System.out.println(String.format("%-45s %8.2f ms", name, (System.nanoTime() - start) / 1e6 / RUNS));
+	}
+
+	private static void link(Node from, Node to, Random random) {
+		Relationship relationship = from.createRelationshipTo(to, RelTypes.ROAD);
+		relationship.setProperty("weight", 1 + random.nextInt(9));
+	}
+
+	enum RelTypes implements RelationshipType {
+		ROAD;
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.date.VersionedGraphAlgorithms.IdPath;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class VersionedGraphAlgorithmsTest {
+	private ImpermanentGraphDatabase graphDb;
+	private VersioningTransactionEventHandler versioningTransactionEventHandler;
+	private Node a, b, c, d;
+	private long chainVersion;
+	private long shortcutVersion;
+	private long deletedVersion;
+
+	@Before
+	public void setUp() {
+		graphDb = new ImpermanentGraphDatabase();
+		versioningTransactionEventHandler = new VersioningTransactionEventHandler(graphDb.getReferenceNode());
+		graphDb.registerTransactionEventHandler(versioningTransactionEventHandler);
+
+		a = createNode(1);
+		b = createNode(1);
+		c = createNode(1);
+		d = createNode(1);
+		createRelationship(a, b, 1);
+		createRelationship(b, c, 1);
+		createRelationship(c, d, 1);
+		chainVersion = versioningTransactionEventHandler.getLatestVersion();
+		Relationship shortcut = createRelationship(a, d, 10);
+		shortcutVersion = versioningTransactionEventHandler.getLatestVersion();
+		Transaction tx = graphDb.beginTx();
+		try {
+			vc().deleteRelationship(shortcut);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		deletedVersion = versioningTransactionEventHandler.getLatestVersion();
+	}
+
+	@After
+	public void tearDown() {
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void shortestPathShouldFollowRelationshipsValidAtVersion() {
+		assertEquals(3, algorithms(chainVersion).shortestPath(a.getId(), d.getId(), 10).length());
+		IdPath viaShortcut = algorithms(shortcutVersion).shortestPath(a.getId(), d.getId(), 10);
+		assertArrayEquals(new long[] { a.getId(), d.getId() }, viaShortcut.nodeIds());
+		assertEquals(3, algorithms(deletedVersion).shortestPath(a.getId(), d.getId(), 10).length());
+		assertNull(algorithms(chainVersion).shortestPath(a.getId(), d.getId(), 2));
+	}
+
+	@Test
+	public void dijkstraShouldWeighRelationships() {
+		VersionedGraphAlgorithms algorithms = algorithms(shortcutVersion);
+		IdPath cheapest = algorithms.dijkstra(a.getId(), d.getId(), VersionedGraphAlgorithms.relationshipProperty("weight"));
+		assertArrayEquals(new long[] { a.getId(), b.getId(), c.getId(), d.getId() }, cheapest.nodeIds());
+		assertEquals(3.0, cheapest.weight(), 0.0);
+		assertEquals(3, cheapest.relationshipIds().length);
+	}
+
+	@Test
+	public void dijkstraShouldReadNodeWeightsAsOfVersion() {
+		setProperty(d, "cost", 100);
+		VersionedGraphAlgorithms old = algorithms(chainVersion);
+		assertEquals(3.0, old.dijkstra(a.getId(), d.getId(), old.nodePropertyAsOf("cost")).weight(), 0.0);
+		VersionedGraphAlgorithms latest = algorithms(versioningTransactionEventHandler.getLatestVersion());
+		assertEquals(102.0, latest.dijkstra(a.getId(), d.getId(), latest.nodePropertyAsOf("cost")).weight(), 0.0);
+	}
+
+	@Test
+	public void kHopShouldExpandLevelByLevel() {
+		long[] twoHops = algorithms(chainVersion).kHop(a.getId(), 2);
+		assertArrayEquals(new long[] { b.getId(), c.getId() }, twoHops);
+		long[] withShortcut = algorithms(shortcutVersion).kHop(a.getId(), 1);
+		Arrays.sort(withShortcut);
+		assertArrayEquals(sorted(b.getId(), d.getId()), withShortcut);
+	}
+
+	private static long[] sorted(long... ids) {
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private VersionedGraphAlgorithms algorithms(long version) {
+		return new VersionedGraphAlgorithms(graphDb, versioningTransactionEventHandler.versionContext(version), Direction.BOTH, RelTypes.ROAD);
+	}
+
+	private VersionContext vc() {
+		return versioningTransactionEventHandler.versionContext(versioningTransactionEventHandler.getLatestVersion());
+	}
+
+	enum RelTypes implements RelationshipType {
+		ROAD;
+	}
+
+	private Node createNode(int cost) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = graphDb.createNode();
+			node.setProperty("cost", cost);
+			tx.success();
+			return node;
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private void setProperty(Node node, String key, Object value) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.setProperty(key, value);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private Relationship createRelationship(Node from, Node to, int weight) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Relationship relationship = from.createRelationshipTo(to, RelTypes.ROAD);
+			relationship.setProperty("weight", weight);
+			tx.success();
+			return relationship;
+		} finally {
+			tx.finish();
+		}
+	}
+}
@@ -29,7 +29,10 @@ import static org.neo4j.support.versioning.date.VersionContext.vc;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.After;
@@ -38,10 +41,12 @@ import org.junit.Test;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.support.versioning.Range;
 import org.neo4j.test.ImpermanentGraphDatabase;
 
 public class VersionedGraphTest {
@@ -111,6 +116,216 @@ public class VersionedGraphTest {
 		assertEquals(asSet("asdf"), addToSet(vc(nokeyVersion).node(node).getPropertyValues()));
 	}
 
+	@Test
+	public void testUnchangedPropertiesProduceNoHistory() {
+		Node node = createNode();
+		setProperty(node, "key", new int[] { 1, 2 });
+		long firstVersion = versioningTransactionEventHandler.getLatestVersion();
+		Relationship chainStart = node.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		setProperty(node, "key", new int[] { 1, 2 });
+
+		assertEquals(chainStart, node.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING));
+		assertEquals(firstVersion, VersionContext.getStartVersion(node));
+		assertEquals(firstVersion + 1, versioningTransactionEventHandler.getLatestVersion());
+	}
+
+	@Test
+	public void testNoOpTransactionsCanSkipVersion() {
+		versioningTransactionEventHandler.setSkipNoOpTransactions(true);
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "foo");
+		assertEquals(fooVersion, versioningTransactionEventHandler.getLatestVersion());
+		setProperty(node, "key", "bar");
+		assertEquals(fooVersion + 1, versioningTransactionEventHandler.getLatestVersion());
+	}
+
+	@Test
+	public void testBatchPropertyRead() {
+		Node n1 = createNode();
+		Node n2 = createNode();
+		setProperty(n2, "key", 2L);
+		setProperty(n1, "key", 1L);
+		long version = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(n1, "key", 10L);
+
+		PropertyBatch batch = vc(version).getProperties(graphDb, new long[] { n2.getId(), n1.getId() }, new String[] { "key", "other" });
+		assertEquals(2, batch.size());
+		assertEquals(n1.getId(), batch.nodeId(0));
+		assertTrue(batch.isPresent(0));
+		assertEquals(1L, batch.getLong(0, batch.keyIndex("key"), -1));
+		assertEquals(2L, batch.getLong(1, batch.keyIndex("key"), -1));
+		assertEquals(null, batch.get(1, batch.keyIndex("other")));
+	}
+
+	@Test
+	public void testPackedValidity() throws InterruptedException {
+		Node n1 = createNode();
+		Node n2 = createNode();
+		Relationship splitRel = createRelationship(n1, n2, RelTypes.LINKED);
+		versioningTransactionEventHandler.setPackedValidity(true);
+		Node n3 = createNode();
+		setProperty(n3, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(n3, "key", "bar");
+		assertTrue(n3.hasProperty(VersionContext.VALIDITY_PROPERTY));
+		assertFalse(n3.hasProperty(VersionContext.VALID_FROM_PROPERTY));
+		assertEquals("foo", vc(fooVersion).node(n3).getProperty("key"));
+		assertEquals(asSet("key"), addToSet(vc(fooVersion).node(n3).getPropertyKeys()));
+		VersionContext packedFirst = versioningTransactionEventHandler.versionContext(fooVersion);
+		assertEquals(splitRel, packedFirst.node(n1).getSingleRelationship(RelTypes.LINKED, Direction.OUTGOING));
+		assertEquals("foo", packedFirst.node(n3).getProperty("key"));
+
+		long versionBeforeMigration = versioningTransactionEventHandler.getLatestVersion();
+		ValidityMigration migration = new ValidityMigration(graphDb, versioningTransactionEventHandler, 2);
+		migration.run();
+		assertEquals(versionBeforeMigration, versioningTransactionEventHandler.getLatestVersion());
+		assertTrue(splitRel.hasProperty(VersionContext.VALIDITY_PROPERTY));
+		assertFalse(splitRel.hasProperty(VersionContext.VALID_TO_PROPERTY));
+		assertEquals(splitRel, vc(versionBeforeMigration).node(n1).getSingleRelationship(RelTypes.LINKED, Direction.OUTGOING));
+	}
+
+	@Test
+	public void shouldVersionBatchedUpdatesAsOneRevision() {
+		Node node = createNode();
+		setProperty(node, "a", 1);
+		setProperty(node, "b", 2);
+		long beforeVersion = versioningTransactionEventHandler.getLatestVersion();
+		int holdersBefore = historyLength(node);
+
+		Map<String, Object> sets = new HashMap<String, Object>();
+		sets.put("a", 10);
+		sets.put("c", 30);
+		Map<String, Object> previous;
+		Transaction tx = graphDb.beginTx();
+		try {
+			previous = VersionContext.updateVersionedProperties(node, sets, Collections.singleton("b"));
+			VersionContext.updateVersionedProperties(node, Collections.singletonMap("d", 40), Collections.<String> emptySet());
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		long afterVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(beforeVersion + 1, afterVersion);
+		assertEquals(holdersBefore + 1, historyLength(node));
+		assertEquals(1, previous.get("a"));
+		assertEquals(2, previous.get("b"));
+		assertTrue(previous.containsKey("c"));
+		assertEquals(null, previous.get("c"));
+		assertEquals(asSet("a", "b"), addToSet(vc(beforeVersion).node(node).getPropertyKeys()));
+		assertEquals(asSet("a", "c", "d"), addToSet(vc(afterVersion).node(node).getPropertyKeys()));
+		assertEquals(10, vc(afterVersion).node(node).getProperty("a"));
+
+		tx = graphDb.beginTx();
+		try {
+			VersionContext.updateVersionedProperties(node, Collections.singletonMap("a", 1), Collections.singleton("a"));
+			fail("Should have thrown exception.");
+		} catch (IllegalArgumentException e) {
+		} finally {
+			tx.finish();
+		}
+	}
+
+	@Test
+	public void shouldAnswerKeysNeverSetFromKeyFilter() {
+		Node node = createNode();
+		setProperty(node, "key", "foo");
+		long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(node, "key", "bar");
+		removeProperty(node, "key");
+		long nokeyVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertTrue(KeyFilter.mightHave(node, "key"));
+		assertFalse(KeyFilter.mightHave(node, "other"));
+		assertEquals("foo", vc(fooVersion).node(node).getProperty("key"));
+		assertEquals("default", vc(fooVersion).node(node).getProperty("other", "default"));
+		assertFalse(vc(fooVersion).node(node).hasProperty("other"));
+		assertFalse(vc(nokeyVersion).node(node).hasProperty("key"));
+		try {
+			vc(fooVersion).node(node).getProperty("other");
+			fail("Should have thrown exception.");
+		} catch (NotFoundException e) {
+		}
+		assertEquals(Collections.EMPTY_SET, addToSet(vc(nokeyVersion).node(node).getPropertyKeys()));
+	}
+
+	@Test
+	public void shouldScanEntitiesValidAtVersion() {
+		Node n1 = createNode();
+		long n1Version = versioningTransactionEventHandler.getLatestVersion();
+		Node n2 = createNode();
+		Relationship rel = createRelationship(n1, n2, RelTypes.LINKED);
+		long bothVersion = versioningTransactionEventHandler.getLatestVersion();
+		setProperty(n1, "key", "value");
+		removeRelationship(rel);
+		removeNode(n2);
+		long latestVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(asSet(n1.getId()), ids(vc(n1Version).getAllNodes(graphDb)));
+		assertEquals(asSet(n1.getId(), n2.getId()), ids(vc(bothVersion).getAllNodes(graphDb)));
+		assertEquals(asSet(rel.getId()), ids(vc(bothVersion).getAllRelationships(graphDb)));
+		assertEquals(asSet(n1.getId()), ids(vc(latestVersion).getAllNodes(graphDb)));
+		assertEquals(Collections.EMPTY_SET, ids(vc(latestVersion).getAllRelationships(graphDb)));
+
+		Set<Long> partitioned = new HashSet<Long>();
+		for (Iterable<Node> partition : vc(bothVersion).scanNodes(graphDb, 3)) {
+			partitioned.addAll(ids(partition));
+		}
+		assertEquals(asSet(n1.getId(), n2.getId()), partitioned);
+	}
+
+	@Test
+	public void shouldScanWithoutWalkingHistory() {
+		Node node = createNode();
+		long createdVersion = versioningTransactionEventHandler.getLatestVersion();
+		for (int i = 0; i < 20; i++) {
+			setProperty(node, "key", i);
+		}
+		HistoryStore noFirstVersion = new HistoryStore() {
+			@Override
+			public void append(Node node, Map<String, Object> properties, Range range) {
+				InGraphHistoryStore.INSTANCE.append(node, properties, range);
+			}
+
+			@Override
+			public PropertyContainer getPropertyHolder(Node node, long version) {
+				return InGraphHistoryStore.INSTANCE.getPropertyHolder(node, version);
+			}
+
+			@Override
+			public long getFirstVersion(Node node) {
+				throw new AssertionError("Walked the history of " + node + ".");
+			}
+		};
+
+		assertEquals(createdVersion, node.getProperty(VersionContext.CREATED_VERSION_PROPERTY));
+		assertEquals(asSet(node.getId()), ids(new VersionContext(createdVersion, noFirstVersion).getAllNodes(graphDb)));
+		assertEquals(Collections.EMPTY_SET, ids(new VersionContext(createdVersion - 1, noFirstVersion).getAllNodes(graphDb)));
+		assertFalse(addToSet(vc(createdVersion).node(node).getPropertyKeys()).contains(VersionContext.CREATED_VERSION_PROPERTY));
+
+		// Heads from before the stamp stop at the revision covering the version.
+		versioningTransactionEventHandler.suspendVersioning();
+		Transaction tx = graphDb.beginTx();
+		try {
+			node.removeProperty(VersionContext.CREATED_VERSION_PROPERTY);
+			tx.success();
+		} finally {
+			tx.finish();
+			versioningTransactionEventHandler.resumeVersioning();
+		}
+		assertEquals(asSet(node.getId()), ids(new VersionContext(createdVersion, noFirstVersion).getAllNodes(graphDb)));
+	}
+
+	private static Set<Long> ids(Iterable<? extends PropertyContainer> entities) {
+		Set<Long> ids = new HashSet<Long>();
+		for (PropertyContainer entity : entities) {
+			ids.add(entity instanceof Node ? ((Node) entity).getId() : ((Relationship) entity).getId());
+		}
+		return ids;
+	}
+
 	private <T> Set<T> asSet(T... t) {
 		return new HashSet<T>(Arrays.asList(t));
 	}
@@ -154,6 +369,96 @@ public class VersionedGraphTest {
 		}
 	}
 
+	@Test
+	public void testRemovalOfNodesEndsTheirRelationships() {
+		Node hub = createNode();
+		Node n1 = createNode();
+		Node n2 = createNode();
+		Relationship outgoing = createRelationship(hub, n1, RelTypes.LINKED);
+		Relationship incoming = createRelationship(n2, hub, RelTypes.LINKED);
+		Relationship removed = createRelationship(hub, n2, RelTypes.LINKED);
+		removeRelationship(removed);
+		long removedVersion = versioningTransactionEventHandler.getLatestVersion();
+		removeNode(hub);
+		long deletedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(2, IteratorUtil.count(vc(removedVersion).node(hub).getRelationships()));
+		assertFalse(vc(deletedVersion).node(n1).hasRelationship());
+		assertFalse(vc(deletedVersion).node(n2).hasRelationship());
+		assertEquals(deletedVersion - 1, VersionContext.getEndVersion(outgoing));
+		assertEquals(deletedVersion - 1, VersionContext.getEndVersion(incoming));
+		assertTrue(incoming.hasProperty(VersionContext.DELETED_PROP_KEY));
+		assertEquals(removedVersion - 1, VersionContext.getEndVersion(removed));
+	}
+
+	@Test
+	public void testRemovalOfHighDegreeNode() {
+		Node hub = createNode();
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (int i = 0; i < 5000; i++) {
+				hub.createRelationshipTo(graphDb.createNode(), RelTypes.LINKED);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		long linkedVersion = versioningTransactionEventHandler.getLatestVersion();
+		removeNode(hub);
+		long deletedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(linkedVersion + 1, deletedVersion);
+		assertEquals(5000, IteratorUtil.count(vc(linkedVersion).node(hub).getRelationships()));
+		for (Relationship relationship : hub.getRelationships(RelTypes.LINKED)) {
+			assertEquals(linkedVersion, VersionContext.getEndVersion(relationship));
+			assertTrue(relationship.hasProperty(VersionContext.DELETED_PROP_KEY));
+		}
+	}
+
+	@Test
+	public void testRelationshipCreatedWhileDeletingNodeIsDiscarded() {
+		Node hub = createNode();
+		Node other = createNode();
+		Relationship existing = createRelationship(hub, other, RelTypes.LINKED);
+		Transaction tx = graphDb.beginTx();
+		try {
+			hub.createRelationshipTo(other, RelTypes.LINKED);
+			vc(versioningTransactionEventHandler.getLatestVersion()).deleteNode(hub);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		long deletedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(existing, IteratorUtil.single(hub.getRelationships()));
+		assertEquals(deletedVersion - 1, VersionContext.getEndVersion(existing));
+		assertTrue(hub.hasProperty(VersionContext.DELETED_PROP_KEY));
+		assertFalse(vc(deletedVersion).node(other).hasRelationship());
+	}
+
+	@Test
+	public void testEndingRelationshipsInBatchesBeforeDeletingNode() {
+		Node hub = createNode();
+		Transaction tx = graphDb.beginTx();
+		try {
+			for (int i = 0; i < 25; i++) {
+				hub.createRelationshipTo(graphDb.createNode(), RelTypes.LINKED);
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		long linkedVersion = versioningTransactionEventHandler.getLatestVersion();
+
+		assertEquals(25, versioningTransactionEventHandler.endAllRelationships(hub, 10));
+		assertEquals(linkedVersion + 3, versioningTransactionEventHandler.getLatestVersion());
+		assertEquals(0, versioningTransactionEventHandler.endAllRelationships(hub, 10));
+		removeNode(hub);
+
+		assertEquals(25, IteratorUtil.count(vc(linkedVersion).node(hub).getRelationships()));
+		assertEquals(0, IteratorUtil.count(vc(linkedVersion + 3).node(hub).getRelationships()));
+	}
+
 	@Test
 	public void testRelationshipMethodsThatReturnVersionedNodes() {
 		Node n2 = createNode();
@@ -178,6 +483,56 @@ public class VersionedGraphTest {
 		assertTrue(nodes[1] instanceof VersionedNode);
 	}
 
+	@Test
+	public void testRelationshipCursorSkipsInvalidRelationships() {
+		Node n1 = createNode();
+		Node n2 = createNode();
+		Node n3 = createNode();
+		Relationship firstRel = createRelationship(n1, n2, RelTypes.LINKED);
+		removeRelationship(firstRel);
+		Relationship secondRel = createRelationship(n3, n1, RelTypes.LINKED);
+
+		ValidRelationshipCursor cursor = vc(versioningTransactionEventHandler.getLatestVersion()).relationshipCursor();
+		cursor.init(n1, Direction.BOTH);
+		assertTrue(cursor.next());
+		assertEquals(secondRel.getId(), cursor.relationshipId());
+		assertEquals(n3.getId(), cursor.otherNodeId());
+		assertFalse(cursor.isOutgoing());
+		assertFalse(cursor.next());
+
+		cursor.init(n2, Direction.BOTH, RelTypes.LINKED);
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testIntervalContextReturnsRelationshipsValidDuringInterval() {
+		Node n1 = createNode();
+		Node n2 = createNode();
+		Node n3 = createNode();
+		Relationship firstRel = createRelationship(n1, n2, RelTypes.LINKED);
+		long firstVersion = versioningTransactionEventHandler.getLatestVersion();
+		removeRelationship(firstRel);
+		long removedVersion = versioningTransactionEventHandler.getLatestVersion();
+		Relationship secondRel = createRelationship(n1, n2, RelTypes.LINKED);
+		long secondVersion = versioningTransactionEventHandler.getLatestVersion();
+		createRelationship(n1, n3, RelTypes.LINKED);
+
+		IntervalVersionContext interval = versioningTransactionEventHandler.intervalContext(firstVersion, secondVersion);
+		Map<Relationship, Range> relationships = interval.getRelationships(n1, Direction.OUTGOING, RelTypes.LINKED);
+		assertEquals(2, relationships.size());
+		assertEquals(Range.range(firstVersion, firstVersion), relationships.get(firstRel));
+		assertEquals(Range.range(secondVersion, secondVersion), relationships.get(secondRel));
+		Map<Node, List<Range>> neighbors = interval.getNeighbors(n1, Direction.BOTH);
+		assertEquals(Collections.singleton(n2), neighbors.keySet());
+		assertEquals(Arrays.asList(Range.range(firstVersion, firstVersion), Range.range(secondVersion, secondVersion)), neighbors.get(n2));
+		assertEquals(Range.range(firstVersion, secondVersion), interval.getValidity(n1));
+
+		assertTrue(versioningTransactionEventHandler.intervalContext(removedVersion, removedVersion).getNeighbors(n1, Direction.BOTH).isEmpty());
+		Map<Node, List<Range>> later = versioningTransactionEventHandler.intervalContext(removedVersion, Long.MAX_VALUE).getNeighbors(n1, Direction.OUTGOING);
+		assertEquals(Arrays.asList(Range.range(secondVersion)), later.get(n2));
+		assertEquals(2, later.size());
+	}
+
 	private void assertAdjacency(Relationship rel, VersionedNode overlappingVersionedNode, VersionedNode nonOverlappingVersionedNode) {
 		assertEquals(rel, overlappingVersionedNode.getSingleRelationship(RelTypes.LINKED, Direction.OUTGOING));
 		assertEquals(null, nonOverlappingVersionedNode.getSingleRelationship(RelTypes.LINKED, Direction.OUTGOING));
@@ -192,6 +547,16 @@ public class VersionedGraphTest {
 		assertEquals(Collections.EMPTY_SET, addToSet(nonOverlappingVersionedNode.getRelationships(RelTypes.LINKED)));
 	}
 
+	private static int historyLength(Node node) {
+		int length = 0;
+		Relationship prevVersionRel = node.getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		while (prevVersionRel != null) {
+			length++;
+			prevVersionRel = prevVersionRel.getEndNode().getSingleRelationship(VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING);
+		}
+		return length;
+	}
+
 	private static <T> Set<T> addToSet(Iterable<T> iter) {
 		return IteratorUtil.addToCollection(iter, new HashSet<T>());
 	}